@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.client.RMBTClient;
+import at.alladin.rmbt.client.RMBTTestParameter;
+import at.alladin.rmbt.client.TotalTestResult;
+import at.alladin.rmbt.client.benchmark.LoopbackRMBTServer.Stats;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Runs complete tests of RMBTClient against a {@link LoopbackRMBTServer}. The
+ * score is the duration of one test; the secondary results give per phase the
+ * throughput and the throughput per client core, i.e. bytes per second of
+ * CPU time of the JVM minus that of the server threads:
+ * 
+ * <pre>
+ * java -cp ... org.openjdk.jmh.Main ClientEngineBenchmark -prof gc
+ * </pre>
+ * 
+ * "-prof gc" adds the allocation rate; the server does not allocate per
+ * chunk, so it is the client's. Loopback is faster than the client, so a
+ * regression of the engine shows as a lower rate per core. The ping phase is
+ * too short for the CPU time of the process (10 ms resolution on Linux); its
+ * timing cost is covered by {@link TimerOverheadBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ClientEngineBenchmark
+{
+    @Param({ "THREADS", "VIRTUAL_THREADS", "SELECTOR" })
+    public String engine;
+    
+    @Param({ "STREAM", "CHANNEL" })
+    public String transport;
+    
+    @Param({ "1", "3" })
+    public int threads;
+    
+    @Param({ "1" })
+    public int duration;
+    
+    private LoopbackRMBTServer server;
+    private PrintStream stdout;
+    
+    /**
+     * per phase results of the last test in MByte/s; "PerCore" divides by
+     * the client's CPU seconds instead of wall seconds
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Phases
+    {
+        public double pretestDownMBytes;
+        public double pretestDownMBytesPerCore;
+        public double downMBytes;
+        public double downMBytesPerCore;
+        public double pretestUpMBytes;
+        public double pretestUpMBytesPerCore;
+        public double upMBytes;
+        public double upMBytesPerCore;
+    }
+    
+    @Setup(Level.Trial)
+    public void startServer() throws IOException
+    {
+        server = new LoopbackRMBTServer();
+        
+        // RMBTClient logs every chunk round to stdout
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(final int b)
+            {
+            }
+            
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+            {
+            }
+        }));
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException
+    {
+        System.setOut(stdout);
+        server.close();
+    }
+    
+    @Benchmark
+    public double test(final Phases phases) throws InterruptedException
+    {
+        server.resetStats();
+        
+        final RMBTTestParameter params = server.createParameter(duration, threads)
+                .withEngine(RMBTTestParameter.Engine.valueOf(engine))
+                .withTransport(RMBTTestParameter.Transport.valueOf(transport));
+        final RMBTClient client = RMBTClient.getInstance(params);
+        final TotalTestResult result;
+        try
+        {
+            result = (TotalTestResult) client.runTest();
+        }
+        finally
+        {
+            client.shutdown();
+        }
+        if (result == null)
+            throw new IllegalStateException("test failed");
+        
+        final Stats pretestDown = server.getStats(Command.GETCHUNKS);
+        phases.pretestDownMBytes = perSecond(pretestDown.getBytes(), pretestDown.getWallNsec());
+        phases.pretestDownMBytesPerCore = perSecond(pretestDown.getBytes(), pretestDown.getClientCpuNsec());
+        
+        final Stats down = server.getStats(Command.GETTIME);
+        phases.downMBytes = perSecond(down.getBytes(), down.getWallNsec());
+        phases.downMBytesPerCore = perSecond(down.getBytes(), down.getClientCpuNsec());
+        
+        final Stats pretestUp = server.getStats(Command.PUTNORESULT);
+        phases.pretestUpMBytes = perSecond(pretestUp.getBytes(), pretestUp.getWallNsec());
+        phases.pretestUpMBytesPerCore = perSecond(pretestUp.getBytes(), pretestUp.getClientCpuNsec());
+        
+        final Stats up = server.getStats(Command.PUT);
+        phases.upMBytes = perSecond(up.getBytes(), up.getWallNsec());
+        phases.upMBytesPerCore = perSecond(up.getBytes(), up.getClientCpuNsec());
+        
+        return result.speed_download + result.speed_upload;
+    }
+    
+    /**
+     * @return MByte per second or 0 if nsec is not known
+     */
+    private static double perSecond(final long bytes, final long nsec)
+    {
+        return nsec <= 0 ? 0 : bytes / 1e6 / (nsec / 1e9);
+    }
+}
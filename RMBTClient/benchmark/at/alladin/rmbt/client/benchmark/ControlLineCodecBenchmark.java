@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Compares the String based handling of control lines (String.format,
+ * BufferedReader.readLine, Scanner) with {@link ControlLineCodec} for the
+ * lines of the GETCHUNKS, GETTIME and PING exchanges.
+ * 
+ * Run with "-prof gc" to see the allocation rate per operation; the codec
+ * variants are expected to allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlLineCodecBenchmark
+{
+    private static final String REPLIES = "ACCEPT GETCHUNKS GETTIME PUT PUTNORESULT PING QUIT\nPONG\nTIME 1234567890\n";
+    
+    private byte[] replies;
+    private ByteBuffer in;
+    private final ByteBuffer out = ByteBuffer.allocate(256);
+    private final ControlLine line = new ControlLine();
+    private int chunks;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        replies = REPLIES.getBytes("US-ASCII");
+        in = ByteBuffer.wrap(replies);
+        chunks = 64;
+    }
+    
+    @Benchmark
+    public int encodeStringFormat() throws IOException
+    {
+        return String.format(Locale.US, "GETCHUNKS %d\n", chunks).getBytes("US-ASCII").length
+                + "OK\n".getBytes("US-ASCII").length;
+    }
+    
+    @Benchmark
+    public int encodeCodec()
+    {
+        out.clear();
+        ControlLineCodec.encode(out, Command.GETCHUNKS, chunks);
+        ControlLineCodec.encode(out, Command.OK);
+        return out.position();
+    }
+    
+    @Benchmark
+    public long decodeReaderScanner() throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(replies),
+                "US-ASCII"), 4096);
+        long result = 0;
+        if (reader.readLine().startsWith("ACCEPT "))
+            result++;
+        if (reader.readLine().equals("PONG"))
+            result++;
+        final Scanner s = new Scanner(reader.readLine());
+        s.findInLine("TIME (\\d+)");
+        s.close();
+        return result + Long.parseLong(s.match().group(1));
+    }
+    
+    @Benchmark
+    public long decodeCodec()
+    {
+        in.clear();
+        long result = 0;
+        ControlLineCodec.decode(in, line);
+        if (line.getCommand() == Command.ACCEPT)
+            result++;
+        ControlLineCodec.decode(in, line);
+        if (line.getCommand() == Command.PONG)
+            result++;
+        ControlLineCodec.decode(in, line);
+        return result + line.getValue();
+    }
+}
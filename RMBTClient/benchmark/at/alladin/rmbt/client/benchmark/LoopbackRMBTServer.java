@@ -0,0 +1,722 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import at.alladin.rmbt.client.RMBTTestParameter;
+import at.alladin.rmbt.client.TlsChannel;
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * In-JVM RMBT test server on loopback, speaking the protocol of the C server
+ * in server/server.c (greeting, TOKEN, CHUNKSIZE, GETCHUNKS, GETTIME,
+ * PUT/PUTNORESULT, PING, QUIT), so RMBTClient can be benchmarked without the
+ * C server and a network.
+ * 
+ * Unlike the C server the token is not checked against an HMAC: it only has
+ * to be well-formed and, if given, equal to the expected token; the start
+ * time is ignored. Data is sent from a shared random buffer without copying
+ * and without allocating per chunk, so the server adds as little CPU and
+ * garbage as possible to what is measured.
+ * 
+ * For each command the server records bytes, wall time and CPU time in
+ * {@link Stats}, which lets benchmarks separate the client's CPU time from
+ * the server's.
+ * 
+ * With an SSLContext the server speaks TLS through the client's
+ * {@link TlsChannel} in blocking mode, see {@link #createSelfSignedContext()}.
+ */
+public final class LoopbackRMBTServer implements Closeable
+{
+    public static final String GREETING = "RMBTv0.3";
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    
+    private static final int MAX_CHUNKS = 300000;
+    private static final int MAX_SECONDS = 30;
+    private static final int BATCH_CHUNKS = 16;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final long RESULT_INTERVAL_NSEC = 1000000; // 1 ms, like the C server
+    
+    private static final Command[] ACCEPT_TOKEN = { Command.TOKEN, Command.QUIT };
+    private static final Command[] ACCEPT_COMMANDS = { Command.GETCHUNKS, Command.GETTIME, Command.PUT,
+            Command.PUTNORESULT, Command.PING, Command.QUIT };
+    private static final Command[] MEASURED_COMMANDS = { Command.GETCHUNKS, Command.GETTIME, Command.PUT,
+            Command.PUTNORESULT, Command.PING };
+    
+    /**
+     * bytes, time and CPU time of one command, summed over all connections;
+     * overlapping commands of several connections count as one interval of
+     * wall and process CPU time
+     */
+    public static final class Stats
+    {
+        private int active;
+        private long startNsec;
+        private long startProcessCpu;
+        
+        private long count;
+        private long bytes;
+        private long wallNsec;
+        private long processCpuNsec;
+        private long serverCpuNsec;
+        
+        synchronized void begin()
+        {
+            if (active++ == 0)
+            {
+                startNsec = System.nanoTime();
+                startProcessCpu = getProcessCpuTime();
+            }
+        }
+        
+        synchronized void end(final long commandBytes, final long commandCpuNsec)
+        {
+            count++;
+            bytes += commandBytes;
+            serverCpuNsec += commandCpuNsec;
+            if (--active == 0)
+            {
+                wallNsec += System.nanoTime() - startNsec;
+                processCpuNsec += getProcessCpuTime() - startProcessCpu;
+            }
+        }
+        
+        synchronized void reset()
+        {
+            count = 0;
+            bytes = 0;
+            wallNsec = 0;
+            processCpuNsec = 0;
+            serverCpuNsec = 0;
+        }
+        
+        /**
+         * @return number of completed commands
+         */
+        public synchronized long getCount()
+        {
+            return count;
+        }
+        
+        /**
+         * @return payload bytes sent (GET*) or received (PUT*)
+         */
+        public synchronized long getBytes()
+        {
+            return bytes;
+        }
+        
+        /**
+         * @return time at least one connection was running the command
+         */
+        public synchronized long getWallNsec()
+        {
+            return wallNsec;
+        }
+        
+        /**
+         * @return CPU time of the whole JVM while at least one connection
+         *         was running the command, or a negative value if the JVM
+         *         cannot tell
+         */
+        public synchronized long getProcessCpuNsec()
+        {
+            return processCpuNsec;
+        }
+        
+        /**
+         * @return CPU time of the server threads running the command
+         */
+        public synchronized long getServerCpuNsec()
+        {
+            return serverCpuNsec;
+        }
+        
+        /**
+         * @return CPU time of everything but the server while the command ran
+         *         (the client, including its GC and JIT), or a negative value
+         *         if the JVM cannot tell
+         */
+        public synchronized long getClientCpuNsec()
+        {
+            if (processCpuNsec < 0)
+                return -1;
+            // process CPU time may be as coarse as 10 ms
+            return Math.max(0, processCpuNsec - serverCpuNsec);
+        }
+    }
+    
+    private final int chunksize;
+    private final String expectedToken;
+    private final SSLContext sslContext;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService executor;
+    private final Set<SocketChannel> connections = Collections.synchronizedSet(new HashSet<SocketChannel>());
+    private final Map<Command, Stats> stats = new EnumMap<Command, Stats>(Command.class);
+    
+    // BATCH_CHUNKS chunks ending with 0x00 and one chunk ending with 0xff;
+    // read-only for the handlers, which work on duplicates
+    private final ByteBuffer chunks;
+    private final ByteBuffer lastChunk;
+    
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    
+    /**
+     * starts a server with the default chunk size accepting any well-formed
+     * token on an ephemeral loopback port
+     */
+    public LoopbackRMBTServer() throws IOException
+    {
+        this(DEFAULT_CHUNK_SIZE, null);
+    }
+    
+    /**
+     * @param chunksize
+     *            announced with CHUNKSIZE
+     * @param expectedToken
+     *            the only token accepted or null to accept any well-formed
+     *            token
+     */
+    public LoopbackRMBTServer(final int chunksize, final String expectedToken) throws IOException
+    {
+        this(chunksize, expectedToken, null);
+    }
+    
+    /**
+     * @param sslContext
+     *            with a server key to speak TLS or null for plaintext
+     */
+    public LoopbackRMBTServer(final int chunksize, final String expectedToken, final SSLContext sslContext)
+            throws IOException
+    {
+        if (chunksize < 2)
+            throw new IllegalArgumentException("chunksize");
+        this.chunksize = chunksize;
+        this.expectedToken = expectedToken;
+        this.sslContext = sslContext;
+        
+        for (final Command command : MEASURED_COMMANDS)
+            stats.put(command, new Stats());
+        
+        final byte[] random = new byte[BATCH_CHUNKS * chunksize];
+        new Random(4711).nextBytes(random);
+        chunks = ByteBuffer.allocateDirect(random.length);
+        chunks.put(random);
+        for (int i = 1; i <= BATCH_CHUNKS; i++)
+            chunks.put(i * chunksize - 1, (byte) 0);
+        chunks.clear();
+        lastChunk = ByteBuffer.allocateDirect(chunksize);
+        lastChunk.put(random, 0, chunksize - 1);
+        lastChunk.put((byte) 0xff);
+        lastChunk.clear();
+        
+        if (THREAD_BEAN.isThreadCpuTimeSupported() && !THREAD_BEAN.isThreadCpuTimeEnabled())
+            THREAD_BEAN.setThreadCpuTimeEnabled(true);
+        
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private int count;
+            
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, "loopback-rmbt-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                acceptLoop();
+            }
+        });
+    }
+    
+    public int getPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+    
+    public int getChunksize()
+    {
+        return chunksize;
+    }
+    
+    /**
+     * @return the statistics of GETCHUNKS, GETTIME, PUT, PUTNORESULT or PING
+     */
+    public Stats getStats(final Command command)
+    {
+        final Stats result = stats.get(command);
+        if (result == null)
+            throw new IllegalArgumentException(command.toString());
+        return result;
+    }
+    
+    public void resetStats()
+    {
+        for (final Stats s : stats.values())
+            s.reset();
+    }
+    
+    /**
+     * @return test parameters for this server with a well-formed token, which
+     *         start right away
+     */
+    public RMBTTestParameter createParameter(final int duration, final int numThreads)
+    {
+        final String token = expectedToken != null ? expectedToken
+                : "4711b3d2-0c3c-4b7b-9d6e-5a8d1e2f3a4b_" + System.currentTimeMillis() / 1000 + "_bG9vcGJhY2s=";
+        return new RMBTTestParameter("127.0.0.1", getPort(), sslContext != null, token, duration, numThreads, 0);
+    }
+    
+    /**
+     * @return a server context with a new self-signed key, created by the
+     *         keytool of the running JRE (the client trusts any certificate)
+     */
+    public static SSLContext createSelfSignedContext() throws IOException, GeneralSecurityException
+    {
+        final char[] password = "loopback".toCharArray();
+        final File file = File.createTempFile("loopback-rmbt", ".p12");
+        try
+        {
+            if (!file.delete())
+                throw new IOException("cannot replace " + file);
+            final Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin"
+                    + File.separator + "keytool", "-genkeypair", "-keystore", file.getPath(), "-storetype",
+                    "PKCS12", "-storepass", new String(password), "-keypass", new String(password), "-alias",
+                    "loopback", "-keyalg", "EC", "-dname", "CN=127.0.0.1", "-validity", "2").redirectErrorStream(
+                    true).start();
+            final InputStream output = keytool.getInputStream();
+            while (output.read() >= 0)
+                ; // keytool blocks on a full pipe
+            try
+            {
+                if (keytool.waitFor() != 0)
+                    throw new IOException("keytool failed");
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            
+            final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            final InputStream in = new FileInputStream(file);
+            try
+            {
+                keyStore.load(in, password);
+            }
+            finally
+            {
+                in.close();
+            }
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, password);
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+    
+    public void close() throws IOException
+    {
+        serverChannel.close();
+        synchronized (connections)
+        {
+            for (final SocketChannel channel : connections)
+                closeQuietly(channel);
+        }
+        executor.shutdownNow();
+    }
+    
+    private void acceptLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                final SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                connections.add(channel);
+                executor.execute(new Handler(channel));
+            }
+        }
+        catch (final ClosedChannelException e)
+        {
+            // closed
+        }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @return CPU time of the whole JVM in nsec, or -1 if unknown
+     */
+    static long getProcessCpuTime()
+    {
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        return -1;
+    }
+    
+    private static long getThreadCpuTime()
+    {
+        return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+    }
+    
+    private static void closeQuietly(final SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (final IOException e)
+        {
+            // ignore
+        }
+    }
+    
+    /**
+     * serves one connection like handle_connection() of the C server
+     */
+    private final class Handler implements Runnable
+    {
+        private final SocketChannel channel;
+        // channel or tls
+        private ByteChannel io;
+        private TlsChannel tls;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+        private final ByteBuffer out = ByteBuffer.allocate(256);
+        private final ByteBuffer data = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer chunks = LoopbackRMBTServer.this.chunks.duplicate();
+        private final ByteBuffer lastChunk = LoopbackRMBTServer.this.lastChunk.duplicate();
+        private final ControlLine line = new ControlLine();
+        
+        // payload bytes of the current command, also counted if the client
+        // disconnects in the middle of it (download after the time limit)
+        private long bytes;
+        
+        Handler(final SocketChannel channel)
+        {
+            this.channel = channel;
+            io = channel;
+            in.flip();
+        }
+        
+        public void run()
+        {
+            try
+            {
+                if (sslContext != null)
+                {
+                    final SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    tls = new TlsChannel(channel, engine);
+                    io = tls;
+                    while (!tls.handshake())
+                        ; // blocking: only returns false if the socket did not take everything
+                }
+                serve();
+            }
+            catch (final IOException e)
+            {
+                // client went away
+            }
+            finally
+            {
+                connections.remove(channel);
+                try
+                {
+                    io.close();
+                }
+                catch (final IOException e)
+                {
+                    // ignore
+                }
+                closeQuietly(channel);
+            }
+        }
+        
+        private void serve() throws IOException
+        {
+            ControlLineCodec.encodeLine(out, GREETING);
+            ControlLineCodec.encodeAccept(out, ACCEPT_TOKEN);
+            flush();
+            
+            readLine();
+            if (line.getCommand() != Command.TOKEN || !isValidToken(line.toString().substring(6)))
+                return;
+            
+            ControlLineCodec.encode(out, Command.OK);
+            ControlLineCodec.encode(out, Command.CHUNKSIZE, chunksize);
+            flush();
+            
+            while (true)
+            {
+                ControlLineCodec.encodeAccept(out, ACCEPT_COMMANDS);
+                flush();
+                readLine();
+                
+                final Command command = line.getCommand();
+                if (command == Command.QUIT)
+                {
+                    ControlLineCodec.encode(out, Command.BYE);
+                    flush();
+                    return;
+                }
+                final Stats commandStats = stats.get(command);
+                if (commandStats == null)
+                {
+                    writeErr();
+                    continue;
+                }
+                
+                final long value = line.getValue();
+                if (command == Command.GETTIME && (value <= 0 || value > MAX_SECONDS)
+                        || command == Command.GETCHUNKS && (value <= 0 || value > MAX_CHUNKS))
+                {
+                    writeErr();
+                    continue;
+                }
+                
+                commandStats.begin();
+                final long cpuStart = getThreadCpuTime();
+                bytes = 0;
+                try
+                {
+                    switch (command)
+                    {
+                    case GETTIME:
+                        getTime(value * 1000000000L);
+                        break;
+                    
+                    case GETCHUNKS:
+                        getChunks((int) value);
+                        break;
+                    
+                    case PUT:
+                        put(true);
+                        break;
+                    
+                    case PUTNORESULT:
+                        put(false);
+                        break;
+                    
+                    case PING:
+                        ping();
+                        break;
+                    
+                    default:
+                        throw new IllegalStateException();
+                    }
+                }
+                finally
+                {
+                    commandStats.end(bytes, getThreadCpuTime() - cpuStart);
+                }
+            }
+        }
+        
+        private boolean isValidToken(final String token)
+        {
+            if (expectedToken != null)
+                return expectedToken.equals(token);
+            return token.matches("[0-9a-f-]+_[0-9]+_[a-zA-Z0-9+/=]+");
+        }
+        
+        private void getTime(final long maxNsec) throws IOException
+        {
+            final long start = System.nanoTime();
+            while (System.nanoTime() - start < maxNsec)
+            {
+                chunks.clear();
+                writeData(chunks);
+            }
+            lastChunk.clear();
+            writeData(lastChunk);
+            
+            readOkAndSendTime(start);
+        }
+        
+        private void getChunks(final int count) throws IOException
+        {
+            final long start = System.nanoTime();
+            for (int left = count - 1; left > 0; left -= BATCH_CHUNKS)
+            {
+                chunks.clear();
+                chunks.limit(Math.min(left, BATCH_CHUNKS) * chunksize);
+                writeData(chunks);
+            }
+            lastChunk.clear();
+            writeData(lastChunk);
+            
+            readOkAndSendTime(start);
+        }
+        
+        private void put(final boolean intermediateResults) throws IOException
+        {
+            ControlLineCodec.encode(out, Command.OK);
+            flush();
+            
+            final long start = System.nanoTime();
+            long lastResult = -1;
+            byte lastByte = 0;
+            
+            // the client does not send data before OK, but be lenient
+            if (in.hasRemaining())
+            {
+                data.clear();
+                data.put(in);
+                data.flip();
+            }
+            else
+                data.clear().limit(0);
+            
+            while (lastByte != (byte) 0xff)
+            {
+                if (!data.hasRemaining())
+                {
+                    data.clear();
+                    if (io.read(data) < 0)
+                        throw new EOFException();
+                    data.flip();
+                }
+                final int read = data.remaining();
+                final int posLast = chunksize - 1 - (int) (bytes % chunksize);
+                if (read > posLast)
+                    lastByte = data.get(posLast + (read - 1 - posLast) / chunksize * chunksize);
+                bytes += read;
+                data.position(data.limit());
+                
+                if (intermediateResults)
+                {
+                    final long nsec = System.nanoTime() - start;
+                    if (lastResult == -1 || nsec - lastResult > RESULT_INTERVAL_NSEC)
+                    {
+                        lastResult = nsec;
+                        ControlLineCodec.encodeTimeBytes(out, nsec, bytes);
+                        flush();
+                    }
+                }
+            }
+            
+            ControlLineCodec.encode(out, Command.TIME, System.nanoTime() - start);
+            flush();
+        }
+        
+        private void ping() throws IOException
+        {
+            final long start = System.nanoTime();
+            ControlLineCodec.encode(out, Command.PONG);
+            flush();
+            readOkAndSendTime(start);
+        }
+        
+        private void readOkAndSendTime(final long start) throws IOException
+        {
+            readLine();
+            final long nsec = System.nanoTime() - start;
+            if (line.getCommand() != Command.OK)
+            {
+                writeErr();
+                return;
+            }
+            ControlLineCodec.encode(out, Command.TIME, nsec);
+            flush();
+        }
+        
+        private void writeErr() throws IOException
+        {
+            ControlLineCodec.encode(out, Command.ERR);
+            flush();
+        }
+        
+        private void readLine() throws IOException
+        {
+            while (!ControlLineCodec.decode(in, line))
+            {
+                in.compact();
+                if (!in.hasRemaining())
+                    throw new IOException("line too long");
+                final int read = io.read(in);
+                in.flip();
+                if (read < 0)
+                    throw new EOFException();
+            }
+        }
+        
+        private void flush() throws IOException
+        {
+            out.flip();
+            while (out.hasRemaining())
+                io.write(out);
+            out.clear();
+            if (tls != null)
+                tls.flush();
+        }
+        
+        private void writeData(final ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+                bytes += io.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+import at.alladin.rmbt.client.RMBTClient;
+import at.alladin.rmbt.client.RMBTTestParameter;
+import at.alladin.rmbt.client.SpeedTrace;
+import at.alladin.rmbt.client.TotalTestResult;
+
+/**
+ * Captures the speed traces in RMBTClient/traces from tests against a
+ * {@link LoopbackRMBTServer}, together with the totals the client calculated:
+ * 
+ * <pre>
+ * java -cp ... at.alladin.rmbt.client.benchmark.SpeedTraceCapture RMBTClient/traces
+ * </pre>
+ * 
+ * The chunks are large so that the traces stay small. The traces only need to
+ * be captured again if the trace format changes; to check a change of
+ * SingleResult or TotalTestResult replay them with
+ * {@link SpeedTrace#main(String[])}, which must still report all of them ok.
+ */
+public class SpeedTraceCapture
+{
+    private static final int CHUNK_SIZE = 1 << 20;
+    
+    public static void main(final String[] args) throws IOException, InterruptedException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: SpeedTraceCapture <directory>");
+            System.exit(2);
+        }
+        final File dir = new File(args[0]);
+        
+        final LoopbackRMBTServer server = new LoopbackRMBTServer(CHUNK_SIZE, null);
+        try
+        {
+            // one stream, default sample resolution and retention
+            capture(server.createParameter(1, 1), new File(dir, "single-stream.trace"));
+            
+            // several streams of different length, aggregated by TotalTestResult
+            capture(server.createParameter(1, 3), new File(dir, "multi-stream.trace"));
+            
+            // fine and coarse rings much smaller than the results, so both wrap
+            capture(server.createParameter(1, 3).withSampleResolution(10).withSampleRetention(16, 8), new File(
+                    dir, "wrapped-coarse.trace"));
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+    
+    private static void capture(final RMBTTestParameter params, final File file) throws IOException,
+            InterruptedException
+    {
+        final SpeedTrace trace = new SpeedTrace();
+        final RMBTClient client = RMBTClient.getInstance(params);
+        client.setSpeedTrace(trace);
+        
+        // RMBTClient logs every chunk round to stdout
+        final PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(final int b)
+            {
+            }
+        }));
+        final TotalTestResult result;
+        try
+        {
+            result = (TotalTestResult) client.runTest();
+        }
+        finally
+        {
+            System.setOut(stdout);
+            client.shutdown();
+        }
+        if (result == null)
+            throw new IllegalStateException("test failed");
+        
+        final FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            trace.write(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        System.out.println(String.format(Locale.US, "%s: %d results, down %d bytes / %d ns, up %d bytes / %d ns",
+                file, trace.getSampleCount(), result.bytes_download, result.nsec_download, result.bytes_upload,
+                result.nsec_upload));
+    }
+}
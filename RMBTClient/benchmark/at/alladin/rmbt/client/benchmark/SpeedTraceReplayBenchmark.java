@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.client.SpeedTrace;
+import at.alladin.rmbt.client.TotalTestResult;
+
+/**
+ * Measures the aggregation of stream results into the total result (the
+ * replay of a {@link SpeedTrace} through SingleResult and TotalTestResult)
+ * and the decoding of a trace, in results per second. The trace is a
+ * synthetic 10 second test of 8 streams with a result every 40 us or so,
+ * like a fast line read in small chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpeedTraceReplayBenchmark
+{
+    private static final int THREADS = 8;
+    private static final int RESULTS_PER_STREAM = 250000;
+    private static final int RESULTS = THREADS * 2 * RESULTS_PER_STREAM;
+    private static final long MIN_DIFF_TIME = 100000000; // default sample resolution
+    private static final int STORE_RESULTS = 100; // 10 s / MIN_DIFF_TIME
+    
+    private SpeedTrace trace;
+    private byte[] encoded;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        final Random random = new Random(4711);
+        trace = new SpeedTrace();
+        for (int upload = 0; upload < 2; upload++)
+            for (int thread = 0; thread < THREADS; thread++)
+            {
+                final SpeedTrace.Stream stream = trace.addStream(upload == 1, thread, STORE_RESULTS, STORE_RESULTS,
+                        MIN_DIFF_TIME);
+                long nsec = 0;
+                long bytes = 0;
+                for (int i = 0; i < RESULTS_PER_STREAM; i++)
+                {
+                    nsec += 20000 + random.nextInt(40000);
+                    bytes += 1 + random.nextInt(65536);
+                    stream.add(bytes, nsec);
+                }
+            }
+        trace.setResult(trace.replay());
+        
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.write(out);
+        encoded = out.toByteArray();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RESULTS)
+    public long replay()
+    {
+        final TotalTestResult result = trace.replay();
+        if (!trace.matches(result))
+            throw new IllegalStateException("replay differs");
+        return result.bytes_download + result.bytes_upload;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(RESULTS)
+    public int decode() throws IOException
+    {
+        return SpeedTrace.read(new ByteArrayInputStream(encoded)).getSampleCount();
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.client.SpeedSampleRing;
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+
+/**
+ * Cost of the time keeping the test engines do per I/O operation in each
+ * phase, besides the I/O itself:
+ * <ul>
+ * <li>download: a timestamp and a live sample per read</li>
+ * <li>upload: a timestamp per chunk written and, in the reader, parsing a
+ * "TIME x BYTES y" line into a live sample</li>
+ * <li>ping: two timestamps per round trip</li>
+ * </ul>
+ * Multiplied with the reads or chunks per second of
+ * {@link ClientEngineBenchmark} this gives the share of the client's CPU time
+ * spent on measuring rather than moving data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerOverheadBenchmark
+{
+    private static final long DURATION_NSEC = 7000000000L;
+    private static final int READ_SIZE = 65536;
+    
+    private final SpeedSampleRing samples = new SpeedSampleRing();
+    private final ByteBuffer lineBuf = ByteBuffer.allocate(64);
+    private final ControlLine line = new ControlLine();
+    
+    private long timeStart;
+    private long totalRead;
+    
+    @Setup
+    public void setup()
+    {
+        timeStart = System.nanoTime();
+        ControlLineCodec.encodeTimeBytes(lineBuf, 1234567890L, 9876543210L);
+        lineBuf.flip();
+    }
+    
+    @Benchmark
+    public long nanoTime()
+    {
+        return System.nanoTime();
+    }
+    
+    @Benchmark
+    public long downloadRead()
+    {
+        totalRead += READ_SIZE;
+        final long nsec = System.nanoTime() - timeStart;
+        samples.add(totalRead, nsec);
+        return nsec;
+    }
+    
+    @Benchmark
+    public boolean uploadChunk()
+    {
+        return System.nanoTime() - timeStart > DURATION_NSEC;
+    }
+    
+    @Benchmark
+    public long uploadResultLine()
+    {
+        lineBuf.rewind();
+        ControlLineCodec.decode(lineBuf, line);
+        samples.add(line.getBytes(), line.getValue());
+        return line.getValue();
+    }
+    
+    @Benchmark
+    public long pingRoundTrip()
+    {
+        final long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.client.RMBTClient;
+import at.alladin.rmbt.client.RMBTTestParameter;
+import at.alladin.rmbt.client.TotalTestResult;
+import at.alladin.rmbt.client.benchmark.LoopbackRMBTServer.Stats;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Encrypted tests against a TLS {@link LoopbackRMBTServer}: the THREADS
+ * engine encrypts with blocking SSLSockets, the SELECTOR engine with
+ * SSLEngines in {@link at.alladin.rmbt.client.TlsChannel}. The secondary
+ * results give the client's CPU time per gigabit of payload (lower is
+ * better) and the throughput per phase:
+ * 
+ * <pre>
+ * java -cp ... org.openjdk.jmh.Main TlsTransportBenchmark -prof gc
+ * </pre>
+ * 
+ * The server's TLS work runs on its own threads and is not counted, see
+ * {@link Stats#getClientCpuNsec()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TlsTransportBenchmark
+{
+    @Param({ "THREADS", "SELECTOR" })
+    public String engine;
+    
+    @Param({ "1", "3" })
+    public int threads;
+    
+    @Param({ "1" })
+    public int duration;
+    
+    private LoopbackRMBTServer server;
+    private PrintStream stdout;
+    
+    /**
+     * results of the last test: client CPU milliseconds per gigabit and
+     * MByte/s of download and upload
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Phases
+    {
+        public double downCpuMsPerGbit;
+        public double downMBytes;
+        public double upCpuMsPerGbit;
+        public double upMBytes;
+    }
+    
+    @Setup(Level.Trial)
+    public void startServer() throws Exception
+    {
+        server = new LoopbackRMBTServer(LoopbackRMBTServer.DEFAULT_CHUNK_SIZE, null,
+                LoopbackRMBTServer.createSelfSignedContext());
+        
+        // RMBTClient logs every chunk round to stdout
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(final int b)
+            {
+            }
+            
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+            {
+            }
+        }));
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception
+    {
+        System.setOut(stdout);
+        server.close();
+    }
+    
+    @Benchmark
+    public double test(final Phases phases) throws InterruptedException
+    {
+        server.resetStats();
+        
+        final RMBTTestParameter params = server.createParameter(duration, threads).withEngine(
+                RMBTTestParameter.Engine.valueOf(engine));
+        final RMBTClient client = RMBTClient.getInstance(params);
+        final TotalTestResult result;
+        try
+        {
+            result = (TotalTestResult) client.runTest();
+        }
+        finally
+        {
+            client.shutdown();
+        }
+        if (result == null)
+            throw new IllegalStateException("test failed");
+        
+        final Stats down = server.getStats(Command.GETTIME);
+        phases.downCpuMsPerGbit = perGigabit(down.getClientCpuNsec(), down.getBytes());
+        phases.downMBytes = down.getWallNsec() <= 0 ? 0 : down.getBytes() / 1e6 / (down.getWallNsec() / 1e9);
+        
+        final Stats up = server.getStats(Command.PUT);
+        phases.upCpuMsPerGbit = perGigabit(up.getClientCpuNsec(), up.getBytes());
+        phases.upMBytes = up.getWallNsec() <= 0 ? 0 : up.getBytes() / 1e6 / (up.getWallNsec() / 1e9);
+        
+        return result.speed_download + result.speed_upload;
+    }
+    
+    /**
+     * @return CPU milliseconds per 10^9 bits or 0 if not known
+     */
+    private static double perGigabit(final long cpuNsec, final long bytes)
+    {
+        return cpuNsec <= 0 || bytes <= 0 ? 0 : cpuNsec / 1e6 / (bytes * 8 / 1e9);
+    }
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.InputMismatchException;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Measures how many "TIME x BYTES y" lines per second the upload result reader
+ * of RMBTTest can parse: the former Scanner/regex reader against the streaming
+ * {@link ControlLineCodec} parser. The input is a typical upload reply (one
+ * line per millisecond of a 7 second test) terminated by the final TIME line,
+ * fed through a small read buffer like a socket would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadResultParserBenchmark
+{
+    private static final int LINES = 7000;
+    private static final int READ_SIZE = 1460;
+    
+    private byte[] data;
+    private final ByteBuffer lineBuf = ByteBuffer.allocate(4096);
+    private final ControlLine line = new ControlLine();
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        long bytes = 0;
+        for (int i = 1; i <= LINES; i++)
+        {
+            bytes += 12345;
+            sb.append(String.format(Locale.US, "TIME %d BYTES %d\n", i * 1000000L + 4711, bytes));
+        }
+        sb.append("TIME 7000004711\n");
+        data = sb.toString().getBytes("US-ASCII");
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long scanner() throws IOException
+    {
+        final Pattern patternFull = Pattern.compile("TIME (\\d+) BYTES (\\d+)");
+        final Pattern patternTime = Pattern.compile("TIME (\\d+)");
+        final Scanner s = new Scanner(new InputStreamReader(new ByteArrayInputStream(data), "US-ASCII"));
+        s.useDelimiter("\n");
+        long sum = 0;
+        try
+        {
+            while (true)
+            {
+                String next = null;
+                try
+                {
+                    next = s.next(patternFull);
+                }
+                catch (final InputMismatchException e)
+                {
+                }
+                if (next == null)
+                {
+                    s.next(patternTime);
+                    return sum;
+                }
+                final MatchResult match = s.match();
+                sum += Long.parseLong(match.group(1)) + Long.parseLong(match.group(2));
+            }
+        }
+        finally
+        {
+            s.close();
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long codec()
+    {
+        int offset = 0;
+        long sum = 0;
+        lineBuf.clear();
+        lineBuf.flip();
+        while (true)
+        {
+            while (!ControlLineCodec.decode(lineBuf, line))
+            {
+                lineBuf.compact();
+                final int read = Math.min(Math.min(READ_SIZE, lineBuf.remaining()), data.length - offset);
+                lineBuf.put(data, offset, read);
+                offset += read;
+                lineBuf.flip();
+            }
+            if (line.getCommand() != Command.TIME)
+                throw new IllegalStateException();
+            if (!line.hasBytes())
+                return sum;
+            sum += line.getValue() + line.getBytes();
+        }
+    }
+}
@@ -15,31 +15,32 @@
  ******************************************************************************/
 package at.alladin.rmbt.client;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-public class SpeedItem
+/**
+ * Connection setup times of one stream in ns, -1 for steps that did not
+ * happen (tls without encryption).
+ */
+public class ConnectTiming
 {
-    public final boolean upload;
-    public final int thread;
-    public final long time;
-    public final long bytes;
-    
-    public SpeedItem(final boolean upload, final int thread, final long time, final long bytes)
+    public ConnectTiming(final int thread, final long dns, final long tcp, final long tls, final long greeting,
+            final long token)
     {
-        this.upload = upload;
         this.thread = thread;
-        this.time = time;
-        this.bytes = bytes;
+        this.dns = dns;
+        this.tcp = tcp;
+        this.tls = tls;
+        this.greeting = greeting;
+        this.token = token;
     }
     
-    public JSONObject toJSON() throws JSONException
-    {
-        final JSONObject result = new JSONObject();
-        result.put("direction", upload ? "upload" : "download");
-        result.put("thread", thread);
-        result.put("time", time);
-        result.put("bytes", bytes);
-        return result;
-    }
+    final public int thread;
+    // name resolution
+    final public long dns;
+    // TCP connect
+    final public long tcp;
+    // TLS handshake
+    final public long tls;
+    // until greeting and ACCEPT are read
+    final public long greeting;
+    // from sending TOKEN until CHUNKSIZE is read, after the test slot opened
+    final public long token;
 }
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps released direct buffers for reuse: allocating direct memory is slow
+ * and it is only freed by the GC, so connections that come and go (streams,
+ * reconnects, consecutive tests) share their buffers instead.
+ */
+class DirectBufferPool
+{
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxBuffers;
+    
+    DirectBufferPool(final int maxBuffers)
+    {
+        this.maxBuffers = maxBuffers;
+    }
+    
+    /**
+     * @return a cleared direct buffer of at least minCapacity bytes
+     */
+    ByteBuffer acquire(final int minCapacity)
+    {
+        // buffers that are too small stay pooled for smaller requests
+        for (int i = size.get(); i > 0; i--)
+        {
+            final ByteBuffer buffer = buffers.poll();
+            if (buffer == null)
+                break;
+            if (buffer.capacity() >= minCapacity)
+            {
+                size.decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            buffers.offer(buffer);
+        }
+        return ByteBuffer.allocateDirect(minCapacity);
+    }
+    
+    /**
+     * hands buffer back; it must not be used by the caller any more
+     */
+    void release(final ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        if (size.incrementAndGet() > maxBuffers)
+        {
+            size.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+/**
+ * Streaming estimator for round trip times: a log-linear histogram over a
+ * fixed int array, so adding a sample is O(1) and never allocates, however
+ * many samples are taken.
+ * 
+ * Values below 128 ns are counted exactly; above, every power of two is split
+ * into 64 buckets, so a percentile is off by less than 1 % (the middle of its
+ * bucket is reported). Min and max are exact; jitter is the mean absolute
+ * difference of consecutive samples, like {@link LatencySamples}.
+ * 
+ * Not thread safe: one thread adds samples and publishes what it reads.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^41 ns, about 36 minutes
+    private static final int BUCKETS = 2 * SUB_COUNT + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+    
+    private final int[] counts = new int[BUCKETS];
+    private int maxIndex = -1;
+    
+    private int count;
+    private long min;
+    private long max;
+    private long last;
+    private long sumDiff;
+    
+    public void reset()
+    {
+        for (int i = 0; i <= maxIndex; i++)
+            counts[i] = 0;
+        maxIndex = -1;
+        count = 0;
+        sumDiff = 0;
+    }
+    
+    public void add(final long sampleNsec)
+    {
+        final long value = Math.max(0, sampleNsec);
+        final int index = indexOf(value);
+        counts[index]++;
+        if (index > maxIndex)
+            maxIndex = index;
+        
+        if (count == 0)
+        {
+            min = value;
+            max = value;
+        }
+        else
+        {
+            if (value < min)
+                min = value;
+            if (value > max)
+                max = value;
+            sumDiff += Math.abs(value - last);
+        }
+        last = value;
+        count++;
+    }
+    
+    public int getCount()
+    {
+        return count;
+    }
+    
+    /**
+     * @return the smallest sample or -1 without samples
+     */
+    public long getMin()
+    {
+        return count == 0 ? -1 : min;
+    }
+    
+    /**
+     * @return the largest sample or -1 without samples
+     */
+    public long getMax()
+    {
+        return count == 0 ? -1 : max;
+    }
+    
+    /**
+     * @return the nearest-rank percentile (0 < percent <= 100) or -1 without
+     *         samples
+     */
+    public long getPercentile(final double percent)
+    {
+        if (count == 0)
+            return -1;
+        final long rank = Math.max(1, (long) Math.ceil(percent / 100d * count));
+        long seen = 0;
+        for (int i = 0; i <= maxIndex; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, Math.max(min, valueOf(i)));
+        }
+        return max;
+    }
+    
+    /**
+     * @return the mean absolute difference of consecutive samples, 0 with
+     *         less than two samples and -1 without samples
+     */
+    public long getJitter()
+    {
+        if (count == 0)
+            return -1;
+        return count < 2 ? 0 : sumDiff / (count - 1);
+    }
+    
+    public LatencyStats getStats()
+    {
+        return new LatencyStats(count, getMin(), getPercentile(50), getPercentile(90), getPercentile(99),
+                getJitter());
+    }
+    
+    private static int indexOf(final long value)
+    {
+        if (value < 2 * SUB_COUNT)
+            return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        final int shift = exponent - SUB_BITS;
+        return 2 * SUB_COUNT + (shift - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+    
+    /**
+     * @return the middle of the bucket
+     */
+    private static long valueOf(final int index)
+    {
+        if (index < 2 * SUB_COUNT)
+            return index;
+        final int bucket = index - 2 * SUB_COUNT;
+        final int shift = bucket / SUB_COUNT + 1;
+        final long lower = (long) (bucket % SUB_COUNT + SUB_COUNT) << shift;
+        return lower + (1L << shift - 1);
+    }
+}
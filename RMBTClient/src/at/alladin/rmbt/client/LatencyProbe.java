@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import at.alladin.rmbt.client.helper.Config;
+import at.alladin.rmbt.client.helper.TestStatus;
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Measures the round trip time while the link is loaded: keeps issuing
+ * PING/PONG exchanges on an extra connection to the test server during the
+ * DOWN and UP phases of the test streams, one every {@link #INTERVAL_NSEC}.
+ * An exchange is only kept if the phase did not change while it ran.
+ */
+final class LatencyProbe implements Runnable
+{
+    private static final long INTERVAL_NSEC = 100000000L; // 100 ms
+    private static final int SO_TIMEOUT = 10000; // ms
+    private static final String EXPECT_GREETING = Config.RMBT_VERSION_STRING;
+    
+    private final RMBTClient client;
+    private final RMBTTestParameter params;
+    
+    private final LatencySamples download = new LatencySamples();
+    private final LatencySamples upload = new LatencySamples();
+    
+    private final ByteBuffer lineBuf = ByteBuffer.allocate(1024);
+    private final ControlLine line = new ControlLine();
+    private final ByteBuffer sendBuf = ByteBuffer.allocate(256);
+    
+    private volatile boolean stopped;
+    private volatile Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    
+    LatencyProbe(final RMBTClient client, final RMBTTestParameter params)
+    {
+        this.client = client;
+        this.params = params;
+    }
+    
+    public void run()
+    {
+        try
+        {
+            if (!connect())
+                return;
+            
+            while (!stopped)
+            {
+                final TestStatus status = client.getStatus();
+                if (status == TestStatus.END || status == TestStatus.ERROR || status == TestStatus.ABORTED)
+                    break;
+                
+                final long timeStart = System.nanoTime();
+                if (status == TestStatus.DOWN || status == TestStatus.UP)
+                {
+                    final long rtt = ping();
+                    if (client.getStatus() == status)
+                        (status == TestStatus.DOWN ? download : upload).add(rtt);
+                }
+                
+                final long sleep = (timeStart + INTERVAL_NSEC - System.nanoTime()) / 1000000L;
+                if (sleep > 0)
+                    Thread.sleep(sleep);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final Exception e)
+        {
+            if (!stopped)
+                client.log(String.format(Locale.US, "latency probe: %s", e));
+        }
+        finally
+        {
+            close();
+        }
+    }
+    
+    /**
+     * ends the probe; an exchange still running is dropped
+     */
+    void stop()
+    {
+        stopped = true;
+        close();
+    }
+    
+    LatencySamples getDownload()
+    {
+        return download;
+    }
+    
+    LatencySamples getUpload()
+    {
+        return upload;
+    }
+    
+    private boolean connect() throws IOException, InterruptedException
+    {
+        client.awaitSlot(RMBTClient.PRECONNECT_MILLIS);
+        final String host = InetAddress.getByName(params.getHost()).getHostAddress();
+        final Socket s;
+        if (client.getSslSocketFactory() != null)
+            s = client.getSslSocketFactory().createSocket(host, params.getPort());
+        else
+            s = new Socket(host, params.getPort());
+        socket = s;
+        if (stopped)
+            return false;
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(SO_TIMEOUT);
+        in = s.getInputStream();
+        out = s.getOutputStream();
+        lineBuf.clear();
+        lineBuf.flip();
+        
+        if (!readLine() || !line.equalsAscii(EXPECT_GREETING) || !readLine() || line.getCommand() != Command.ACCEPT)
+        {
+            client.log(String.format(Locale.US, "latency probe: got '%s' expected greeting", line));
+            return false;
+        }
+        client.awaitSlot(0);
+        sendBuf.clear();
+        ControlLineCodec.encodeToken(sendBuf, params.getToken());
+        send();
+        if (!readLine() || line.getCommand() != Command.OK || !readLine() || line.getCommand() != Command.CHUNKSIZE)
+        {
+            client.log(String.format(Locale.US, "latency probe: got '%s' expected 'OK' and 'CHUNKSIZE'", line));
+            return false;
+        }
+        client.log("latency probe: connected.");
+        return true;
+    }
+    
+    /**
+     * @return the round trip time of a PING/PONG exchange as seen by the
+     *         client
+     */
+    private long ping() throws IOException
+    {
+        if (!readLine() || line.getCommand() != Command.ACCEPT)
+            throw new IllegalStateException(String.format(Locale.US, "got '%s' expected 'ACCEPT'", line));
+        
+        sendBuf.clear();
+        ControlLineCodec.encode(sendBuf, Command.PING);
+        final long timeStart = System.nanoTime();
+        send();
+        final boolean gotLine = readLine();
+        final long timeEnd = System.nanoTime();
+        if (!gotLine || line.getCommand() != Command.PONG)
+            throw new IllegalStateException(String.format(Locale.US, "got '%s' expected 'PONG'", line));
+        
+        sendBuf.clear();
+        ControlLineCodec.encode(sendBuf, Command.OK);
+        send();
+        if (!readLine() || line.getCommand() != Command.TIME)
+            throw new IllegalStateException(String.format(Locale.US, "got '%s' expected 'TIME'", line));
+        
+        return timeEnd - timeStart;
+    }
+    
+    private boolean readLine() throws IOException
+    {
+        while (!ControlLineCodec.decode(lineBuf, line))
+        {
+            lineBuf.compact();
+            if (!lineBuf.hasRemaining())
+                throw new IllegalStateException("line too long");
+            final int read = in.read(lineBuf.array(), lineBuf.arrayOffset() + lineBuf.position(), lineBuf.remaining());
+            if (read > 0)
+                lineBuf.position(lineBuf.position() + read);
+            lineBuf.flip();
+            if (read < 0)
+                return false;
+        }
+        return true;
+    }
+    
+    private void send() throws IOException
+    {
+        out.write(sendBuf.array(), sendBuf.arrayOffset(), sendBuf.position());
+        out.flush();
+    }
+    
+    private void close()
+    {
+        final Socket s = socket;
+        if (s != null)
+            try
+            {
+                s.close();
+            }
+            catch (final IOException e)
+            {
+                // ignore
+            }
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.util.Arrays;
+
+/**
+ * Round trip times in nsec, kept in a growing primitive array. Not thread
+ * safe: written by one thread and read after it finished.
+ */
+public final class LatencySamples
+{
+    private long[] nsec;
+    private int size;
+    
+    public LatencySamples()
+    {
+        this(64);
+    }
+    
+    public LatencySamples(final int capacity)
+    {
+        nsec = new long[Math.max(1, capacity)];
+    }
+    
+    public void add(final long sampleNsec)
+    {
+        if (size == nsec.length)
+        {
+            final long[] newNsec = new long[size * 2];
+            System.arraycopy(nsec, 0, newNsec, 0, size);
+            nsec = newNsec;
+        }
+        nsec[size++] = sampleNsec;
+    }
+    
+    public int size()
+    {
+        return size;
+    }
+    
+    public long get(final int index)
+    {
+        if (index >= size)
+            throw new IndexOutOfBoundsException();
+        return nsec[index];
+    }
+    
+    /**
+     * @return min, percentiles and jitter of the samples
+     */
+    public LatencyStats getStats()
+    {
+        if (size == 0)
+            return new LatencyStats(0, -1, -1, -1, -1, -1);
+        
+        final long[] sorted = new long[size];
+        System.arraycopy(nsec, 0, sorted, 0, size);
+        Arrays.sort(sorted);
+        
+        long sumDiff = 0;
+        for (int i = 1; i < size; i++)
+            sumDiff += Math.abs(nsec[i] - nsec[i - 1]);
+        final long jitter = size < 2 ? 0 : sumDiff / (size - 1);
+        
+        return new LatencyStats(size, sorted[0], percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), jitter);
+    }
+    
+    /**
+     * nearest-rank percentile of sorted
+     */
+    private static long percentile(final long[] sorted, final int percent)
+    {
+        final int rank = (int) Math.ceil(percent / 100d * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+/**
+ * Summary of {@link LatencySamples}; all times in nsec, -1 without samples.
+ * Jitter is the mean absolute difference of consecutive round trip times.
+ */
+public final class LatencyStats
+{
+    public final int count;
+    public final long min;
+    public final long median;
+    public final long p90;
+    public final long p99;
+    public final long jitter;
+    
+    LatencyStats(final int count, final long min, final long median, final long p90, final long p99,
+            final long jitter)
+    {
+        this.count = count;
+        this.min = min;
+        this.median = median;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.jitter = jitter;
+    }
+}
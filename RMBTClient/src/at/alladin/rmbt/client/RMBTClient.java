@@ -15,6 +15,13 @@
  ******************************************************************************/
 package at.alladin.rmbt.client;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -29,11 +36,16 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
@@ -44,6 +56,7 @@ import at.alladin.rmbt.client.helper.Config;
 import at.alladin.rmbt.client.helper.ControlServerConnection;
 import at.alladin.rmbt.client.helper.IntermediateResult;
 import at.alladin.rmbt.client.helper.RMBTOutputCallback;
+import at.alladin.rmbt.client.helper.ResultSpool;
 import at.alladin.rmbt.client.helper.TestStatus;
 
 public class RMBTClient
@@ -57,29 +70,76 @@ public class RMBTClient
     private final long durationDownNano;
     
     private final AtomicLong pingNano = new AtomicLong(-1);
+    private final AtomicLong pingMedianNano = new AtomicLong(-1);
+    private final AtomicLong pingP90Nano = new AtomicLong(-1);
+    private final AtomicLong pingP99Nano = new AtomicLong(-1);
+    private final AtomicLong pingJitterNano = new AtomicLong(-1);
+    private volatile LatencyHistogram pings;
     private final AtomicLong downBitPerSec = new AtomicLong(-1);
     private final AtomicLong upBitPerSec = new AtomicLong(-1);
     
-    private final static long MIN_DIFF_TIME = 100000000; // 100 ms
+    // streams connect at most this long before the test slot: the test server
+    // accepts the token 20 s early and drops connections idle for 30 s
+    final static long PRECONNECT_MILLIS = 10000;
+    private final static long HANDSHAKE_TURN_TIMEOUT_MILLIS = 5000;
     
-    private final static int KEEP_LAST_ENTRIES = 20;
-    private int lastCounter;
-    private final long[][] lastTransfer;
-    private final long[][] lastTime;
+    // shared by all tests of this process: later handshakes resume the
+    // sessions in its cache
+    private static SSLContext sharedSslContext;
     
+    // shared by all tests of this process, e.g. the tests of a daemon, so the
+    // random file is written and mapped once
+    private static RandomPayload sharedRandomPayload;
+    
+    private final static long AVG_SPEED_WINDOW = 2000000000L; // 2 s
+    
+    // reused by every thread polling getIntermediateResult
+    private final ThreadLocal<CurrentSpeed[]> speedHolders = new ThreadLocal<CurrentSpeed[]>()
+    {
+        @Override
+        protected CurrentSpeed[] initialValue()
+        {
+            return new CurrentSpeed[] { new CurrentSpeed(), new CurrentSpeed() };
+        }
+    };
+    
+    private final RMBTTestParameter.Engine engine;
     private final ExecutorService testThreadPool;
-    private final ExecutorService commonThreadPool = Executors.newCachedThreadPool();
+    private final ExecutorService commonThreadPool;
     
+    private final StreamScaler scaler;
+    private final SteadyStateDetector steadyState;
     private final RMBTTest[] testTasks;
+    private final AtomicReferenceArray<Future<ThreadTestResult>> testFutures;
+    // samples kept per stream, see RMBTTestParameter#withSampleRetention
+    private int maxFineResults;
+    private int maxCoarseResults;
+    private long minDiffTime;
+    private RMBTSelectorTest selectorTask;
     
     private TotalTestResult result;
     
     private SSLSocketFactory sslSocketFactory;
+    private SSLContext sslContext;
+    
+    // the streams handshake one after the other: the first one runs the full
+    // TLS handshake, the others resume the session of their predecessor
+    private volatile Semaphore handshakeTurn = new Semaphore(1);
+    private final AtomicInteger fullHandshakes = new AtomicInteger();
+    private final AtomicInteger resumedHandshakes = new AtomicInteger();
+    private final AtomicLong handshakeNsec = new AtomicLong();
     
     private RMBTOutputCallback outputCallback;
     private final boolean outputToStdout = true;
     
     private final ControlServerConnection controlConnection;
+    // keeps results whose upload failed, see sendResult
+    private volatile ResultSpool resultSpool;
+    // records the results of the streams if set
+    private volatile SpeedTrace speedTrace;
+    // merged results of all streams, see getSpeedCurve
+    private volatile SpeedCurve downloadCurve;
+    private volatile SpeedCurve uploadCurve;
     
     private final AtomicBoolean aborted = new AtomicBoolean();
     
@@ -94,7 +154,27 @@ public class RMBTClient
             final String clientName, final String clientVersion, final RMBTTestParameter overrideParams,
             final JSONObject additionalValues)
     {
-        final ControlServerConnection controlConnection = new ControlServerConnection();
+        return getInstance(new ControlServerConnection(), host, pathPrefix, port, encryption, geoInfo, uuid,
+                clientType, clientName, clientVersion, overrideParams, additionalValues);
+    }
+    
+    /**
+     * like the other getInstance, but registers the test over an existing
+     * controlConnection, e.g. to reuse its HTTP connection for a series of
+     * tests
+     */
+    public static RMBTClient getInstance(final ControlServerConnection controlConnection, final String host,
+            final String pathPrefix, final int port, final boolean encryption, final ArrayList<String> geoInfo,
+            final String uuid, final String clientType, final String clientName, final String clientVersion,
+            final RMBTTestParameter overrideParams, final JSONObject additionalValues)
+    {
+        if (overrideParams != null)
+        {
+            controlConnection.setMaxTestServers(overrideParams.getMaxServers());
+            controlConnection.setDualStack(overrideParams.isDualStack());
+            controlConnection.setCompactResults(overrideParams.isCompactResults());
+            controlConnection.setUploadMetrics(overrideParams.isUploadMetrics());
+        }
         
         final String error = controlConnection.requestNewTestConnection(host, pathPrefix, port, encryption, geoInfo,
                 uuid, clientType, clientName, clientVersion, additionalValues);
@@ -105,7 +185,9 @@ public class RMBTClient
             return null;
         }
         
-        final RMBTTestParameter params = controlConnection.getTestParameter();
+        RMBTTestParameter params = controlConnection.getTestParameter();
+        if (overrideParams != null)
+            params = params.withOptionsOf(overrideParams);
         
         return new RMBTClient(params, controlConnection);
     }
@@ -128,22 +210,90 @@ public class RMBTClient
             log(errorMsg);
         }
         
+        engine = getEngine(params);
+        
+        if (engine == RMBTTestParameter.Engine.VIRTUAL_THREADS)
+            commonThreadPool = newVirtualThreadExecutor();
+        else
+            commonThreadPool = Executors.newCachedThreadPool();
+        
+        scaler = new StreamScaler(this, params);
+        
+        if (params.isEarlyStop())
+            steadyState = new SteadyStateDetector(params.getEarlyStopTolerance(),
+                    params.getEarlyStopWindowMillis() * 1000000L);
+        else
+            steadyState = null;
+        
         if (params.getNumThreads() > 0)
         {
-            testThreadPool = Executors.newFixedThreadPool(params.getNumThreads());
-            testTasks = new RMBTTest[params.getNumThreads()];
+            if (engine == RMBTTestParameter.Engine.SELECTOR)
+                testThreadPool = Executors.newSingleThreadExecutor();
+            else if (engine == RMBTTestParameter.Engine.VIRTUAL_THREADS)
+                testThreadPool = newVirtualThreadExecutor();
+            else
+                testThreadPool = Executors.newFixedThreadPool(scaler.getMaxStreams());
+            testTasks = new RMBTTest[scaler.getMaxStreams()];
+            testFutures = new AtomicReferenceArray<Future<ThreadTestResult>>(scaler.getMaxStreams());
         }
         else
         {
             testThreadPool = null;
             testTasks = null;
+            testFutures = null;
         }
         
         durationDownNano = params.getDuration() * 1000000000L;
         durationUpNano = params.getDuration() * 1000000000L;
         
-        lastTransfer = new long[params.getNumThreads()][KEEP_LAST_ENTRIES];
-        lastTime = new long[params.getNumThreads()][KEEP_LAST_ENTRIES];
+    }
+    
+    private RMBTTestParameter.Engine getEngine(final RMBTTestParameter params)
+    {
+        switch (params.getEngine())
+        {
+        case SELECTOR:
+            return RMBTTestParameter.Engine.SELECTOR;
+            
+        case VIRTUAL_THREADS:
+            final ExecutorService probe = newVirtualThreadExecutor();
+            if (probe != null)
+            {
+                probe.shutdown();
+                return RMBTTestParameter.Engine.VIRTUAL_THREADS;
+            }
+            log("virtual threads not available, using platform threads");
+            return RMBTTestParameter.Engine.THREADS;
+            
+        default:
+            return RMBTTestParameter.Engine.THREADS;
+        }
+    }
+    
+    /**
+     * @return an executor starting a new virtual thread for each task, or
+     *         null if the JRE does not support virtual threads (before Java 21
+     *         and on Android)
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (final Exception e)
+        {
+            return null;
+        }
+    }
+    
+    private static synchronized SSLContext getSharedSSLContext() throws NoSuchAlgorithmException,
+            KeyManagementException
+    {
+        if (sharedSslContext == null)
+            sharedSslContext = getSSLContext(null, null);
+        return sharedSslContext;
     }
     
     private SSLSocketFactory createSSLSocketFactory()
@@ -151,11 +301,8 @@ public class RMBTClient
         log("initSSL...");
         try
         {
-            final SSLContext sc = getSSLContext(null, null);
-            
-            final SSLSocketFactory factory = sc.getSocketFactory();
-            
-            return factory;
+            sslContext = getSharedSSLContext();
+            return sslContext.getSocketFactory();
         }
         catch (final Exception e)
         {
@@ -295,30 +442,36 @@ public class RMBTClient
         if (testStatus.get() != TestStatus.ERROR && testThreadPool != null)
         {
             
-            resetSpeed();
             downBitPerSec.set(-1);
             upBitPerSec.set(-1);
             pingNano.set(-1);
+            pingMedianNano.set(-1);
+            pingP90Nano.set(-1);
+            pingP99Nano.set(-1);
+            pingJitterNano.set(-1);
+            pings = null;
+            handshakeTurn = new Semaphore(1);
+            fullHandshakes.set(0);
+            resumedHandshakes.set(0);
+            handshakeNsec.set(0);
             
-            final long waitTime = params.getStartTime() - System.currentTimeMillis();
-            if (waitTime > 0)
-            {
-                setStatus(TestStatus.WAIT);
-                log(String.format(Locale.US, "we have to wait %d ms...", waitTime));
-                Thread.sleep(waitTime);
-                log(String.format(Locale.US, "...done.", waitTime));
-            }
-            else
-                log(String.format(Locale.US, "luckily we do not have to wait.", waitTime));
+            // no spooled uploads while measuring, resumed by sendResult or
+            // shutdown
+            final ResultSpool spool = resultSpool;
+            if (spool != null)
+                spool.setPaused(true);
             
-            setStatus(TestStatus.INIT);
+            // the streams are started right away and connect while we wait
+            // for the test slot (see awaitSlot)
+            final long waitTime = params.getStartTime() - System.currentTimeMillis();
+            setStatus(waitTime > 0 ? TestStatus.WAIT : TestStatus.INIT);
             statusBeforeError.set(null);
             
             if (testThreadPool.isShutdown() || commonThreadPool.isShutdown())
                 throw new IllegalStateException("RMBTClient already shut down");
             log("starting test...");
             
-            final int numThreads = params.getNumThreads();
+            final int numThreads = scaler.getMaxStreams();
             
             aborted.set(false);
             
@@ -327,23 +480,61 @@ public class RMBTClient
             if (params.isEncryption())
                 sslSocketFactory = createSSLSocketFactory();
             
-            log(String.format(Locale.US, "Host: %s; Port: %s; Enc: %s", params.getHost(), params.getPort(), params.isEncryption()));
-            log(String.format(Locale.US, "starting %d threads...", numThreads));
+            log(String.format(Locale.US,
+                    "Host: %s; Port: %s; Servers: %d; Dual stack: %s; Enc: %s; Transport: %s; Engine: %s; "
+                            + "Payload: %s; Early stop: %.0f %%; Latency probe: %s", params.getHost(),
+                    params.getPort(), params.getServerCount(), params.isDualStack(), params.isEncryption(),
+                    params.getTransport(), engine, params.getUploadPayload(), params.getEarlyStopTolerance() * 100,
+                    params.isLatencyProbe()));
             
-            final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+            Future<ThreadTestResult[]> selectorResult = null;
             
-            @SuppressWarnings("unchecked")
-            final Future<ThreadTestResult>[] results = new Future[numThreads];
+            LatencyProbe latencyProbe = null;
+            Future<?> latencyProbeResult = null;
+            if (params.isLatencyProbe())
+            {
+                latencyProbe = new LatencyProbe(this, params);
+                latencyProbeResult = commonThreadPool.submit(latencyProbe);
+            }
             
-            final int storeResults = (int) (params.getDuration() * 1000000000L / MIN_DIFF_TIME);
+            minDiffTime = params.getSampleResolutionMillis() * 1000000L;
+            final int storeResults = (int) Math.max(1, params.getDuration() * 1000000000L / minDiffTime);
+            maxFineResults = params.getMaxFineSamples() > 0 ? params.getMaxFineSamples() : storeResults;
+            maxCoarseResults = params.getMaxCoarseSamples() > 0 ? params.getMaxCoarseSamples() : storeResults;
+            log(String.format(Locale.US, "Samples: every %d ms, keeping %d fine and %d coarse per stream",
+                    params.getSampleResolutionMillis(), maxFineResults, maxCoarseResults));
+            downloadCurve = new SpeedCurve(numThreads, params.getDuration() * 1000000000L,
+                    SpeedCurve.DEFAULT_GRID_NSEC);
+            uploadCurve = new SpeedCurve(numThreads, params.getDuration() * 1000000000L,
+                    SpeedCurve.DEFAULT_GRID_NSEC);
             
-            final AtomicBoolean fallbackToOneThread = new AtomicBoolean();
+            if (engine == RMBTTestParameter.Engine.SELECTOR)
+            {
+                log(String.format(Locale.US, "starting %d streams...", scaler.getInitialStreams()));
+                selectorTask = new RMBTSelectorTest(this, params, scaler);
+                selectorResult = testThreadPool.submit(selectorTask);
+            }
+            else
+            {
+                log(String.format(Locale.US, "starting %d threads...", scaler.getInitialStreams()));
+                
+                final CyclicBarrier barrier = new CyclicBarrier(scaler.getInitialStreams());
+                
+                for (int i = 0; i < scaler.getInitialStreams(); i++)
+                    startStream(i, barrier);
+            }
             
-            for (int i = 0; i < numThreads; i++)
+            if (waitTime > 0)
             {
-                testTasks[i] = new RMBTTest(this, params, i, barrier, storeResults, MIN_DIFF_TIME, fallbackToOneThread);
-                results[i] = testThreadPool.submit(testTasks[i]);
+                log(String.format(Locale.US, "we have to wait %d ms...", waitTime));
+                awaitSlot(0);
+                log(String.format(Locale.US, "...done.", waitTime));
+                // unless a stream got further already
+                if (testStatus.compareAndSet(TestStatus.WAIT, TestStatus.INIT))
+                    statusChangeTime.set(System.nanoTime());
             }
+            else
+                log(String.format(Locale.US, "luckily we do not have to wait.", waitTime));
             
             try
             {
@@ -351,8 +542,27 @@ public class RMBTClient
                 long shortestPing = Long.MAX_VALUE;
                 
                 // wait for all threads first
-                for (int i = 0; i < numThreads; i++)
-                    results[i].get();
+                final ThreadTestResult[] threadResults;
+                if (selectorResult != null)
+                    threadResults = selectorResult.get();
+                else
+                {
+                    // streams added by the scaler are submitted before thread 0
+                    // leaves the pretest
+                    threadResults = new ThreadTestResult[numThreads];
+                    for (int i = 0; i < numThreads; i++)
+                    {
+                        final Future<ThreadTestResult> future = testFutures.get(i);
+                        if (future != null)
+                            threadResults[i] = future.get();
+                    }
+                }
+                
+                if (latencyProbe != null)
+                {
+                    latencyProbe.stop();
+                    latencyProbeResult.get();
+                }
                 
                 if (aborted.get())
                     return null;
@@ -361,12 +571,15 @@ public class RMBTClient
                 final long[][] allDownNsecs = new long[numThreads][];
                 final long[][] allUpBytes = new long[numThreads][];
                 final long[][] allUpNsecs = new long[numThreads][];
+                final int[] servers = new int[numThreads];
+                final int[] families = new int[numThreads];
                 
+                final ArrayList<StreamMetrics> streamMetrics = new ArrayList<StreamMetrics>();
                 int realNumThreads = 0;
                 log("");
                 for (int i = 0; i < numThreads; i++)
                 {
-                    final ThreadTestResult testResult = results[i].get();
+                    final ThreadTestResult testResult = threadResults[i];
                     
                     if (testResult != null)
                     {
@@ -385,11 +598,15 @@ public class RMBTClient
                         
                         if (!testResult.pings.isEmpty())
                             result.pings.addAll(testResult.pings);
+                        result.connects.addAll(testResult.connects);
+                        streamMetrics.add(testResult.metrics);
                         
                         allDownBytes[i] = testResult.down.bytes;
                         allDownNsecs[i] = testResult.down.nsec;
                         allUpBytes[i] = testResult.up.bytes;
                         allUpNsecs[i] = testResult.up.nsec;
+                        servers[i] = testResult.server;
+                        families[i] = testResult.ip_server instanceof Inet6Address ? 1 : 0;
                         
                         result.totalDownBytes += testResult.totalDownBytes;
                         result.totalUpBytes += testResult.totalUpBytes;
@@ -401,30 +618,106 @@ public class RMBTClient
                 
                 result.calculateDownload(allDownBytes, allDownNsecs);
                 result.calculateUpload(allUpBytes, allUpNsecs);
+                if (speedTrace != null)
+                    speedTrace.setResult(result);
+                result.speed_curve_download = downloadCurve;
+                result.speed_curve_upload = uploadCurve;
+                
+                final int numServers = params.getServerCount();
+                if (numServers > 1)
+                {
+                    result.bytes_download_servers = result.getShares(servers, numServers, false);
+                    result.bytes_upload_servers = result.getShares(servers, numServers, true);
+                }
+                if (params.isDualStack())
+                {
+                    final long[] down = result.getShares(families, 2, false);
+                    final long[] up = result.getShares(families, 2, true);
+                    result.dual_stack = true;
+                    result.bytes_download_ipv4 = down[0];
+                    result.bytes_download_ipv6 = down[1];
+                    result.bytes_upload_ipv4 = up[0];
+                    result.bytes_upload_ipv6 = up[1];
+                    result.speed_download_ipv4 = TestResult.getSpeedBitPerSec(down[0], result.nsec_download) / 1e3;
+                    result.speed_download_ipv6 = TestResult.getSpeedBitPerSec(down[1], result.nsec_download) / 1e3;
+                    result.speed_upload_ipv4 = TestResult.getSpeedBitPerSec(up[0], result.nsec_upload) / 1e3;
+                    result.speed_upload_ipv6 = TestResult.getSpeedBitPerSec(up[1], result.nsec_upload) / 1e3;
+                }
+                
+                if (steadyState != null && steadyState.isSteady())
+                {
+                    result.early_stop_upload = true;
+                    log("upload stopped early (steady state)");
+                }
                 
                 log("");
                 log(String.format(Locale.US, "Total calculated bytes down: %d", result.bytes_download));
                 log(String.format(Locale.US, "Total calculated time down:  %.3f s", result.nsec_download / 1e9));
                 log(String.format(Locale.US, "Total calculated bytes up:   %d", result.bytes_upload));
                 log(String.format(Locale.US, "Total calculated time up:    %.3f s", result.nsec_upload / 1e9));
+                logCurve("down", downloadCurve);
+                logCurve("up", uploadCurve);
+                if (numServers > 1)
+                    for (int i = 0; i < numServers; i++)
+                        log(String.format(Locale.US, "Server %d (%s:%d): bytes down: %d, bytes up: %d", i,
+                                params.getServer(i).host, params.getServer(i).port,
+                                result.bytes_download_servers[i], result.bytes_upload_servers[i]));
                 
                 // get Connection Info from thread 1 (one thread must run)
-                result.ip_local = results[0].get().ip_local;
-                result.ip_server = results[0].get().ip_server;
-                result.port_remote = results[0].get().port_remote;
-                result.encryption = results[0].get().encryption;
+                result.ip_local = threadResults[0].ip_local;
+                result.ip_server = threadResults[0].ip_server;
+                result.port_remote = threadResults[0].port_remote;
+                result.encryption = threadResults[0].encryption;
                 
                 result.num_threads = realNumThreads;
                 
                 result.ping_shortest = shortestPing;
                 
+                if (pings != null)
+                    result.ping_idle = pings.getStats();
+                if (latencyProbe != null)
+                {
+                    result.ping_download = latencyProbe.getDownload().getStats();
+                    result.ping_upload = latencyProbe.getUpload().getStats();
+                }
+                
                 result.speed_download = result.getDownloadSpeedBitPerSec() / 1e3;
                 result.speed_upload = result.getUploadSpeedBitPerSec() / 1e3;
                 
+                result.tls_handshakes_full = fullHandshakes.get();
+                result.tls_handshakes_resumed = resumedHandshakes.get();
+                result.tls_handshake_nsec = handshakeNsec.get();
+                
+                result.metrics = new TestMetrics(Runtime.getRuntime().availableProcessors(), streamMetrics,
+                        selectorTask != null ? selectorTask.getMetrics() : null);
+                
                 log("");
                 log(String.format(Locale.US, "Total Down: %.0f kBit/s", result.getDownloadSpeedBitPerSec() / 1e3));
                 log(String.format(Locale.US, "Total UP:   %.0f kBit/s", result.getUploadSpeedBitPerSec() / 1e3));
                 log(String.format(Locale.US, "Ping:       %.2f ms", shortestPing / 1e6));
+                if (params.isDualStack())
+                {
+                    log(String.format(Locale.US, "IPv4:       down %.0f kBit/s, up %.0f kBit/s",
+                            result.speed_download_ipv4, result.speed_upload_ipv4));
+                    log(String.format(Locale.US, "IPv6:       down %.0f kBit/s, up %.0f kBit/s",
+                            result.speed_download_ipv6, result.speed_upload_ipv6));
+                }
+                if (params.isEncryption())
+                    log(String.format(Locale.US, "TLS:        %d full, %d resumed handshakes, %.2f ms",
+                            result.tls_handshakes_full, result.tls_handshakes_resumed,
+                            result.tls_handshake_nsec / 1e6));
+                if (result.ping_idle != null)
+                    logLatency("idle", result.ping_idle);
+                if (latencyProbe != null)
+                {
+                    logLatency("down", result.ping_download);
+                    logLatency("up", result.ping_upload);
+                }
+                log(String.format(Locale.US, "Client:     %d processors, %s", result.metrics.processors,
+                        result.metrics.isClientLimited() ? "limited the speed" : "not limiting"));
+                for (final TestMetrics.Phase phase : TestMetrics.Phase.values())
+                    if (result.metrics.phaseNsec[phase.ordinal()] >= 0)
+                        log("  " + result.metrics.format(phase));
                 
                 if (controlConnection != null)
                 {
@@ -464,6 +757,110 @@ public class RMBTClient
         }
     }
     
+    void logConnectTiming(final ConnectTiming timing)
+    {
+        log(String.format(Locale.US, "thread %d: dns %.2f ms, tcp %.2f ms, %sgreeting %.2f ms, token %.2f ms",
+                timing.thread, timing.dns / 1e6, timing.tcp / 1e6,
+                timing.tls < 0 ? "" : String.format(Locale.US, "tls %.2f ms, ", timing.tls / 1e6),
+                timing.greeting / 1e6, timing.token / 1e6));
+    }
+    
+    /**
+     * waits until the handshake of the previous stream is done, so its
+     * session can be resumed; a TLS 1.3 session ticket is only used once, so
+     * parallel handshakes would mostly be full ones
+     * 
+     * @return false if the previous handshake did not finish in time and we
+     *         go ahead without our turn
+     */
+    boolean awaitHandshakeTurn() throws InterruptedException
+    {
+        return handshakeTurn.tryAcquire(HANDSHAKE_TURN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * passes the turn taken with {@link #awaitHandshakeTurn()} on, whether
+     * the handshake succeeded or not
+     */
+    void passHandshakeTurn()
+    {
+        handshakeTurn.release();
+    }
+    
+    /**
+     * counts a successful handshake that started at startMillis (wall clock)
+     * and took nsec
+     */
+    void addHandshake(final SSLSession session, final long startMillis, final long nsec)
+    {
+        // a resumed session keeps the creation time of the full handshake
+        if (session.getCreationTime() < startMillis)
+            resumedHandshakes.incrementAndGet();
+        else
+            fullHandshakes.incrementAndGet();
+        handshakeNsec.addAndGet(nsec);
+    }
+    
+    /**
+     * resolves host to an address of family (4 or 6) or, for family 0, to the
+     * first address of any family
+     */
+    static InetAddress resolve(final String host, final int family) throws UnknownHostException
+    {
+        if (family == 0)
+            return InetAddress.getByName(host);
+        for (final InetAddress address : InetAddress.getAllByName(host))
+            if (family == 4 ? address instanceof Inet4Address : address instanceof Inet6Address)
+                return address;
+        throw new UnknownHostException(String.format(Locale.US, "%s has no IPv%d address", host, family));
+    }
+    
+    /**
+     * sleeps until beforeMillis before the start time of the test slot;
+     * returns at once if that time has passed
+     */
+    void awaitSlot(final long beforeMillis) throws InterruptedException
+    {
+        final long waitTime = params.getStartTime() - beforeMillis - System.currentTimeMillis();
+        if (waitTime > 0)
+            Thread.sleep(waitTime);
+    }
+    
+    private void logLatency(final String phase, final LatencyStats stats)
+    {
+        log(String.format(Locale.US,
+                "RTT %-4s    %d samples, median %.2f ms, p90 %.2f ms, p99 %.2f ms, jitter %.2f ms", phase,
+                stats.count, stats.median / 1e6, stats.p90 / 1e6, stats.p99 / 1e6, stats.jitter / 1e6));
+    }
+    
+    private void startStream(final int threadId, final CyclicBarrier barrier)
+    {
+        testTasks[threadId] = new RMBTTest(this, params.forStream(threadId), threadId, barrier, scaler);
+        testFutures.set(threadId, testThreadPool.submit(testTasks[threadId]));
+    }
+    
+    /**
+     * starts the additional streams from..to-1 chosen by the scaler; they join
+     * the test after their own pretest
+     */
+    void startStreams(final int from, final int to)
+    {
+        log(String.format(Locale.US, "starting %d more threads...", to - from));
+        for (int i = from; i < to; i++)
+            startStream(i, null);
+    }
+    
+    /**
+     * @return the random upload payload of this process of at least minSize
+     *         bytes, created on first use and again only if minSize grows
+     */
+    static synchronized RandomPayload getRandomPayload(final int minSize) throws IOException
+    {
+        if (sharedRandomPayload == null || sharedRandomPayload.size() < minSize)
+            sharedRandomPayload = RandomPayload.create(minSize);
+        return sharedRandomPayload;
+    }
+    
     public ExecutorService getCommonThreadPool()
     {
         return commonThreadPool;
@@ -489,6 +886,9 @@ public class RMBTClient
     
     public void shutdown()
     {
+        final ResultSpool spool = resultSpool;
+        if (spool != null)
+            spool.setPaused(false);
         System.out.println("Shutting down RMBT thread pool.");
         if (testThreadPool != null)
             testThreadPool.shutdown();
@@ -501,14 +901,33 @@ public class RMBTClient
         return sslSocketFactory;
     }
     
+    /**
+     * @return the context of {@link #getSslSocketFactory()} for SSLEngines or
+     *         null without encryption
+     */
+    SSLContext getSslContext()
+    {
+        return sslSocketFactory == null ? null : sslContext;
+    }
+    
     public void setOutputCallback(final RMBTOutputCallback outputCallback)
     {
         this.outputCallback = outputCallback;
     }
     
-    private void resetSpeed()
+    /**
+     * @return the live (bytes, nsec) samples of the current phase of the given
+     *         test stream or null if the stream is not running; safe to poll
+     *         from any thread
+     */
+    public SpeedSampleRing getSpeedSamples(final int thread)
     {
-        lastCounter = 0;
+        if (selectorTask != null)
+            return selectorTask.getSpeedSamples(thread);
+        else if (testTasks != null && testTasks[thread] != null)
+            return testTasks[thread].getSpeedSamples();
+        else
+            return null;
     }
     
     private float getTotalSpeed()
@@ -516,17 +935,18 @@ public class RMBTClient
         long sumTrans = 0;
         long maxTime = 0;
         
-        final CurrentSpeed currentSpeed = new CurrentSpeed();
+        final CurrentSpeed currentSpeed = speedHolders.get()[0];
         
-        for (int i = 0; i < params.getNumThreads(); i++)
-            if (testTasks[i] != null)
+        for (int i = 0; i < scaler.getMaxStreams(); i++)
+        {
+            final SpeedSampleRing samples = getSpeedSamples(i);
+            if (samples != null && samples.getLatest(currentSpeed))
             {
-                testTasks[i].getCurrentSpeed(currentSpeed);
-                
                 if (currentSpeed.time > maxTime)
                     maxTime = currentSpeed.time;
                 sumTrans += currentSpeed.trans;
             }
+        }
         
         return maxTime == 0f ? 0f : (float) sumTrans / (float) maxTime * 1e9f * 8.0f;
     }
@@ -536,33 +956,51 @@ public class RMBTClient
         long sumDiffTrans = 0;
         long maxDiffTime = 0;
         
-        final CurrentSpeed currentSpeed = new CurrentSpeed();
+        final CurrentSpeed[] holders = speedHolders.get();
+        final CurrentSpeed latest = holders[0];
+        final CurrentSpeed reference = holders[1];
         
-        final int currentIndex = lastCounter % KEEP_LAST_ENTRIES;
-        int diffReferenceIndex = (lastCounter - KEEP_LAST_ENTRIES + 1) % KEEP_LAST_ENTRIES;
-        if (diffReferenceIndex < 0)
-            diffReferenceIndex = 0;
-        
-        lastCounter++;
-        
-        for (int i = 0; i < params.getNumThreads(); i++)
-            if (testTasks[i] != null)
+        for (int i = 0; i < scaler.getMaxStreams(); i++)
+        {
+            final SpeedSampleRing samples = getSpeedSamples(i);
+            if (samples != null && samples.getWindow(AVG_SPEED_WINDOW, latest, reference))
             {
-                testTasks[i].getCurrentSpeed(currentSpeed);
-                
-                lastTime[i][currentIndex] = currentSpeed.time;
-                lastTransfer[i][currentIndex] = currentSpeed.trans;
-                
-                final long diffTime = currentSpeed.time - lastTime[i][diffReferenceIndex];
-                final long diffTrans = currentSpeed.trans - lastTransfer[i][diffReferenceIndex];
+                final long diffTime = latest.time - reference.time;
+                final long diffTrans = latest.trans - reference.trans;
                 
                 if (diffTime > maxDiffTime)
                     maxDiffTime = diffTime;
                 sumDiffTrans += diffTrans;
             }
+        }
         return maxDiffTime == 0f ? 0f : (float) sumDiffTrans / (float) maxDiffTime * 1e9f * 8.0f;
     }
     
+    /**
+     * @return true if early termination is on and the aggregate rate of all
+     *         streams of the current download or upload phase has settled;
+     *         cheap enough to be polled by every stream after each read or
+     *         write
+     */
+    boolean isSteady()
+    {
+        if (steadyState == null)
+            return false;
+        final long now = System.nanoTime();
+        if (!steadyState.isDue(now))
+            return steadyState.isSteady();
+        
+        long totalBytes = 0;
+        final CurrentSpeed currentSpeed = speedHolders.get()[0];
+        for (int i = 0; i < scaler.getMaxStreams(); i++)
+        {
+            final SpeedSampleRing samples = getSpeedSamples(i);
+            if (samples != null && samples.getLatest(currentSpeed))
+                totalBytes += currentSpeed.trans;
+        }
+        return steadyState.add(totalBytes, now);
+    }
+    
     public IntermediateResult getIntermediateResult(IntermediateResult iResult)
     {
         if (iResult == null)
@@ -587,7 +1025,7 @@ public class RMBTClient
         
         case DOWN:
             iResult.progress = (float) diffTime / durationDownNano;
-            downBitPerSec.set(Math.round(getAvgSpeed()));
+            downBitPerSec.set(Math.round((double) getAvgSpeed()));
             break;
         
         case INIT_UP:
@@ -596,7 +1034,7 @@ public class RMBTClient
         
         case UP:
             iResult.progress = (float) diffTime / durationUpNano;
-            upBitPerSec.set(Math.round(getAvgSpeed()));
+            upBitPerSec.set(Math.round((double) getAvgSpeed()));
             break;
         
         case END:
@@ -613,6 +1051,10 @@ public class RMBTClient
             iResult.progress = 1;
         
         iResult.pingNano = pingNano.get();
+        iResult.pingMedianNano = pingMedianNano.get();
+        iResult.pingP90Nano = pingP90Nano.get();
+        iResult.pingP99Nano = pingP99Nano.get();
+        iResult.pingJitterNano = pingJitterNano.get();
         iResult.downBitPerSec = downBitPerSec.get();
         iResult.upBitPerSec = upBitPerSec.get();
         
@@ -643,9 +1085,15 @@ public class RMBTClient
         if (status == TestStatus.INIT_UP)
         {
             // DOWN is finished
-            downBitPerSec.set(Math.round(getTotalSpeed()));
-            resetSpeed();
+            downBitPerSec.set(Math.round((double) getTotalSpeed()));
+            if (steadyState != null && steadyState.isSteady() && result != null)
+            {
+                result.early_stop_download = true;
+                log("download stopped early (steady state)");
+            }
         }
+        if (steadyState != null && (status == TestStatus.DOWN || status == TestStatus.UP))
+            steadyState.reset();
     }
     
     public String getErrorMsg()
@@ -655,18 +1103,99 @@ public class RMBTClient
     
     public void sendResult(final JSONObject additionalValues)
     {
+        final ResultSpool spool = resultSpool;
         if (controlConnection != null)
         {
-            controlConnection.sendTestResult(result, additionalValues);
-            
+            final URI resultURI = controlConnection.getResultURI();
+            final JSONObject testData = controlConnection.createTestResult(result, additionalValues);
+            final String error;
             if (controlConnection.hasError())
+                error = controlConnection.getErrorMsg();
+            else if (resultURI == null)
+                error = "No URL to send the Data to.";
+            else
+                error = controlConnection.sendTestResult(resultURI, testData);
+            
+            if (error != null)
             {
-                setErrorStatus();
-                log("Error sending Result...");
-                errorMsg = controlConnection.getErrorMsg();
-                log(errorMsg);
+                if (spool != null && resultURI != null && !controlConnection.isRejected()
+                        && spoolResult(spool, resultURI, testData))
+                    log("Result spooled for a later upload.");
+                else
+                {
+                    setErrorStatus();
+                    log("Error sending Result...");
+                    errorMsg = error;
+                    log(errorMsg);
+                }
             }
         }
+        if (spool != null)
+            spool.setPaused(false);
+    }
+    
+    private boolean spoolResult(final ResultSpool spool, final URI resultURI, final JSONObject testData)
+    {
+        try
+        {
+            if (spool.append(resultURI, testData, controlConnection.isResultBatchSupported()))
+                return true;
+            log("Result spool full.");
+        }
+        catch (final IOException e)
+        {
+            log(e);
+        }
+        return false;
+    }
+    
+    /**
+     * lets {@link #sendResult} keep the result in spool if its upload fails,
+     * instead of losing it; a flusher of spool is paused while the test runs
+     */
+    public void setResultSpool(final ResultSpool resultSpool)
+    {
+        this.resultSpool = resultSpool;
+    }
+    
+    /**
+     * lets the next test record every result of its streams into speedTrace,
+     * see {@link SpeedTrace#replay()}
+     */
+    public void setSpeedTrace(final SpeedTrace speedTrace)
+    {
+        this.speedTrace = speedTrace;
+    }
+    
+    /**
+     * @return the merged results of all streams of the download or upload,
+     *         updated while the test runs; null before the test
+     */
+    public SpeedCurve getSpeedCurve(final boolean upload)
+    {
+        return upload ? uploadCurve : downloadCurve;
+    }
+    
+    /**
+     * @return a SingleResult for the download or upload of a stream, keeping
+     *         the samples as configured and feeding the speed curve and the
+     *         speed trace
+     */
+    SingleResult newSingleResult(final boolean upload, final int thread)
+    {
+        final SingleResult result = new SingleResult(maxFineResults, maxCoarseResults, minDiffTime);
+        result.setCurve(getSpeedCurve(upload), thread);
+        if (speedTrace != null)
+            result.setTrace(speedTrace, upload, thread);
+        return result;
+    }
+    
+    private void logCurve(final String phase, final SpeedCurve curve)
+    {
+        final long nsec = curve.getNsec();
+        if (nsec > 0)
+            log(String.format(Locale.US, "Speed curve %-4s %d slots of %d ms, %d bytes in %.3f s", phase + ":",
+                    curve.getSlotCount(), curve.getGridNsec() / 1000000L, curve.getBytes(nsec), nsec / 1e9));
     }
     
     private void setErrorStatus()
@@ -692,9 +1221,18 @@ public class RMBTClient
             outputCallback.log(String.format(Locale.US, "Error: %s", e.getMessage()));
     }
     
-    void setPing(final long shortestPing)
+    /**
+     * publishes the pings so far; called by the pinging thread after each
+     * ping
+     */
+    void setPings(final LatencyHistogram pings)
     {
-        pingNano.set(shortestPing);
+        pingNano.set(pings.getMin());
+        pingMedianNano.set(pings.getPercentile(50));
+        pingP90Nano.set(pings.getPercentile(90));
+        pingP99Nano.set(pings.getPercentile(99));
+        pingJitterNano.set(pings.getJitter());
+        this.pings = pings;
     }
     
     public String getPublicIP()
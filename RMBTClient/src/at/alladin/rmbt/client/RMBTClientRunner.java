@@ -15,11 +15,15 @@
  ******************************************************************************/
 package at.alladin.rmbt.client;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
 
 import javax.net.ssl.SSLContext;
 
@@ -31,6 +35,8 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import net.measurementlab.ndt.NdtTests;
 import at.alladin.rmbt.client.helper.Config;
+import at.alladin.rmbt.client.helper.ControlServerConnection;
+import at.alladin.rmbt.client.helper.ResultSpool;
 import at.alladin.rmbt.client.helper.RevisionHelper;
 import at.alladin.rmbt.client.helper.TestStatus;
 import at.alladin.rmbt.client.ndt.NDTRunner;
@@ -38,6 +44,12 @@ import at.alladin.rmbt.client.ndt.NDTRunner;
 public class RMBTClientRunner
 {
     
+    private static final long SPOOL_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long SPOOL_MIN_RETRY_MILLIS = 5000;
+    private static final long SPOOL_MAX_RETRY_MILLIS = 30 * 60 * 1000;
+    /** how long a single test waits for the spooled results before it exits */
+    private static final long SPOOL_FLUSH_WAIT_MILLIS = 60 * 1000;
+    
     /**
      * @param args
      * @throws IOException
@@ -68,6 +80,73 @@ public class RMBTClientRunner
                 acceptsAll(Arrays.asList("d", "duration"), "test duration in seconds (required when dev-mode)")
                         .withRequiredArg().ofType(Integer.class);
                 
+                acceptsAll(Arrays.asList("transport"), "transport for the test connections: STREAM (default) or CHANNEL")
+                        .withRequiredArg().ofType(String.class);
+                
+                acceptsAll(Arrays.asList("engine"), "test engine: THREADS (default), VIRTUAL_THREADS or SELECTOR").withRequiredArg()
+                        .ofType(String.class);
+                
+                acceptsAll(Arrays.asList("upload-payload"), "upload payload: ZEROS (default) or RANDOM_FILE")
+                        .withRequiredArg().ofType(String.class);
+                
+                acceptsAll(Arrays.asList("early-stop"),
+                        "end download and upload early once the rate stays within this percentage of its mean")
+                        .withRequiredArg().ofType(Double.class);
+                
+                acceptsAll(Arrays.asList("early-stop-window"),
+                        "time in milliseconds the rate has to stay steady for --early-stop (default 2000)")
+                        .withRequiredArg().ofType(Long.class);
+                
+                acceptsAll(Arrays.asList("pings"), "number of pings in the ping phase (default 5)").withRequiredArg()
+                        .ofType(Integer.class);
+                
+                acceptsAll(Arrays.asList("latency-probe"), "measure the round trip time during download and upload");
+                
+                acceptsAll(Arrays.asList("dual-stack"), "measure IPv4 and IPv6 concurrently, half of the streams each");
+                
+                acceptsAll(Arrays.asList("compact-results"),
+                        "upload the speed details compressed if the control server supports it");
+                
+                acceptsAll(Arrays.asList("metrics"),
+                        "upload the connection timing and client load of the streams with the result");
+                
+                acceptsAll(Arrays.asList("resolution"),
+                        "keep a sample of each stream every this many milliseconds for the speed details (default 100)")
+                        .withRequiredArg().ofType(Long.class);
+                
+                acceptsAll(Arrays.asList("fine-samples"),
+                        "keep the last this many full resolution samples per stream (default duration / resolution)")
+                        .withRequiredArg().ofType(Integer.class);
+                
+                acceptsAll(Arrays.asList("coarse-samples"),
+                        "keep the last this many --resolution samples per stream (default duration / resolution)")
+                        .withRequiredArg().ofType(Integer.class);
+                
+                acceptsAll(Arrays.asList("servers"),
+                        "spread the streams over up to this many test servers if the control server offers them")
+                        .withRequiredArg().ofType(Integer.class);
+                
+                acceptsAll(Arrays.asList("daemon"),
+                        "run a test every --interval seconds until killed; results are spooled and uploaded in batches");
+                
+                acceptsAll(Arrays.asList("interval"), "daemon: seconds between the starts of two tests")
+                        .withRequiredArg().ofType(Integer.class).defaultsTo(3600);
+                
+                acceptsAll(Arrays.asList("jitter"), "daemon: random delay of up to this many seconds for each start")
+                        .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+                
+                acceptsAll(Arrays.asList("spool"),
+                        "file of results waiting for their upload; without --daemon only failed uploads are kept")
+                        .withRequiredArg().ofType(String.class).defaultsTo("rmbt-results.spool");
+                
+                acceptsAll(Arrays.asList("batch"),
+                        "upload up to this many spooled results in one request; daemon: once this many are pending")
+                        .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+                
+                acceptsAll(Arrays.asList("trace"),
+                        "record the results of the streams to this file, to be replayed by SpeedTrace")
+                        .withRequiredArg().ofType(String.class);
+                
                 acceptsAll(Arrays.asList("n", "ndt"), "run NDT after RMBT");
                 
                 acceptsAll(Arrays.asList("ndt-host"), "NDT host to use").withRequiredArg()
@@ -123,6 +202,57 @@ public class RMBTClientRunner
         
         final ArrayList<String> geoInfo = null;
         
+        RMBTTestParameter overrideParams = new RMBTTestParameter(null, 0, false, null, 0, 0, 0);
+        try
+        {
+            if (options.has("transport"))
+                overrideParams = overrideParams.withTransport(RMBTTestParameter.Transport.valueOf(((String) options
+                        .valueOf("transport")).toUpperCase(Locale.US)));
+            if (options.has("engine"))
+                overrideParams = overrideParams.withEngine(RMBTTestParameter.Engine.valueOf(((String) options
+                        .valueOf("engine")).toUpperCase(Locale.US)));
+            if (options.has("upload-payload"))
+                overrideParams = overrideParams.withUploadPayload(RMBTTestParameter.UploadPayload
+                        .valueOf(((String) options.valueOf("upload-payload")).toUpperCase(Locale.US)));
+            if (options.has("pings"))
+                overrideParams = overrideParams.withPingCount((Integer) options.valueOf("pings"));
+            if (options.has("latency-probe"))
+                overrideParams = overrideParams.withLatencyProbe(true);
+            if (options.has("dual-stack"))
+                overrideParams = overrideParams.withDualStack(true);
+            if (options.has("compact-results"))
+                overrideParams = overrideParams.withCompactResults(true);
+            if (options.has("metrics"))
+                overrideParams = overrideParams.withUploadMetrics(true);
+            if (options.has("servers"))
+                overrideParams = overrideParams.withMaxServers((Integer) options.valueOf("servers"));
+            if (options.has("resolution"))
+                overrideParams = overrideParams.withSampleResolution((Long) options.valueOf("resolution"));
+            if (options.has("fine-samples") || options.has("coarse-samples"))
+            {
+                int fine = overrideParams.getMaxFineSamples();
+                int coarse = overrideParams.getMaxCoarseSamples();
+                if (options.has("fine-samples"))
+                    fine = (Integer) options.valueOf("fine-samples");
+                if (options.has("coarse-samples"))
+                    coarse = (Integer) options.valueOf("coarse-samples");
+                overrideParams = overrideParams.withSampleRetention(fine, coarse);
+            }
+            if (options.has("early-stop"))
+            {
+                long window = overrideParams.getEarlyStopWindowMillis();
+                if (options.has("early-stop-window"))
+                    window = (Long) options.valueOf("early-stop-window");
+                overrideParams = overrideParams.withEarlyStop((Double) options.valueOf("early-stop") / 100, window);
+            }
+        }
+        catch (final IllegalArgumentException e)
+        {
+            System.out.println(String.format("ERROR: illegal value for option: %s", e.getMessage()));
+            System.exit(1);
+            return;
+        }
+        
         final String uuid = "2608df31-8a51-4271-aab7-d489ca59f93b";
         
         final JSONObject additionalValues = new JSONObject();
@@ -136,13 +266,46 @@ public class RMBTClientRunner
             e.printStackTrace();
         }
         
+        if (options.has("daemon"))
+        {
+            runDaemon(options, host, port, encryption, uuid, overrideParams);
+            return;
+        }
+        
         client = RMBTClient.getInstance(host, null, port, encryption, geoInfo, uuid,
-                "DESKTOP", Config.RMBT_CLIENT_NAME, Config.RMBT_VERSION_NUMBER, null, null);
+                "DESKTOP", Config.RMBT_CLIENT_NAME, Config.RMBT_VERSION_NUMBER, overrideParams, null);
+        
+        // failed uploads are kept and retried after the next test
+        final ResultSpool spool = options.has("spool") ? new ResultSpool(new File((String) options.valueOf("spool")),
+                SPOOL_MAX_BYTES) : null;
+        final int batch = Math.max(1, (Integer) options.valueOf("batch"));
         
         if (client != null)
         {
+            client.setResultSpool(spool);
+            final SpeedTrace trace = options.has("trace") ? new SpeedTrace() : null;
+            client.setSpeedTrace(trace);
+            
             final TestResult result = client.runTest();
             
+            if (result != null && trace != null)
+                try
+                {
+                    final FileOutputStream out = new FileOutputStream((String) options.valueOf("trace"));
+                    try
+                    {
+                        trace.write(out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
+                catch (final IOException e)
+                {
+                    e.printStackTrace();
+                }
+            
             if (result != null)
             {
                 final JSONObject jsonResult = new JSONObject();
@@ -160,6 +323,24 @@ public class RMBTClientRunner
             
             client.shutdown();
             
+            if (spool != null)
+                try
+                {
+                    spool.startFlusher(new ControlServerConnection(), batch, 1, SPOOL_MIN_RETRY_MILLIS,
+                            SPOOL_MAX_RETRY_MILLIS);
+                    if (!spool.awaitFlushed(SPOOL_FLUSH_WAIT_MILLIS))
+                        System.out.println(String.format(Locale.US, "%d spooled results pending",
+                                spool.getPending()));
+                }
+                catch (final IOException e)
+                {
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    spool.stopFlusher();
+                }
+            
             if (client.getStatus() != TestStatus.END)
                 System.out.println("ERROR: " + client.getErrorMsg());
             else
@@ -198,4 +379,99 @@ public class RMBTClientRunner
         
     }
     
+    /**
+     * runs a test every interval plus a random jitter until the process is
+     * killed; the process, the control server connection and the TLS sessions
+     * of RMBTClient stay warm between the tests
+     */
+    private static void runDaemon(final OptionSet options, final String host, final int port,
+            final boolean encryption, final String uuid, final RMBTTestParameter overrideParams)
+            throws InterruptedException
+    {
+        final long intervalMillis = Math.max(1, (Integer) options.valueOf("interval")) * 1000L;
+        final long jitterMillis = Math.max(0, (Integer) options.valueOf("jitter")) * 1000L;
+        final int batch = Math.max(1, (Integer) options.valueOf("batch"));
+        final ResultSpool spool = new ResultSpool(new File((String) options.valueOf("spool")), SPOOL_MAX_BYTES);
+        final ControlServerConnection controlConnection = new ControlServerConnection();
+        final Random random = new Random();
+        
+        // uploads in the background, paused while a test runs
+        spool.startFlusher(new ControlServerConnection(), batch, batch, SPOOL_MIN_RETRY_MILLIS,
+                SPOOL_MAX_RETRY_MILLIS);
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    spool.stopFlusher();
+                }
+                catch (final InterruptedException e)
+                {
+                    // exiting anyway
+                }
+            }
+        });
+        
+        long nextStart = System.currentTimeMillis();
+        while (true)
+        {
+            final long jitter = jitterMillis == 0 ? 0 : (long) (random.nextDouble() * jitterMillis);
+            final long waitTime = nextStart + jitter - System.currentTimeMillis();
+            if (waitTime > 0)
+                Thread.sleep(waitTime);
+            
+            runSpooledTest(controlConnection, spool, host, port, encryption, uuid, overrideParams);
+            
+            // starts missed by a long test are skipped
+            nextStart += intervalMillis;
+            final long now = System.currentTimeMillis();
+            if (nextStart < now)
+                nextStart += (now - nextStart + intervalMillis - 1) / intervalMillis * intervalMillis;
+        }
+    }
+    
+    private static void runSpooledTest(final ControlServerConnection controlConnection, final ResultSpool spool,
+            final String host, final int port, final boolean encryption, final String uuid,
+            final RMBTTestParameter overrideParams) throws InterruptedException
+    {
+        final RMBTClient client = RMBTClient.getInstance(controlConnection, host, null, port, encryption, null,
+                uuid, "DESKTOP", Config.RMBT_CLIENT_NAME, Config.RMBT_VERSION_NUMBER, overrideParams, null);
+        if (client == null)
+            return;
+        
+        // pauses the flusher until shutdown
+        client.setResultSpool(spool);
+        try
+        {
+            final TestResult result = client.runTest();
+            if (result == null || client.getStatus() != TestStatus.END)
+            {
+                System.out.println("ERROR: " + client.getErrorMsg());
+                return;
+            }
+            
+            final JSONObject jsonResult = new JSONObject();
+            jsonResult.put("network_type", "97");
+            jsonResult.put("plattform", "CLI");
+            final JSONObject testData = controlConnection.createTestResult((TotalTestResult) result, jsonResult);
+            if (!spool.append(controlConnection.getResultURI(), testData,
+                    controlConnection.isResultBatchSupported()))
+                System.out.println("result spool full, result dropped");
+        }
+        catch (final JSONException e)
+        {
+            e.printStackTrace();
+        }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            client.shutdown();
+        }
+    }
+    
 }
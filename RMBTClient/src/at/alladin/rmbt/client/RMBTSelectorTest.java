@@ -0,0 +1,1169 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import at.alladin.rmbt.client.helper.Config;
+import at.alladin.rmbt.client.helper.TestStatus;
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * Runs all streams of a test on the calling thread: every test connection is
+ * a non-blocking SocketChannel driven by one Selector and runs through the
+ * same phases as {@link RMBTTest} (pretest, ping, download, upload) as a state
+ * machine. Phases are synchronized between the streams without barriers; the
+ * next phase starts when all streams finished the current one. With
+ * encryption the channels are wrapped in a {@link TlsChannel}.
+ */
+public class RMBTSelectorTest implements Callable<ThreadTestResult[]>
+{
+    private static final long nsecsL = 1000000000L;
+    
+    private static final String EXPECT_GREETING = Config.RMBT_VERSION_STRING;
+    private static final long UPLOAD_MAX_DISCARD_TIME = 2 * nsecsL;
+    private static final long UPLOAD_MAX_WAIT_NSECS = 3 * nsecsL;
+    private static final long UPLOAD_CANCEL_WAIT_NSECS = 250000000L;
+    private static final long UPLOAD_SETTLE_NSECS = 100000000L;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BATCH_SIZE = 256 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int MAX_CHUNKS = 300000; // GETCHUNKS limit of the test server
+    
+    private enum Phase
+    {
+        CONNECT, PRETEST_DOWN, RAMP, PING, DOWN, PRETEST_UP, UP, END;
+    }
+    
+    private enum State
+    {
+        // connect; HANDSHAKE_WAIT waits for the TLS handshake of another
+        // stream, SLOT for the test slot
+        HANDSHAKE_WAIT, HANDSHAKE, GREETING, ACCEPT_TOKEN, SLOT, TOKEN_OK, CHUNKSIZE,
+        ACCEPT, // waiting for ACCEPT to send the next command
+        DATA, DATA_TIME, // GETCHUNKS, GETTIME
+        PUT_OK, UPLOAD, UPLOAD_TIME, // PUT, PUTNORESULT
+        UPLOAD_DRAIN, // upload ended before the last TIME line of the server
+        PONG, PING_TIME, // PING
+        IDLE; // done with the current phase
+    }
+    
+    private final RMBTClient client;
+    private final RMBTTestParameter params;
+    private final StreamScaler scaler;
+    
+    private final Connection[] connections;
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // CPU time of the selector thread, which runs all streams
+    private final StreamMetrics metrics = new StreamMetrics(-1, true);
+    
+    private Selector selector;
+    private Phase phase;
+    private int phaseDone;
+    private int activeConnections;
+    private int streams;
+    private long slotStart;
+    // the connection running its TLS handshake, the others wait for it
+    private Connection handshaking;
+    
+    public RMBTSelectorTest(final RMBTClient client, final RMBTTestParameter params, final StreamScaler scaler)
+    {
+        this.client = client;
+        this.params = params;
+        this.scaler = scaler;
+        streams = scaler.getInitialStreams();
+        connections = new Connection[scaler.getMaxStreams()];
+        for (int i = 0; i < connections.length; i++)
+            connections[i] = new Connection(i, i < streams);
+    }
+    
+    public SpeedSampleRing getSpeedSamples(final int threadId)
+    {
+        return connections[threadId].speedSamples;
+    }
+    
+    /**
+     * @return metrics of the selector thread; only valid after call()
+     */
+    public StreamMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * @return the phase of {@link TestMetrics}, null if there is none; the
+     *         ramp up counts to the download pretest
+     */
+    private static TestMetrics.Phase toMetricsPhase(final Phase phase)
+    {
+        switch (phase)
+        {
+        case PRETEST_DOWN:
+        case RAMP:
+            return TestMetrics.Phase.PRETEST_DOWN;
+        case PING:
+            return TestMetrics.Phase.PING;
+        case DOWN:
+            return TestMetrics.Phase.DOWN;
+        case PRETEST_UP:
+            return TestMetrics.Phase.PRETEST_UP;
+        case UP:
+            return TestMetrics.Phase.UP;
+        default:
+            return null;
+        }
+    }
+    
+    public ThreadTestResult[] call()
+    {
+        log(String.format(Locale.US, "selector: started with %d streams.", streams));
+        final ThreadTestResult[] results = new ThreadTestResult[connections.length];
+        for (int i = 0; i < connections.length; i++)
+            results[i] = connections[i].testResult;
+        
+        try
+        {
+            selector = Selector.open();
+            
+            // connect while waiting for the test slot, the token is sent when
+            // it opens
+            client.awaitSlot(RMBTClient.PRECONNECT_MILLIS);
+            slotStart = System.nanoTime()
+                    + Math.max(0, params.getStartTime() - System.currentTimeMillis()) * 1000000L;
+            startPhase(Phase.CONNECT);
+            while (phase != Phase.END)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                
+                final long now = System.nanoTime();
+                long nextDeadline = Long.MAX_VALUE;
+                for (final Connection connection : connections)
+                    if (connection.isActive())
+                    {
+                        connection.checkDeadline(now);
+                        if (connection.deadline < nextDeadline)
+                            nextDeadline = connection.deadline;
+                    }
+                if (phase == Phase.END)
+                    break;
+                
+                if (params.isEarlyStop() && (phase == Phase.DOWN || phase == Phase.UP))
+                {
+                    if (client.isSteady())
+                    {
+                        for (final Connection connection : connections)
+                            if (connection.isActive())
+                                connection.stopEarly();
+                    }
+                    else if (nextDeadline == Long.MAX_VALUE || nextDeadline - now > SteadyStateDetector.STEP_NSEC)
+                        nextDeadline = now + SteadyStateDetector.STEP_NSEC; // sample again
+                }
+                
+                if (nextDeadline == Long.MAX_VALUE)
+                    selector.select();
+                else
+                {
+                    final long timeout = (nextDeadline - System.nanoTime()) / 1000000L + 1;
+                    if (timeout > 0)
+                        selector.select(timeout);
+                    else
+                        selector.selectNow();
+                }
+                
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid())
+                        ((Connection) key.attachment()).handle(key);
+                }
+            }
+            
+            for (int i = streams; i < connections.length; i++)
+                results[i] = null;
+        }
+        catch (final InterruptedException e)
+        {
+            client.log("interrupted");
+            Thread.currentThread().interrupt();
+        }
+        catch (final ClosedSelectorException e)
+        {
+            client.log("interrupted (CSE)");
+            Thread.currentThread().interrupt();
+        }
+        catch (final Exception e)
+        {
+            client.log(e);
+            client.abortTest(true);
+        }
+        finally
+        {
+            for (final Connection connection : connections)
+                connection.close();
+            if (selector != null)
+                try
+                {
+                    selector.close();
+                }
+                catch (final IOException e)
+                {
+                    client.log(e);
+                }
+        }
+        return results;
+    }
+    
+    private void startPhase(final Phase newPhase) throws IOException
+    {
+        final TestMetrics.Phase metricsPhase = toMetricsPhase(newPhase);
+        if (phase == null || metricsPhase != toMetricsPhase(phase))
+        {
+            metrics.endPhase();
+            if (metricsPhase != null)
+                metrics.startPhase(metricsPhase, System.nanoTime());
+        }
+        phase = newPhase;
+        phaseDone = 0;
+        activeConnections = 0;
+        for (final Connection connection : connections)
+            if (connection.isActive())
+                activeConnections++;
+        
+        if (phase == Phase.END)
+            return;
+        
+        for (final Connection connection : connections)
+            if (connection.isActive())
+                connection.startPhase();
+    }
+    
+    private void onPhaseDone() throws IOException
+    {
+        if (++phaseDone < activeConnections)
+            return;
+        
+        switch (phase)
+        {
+        case CONNECT:
+            log("selector: all streams connected.");
+            startPhase(Phase.PRETEST_DOWN);
+            break;
+        
+        case PRETEST_DOWN:
+        case RAMP:
+            for (final Connection connection : connections)
+                if (connection.isActive())
+                    scaler.addPretest((long) connection.lastChunks * connection.chunksize, connection.lastNsec,
+                            connection.lastChunks);
+            final int target = scaler.decide(streams, phase == Phase.PRETEST_DOWN);
+            if (target > streams)
+            {
+                // new streams connect and run their pretest, the others keep
+                // the connection busy meanwhile
+                log(String.format(Locale.US, "selector: starting %d more streams.", target - streams));
+                for (int i = streams; i < target; i++)
+                    connections[i].closed = false;
+                streams = target;
+                startPhase(Phase.RAMP);
+                break;
+            }
+            for (int i = target; i < streams; i++)
+                connections[i].close();
+            streams = target;
+            client.setStatus(TestStatus.PING);
+            startPhase(Phase.PING);
+            break;
+        
+        case PING:
+            client.setStatus(TestStatus.DOWN);
+            startPhase(Phase.DOWN);
+            break;
+        
+        case DOWN:
+            client.setStatus(TestStatus.INIT_UP);
+            startPhase(Phase.PRETEST_UP);
+            break;
+        
+        case PRETEST_UP:
+            client.setStatus(TestStatus.UP);
+            startPhase(Phase.UP);
+            break;
+        
+        case UP:
+            startPhase(Phase.END);
+            break;
+        
+        default:
+            throw new IllegalStateException();
+        }
+    }
+    
+    private class Connection
+    {
+        private final int threadId;
+        // params with the test server of this stream
+        private final RMBTTestParameter serverParams;
+        private final ThreadTestResult testResult = new ThreadTestResult();
+        
+        private final SpeedSampleRing speedSamples = new SpeedSampleRing();
+        
+        private SocketChannel channel;
+        private TlsChannel tls;
+        private SelectionKey key;
+        private State state = State.IDLE;
+        private boolean reconnect;
+        private boolean closed;
+        private boolean acceptPending;
+        
+        // incoming line (write mode) and pending outgoing control lines (write mode)
+        private final ByteBuffer lineBuf = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        private final ControlLine line = new ControlLine();
+        private final ByteBuffer out = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        
+        private int chunksize;
+        // upload chunks are written as payload (chunksize - 1 bytes of zeros
+        // or a slice of the random file) plus terminator in one gathering write
+        private ByteBuffer payload;
+        private int payloadOffset;
+        private final ByteBuffer terminator = ByteBuffer.allocateDirect(1);
+        private final ByteBuffer[] chunkBuffers = new ByteBuffer[2];
+        
+        private long totalIn;
+        private long totalOut;
+        
+        private SingleResult result;
+        private long deadline = Long.MAX_VALUE;
+        private long timeStart;
+        private long totalData;
+        private byte lastByte;
+        private int chunks;
+        private int chunksLeft;
+        private long pretestEnd;
+        private boolean grow;
+        private long roundStart;
+        private int lastChunks;
+        private long lastNsec;
+        private boolean lastChunk;
+        private long uploadEnd;
+        // end of the last phase, to get the wait for the next one
+        private long idleSince;
+        
+        private long pingStart;
+        private long pingEnd;
+        private int pingCount;
+        private LatencyHistogram pings;
+        private long shortestPing = Long.MAX_VALUE;
+        
+        private long connectStart;
+        private long dnsNsec;
+        private long tcpNsec;
+        private long handshakeStart;
+        private long handshakeStartMillis;
+        private long tlsNsec;
+        private long greetingStart;
+        private long greetingNsec;
+        private long tokenStart;
+        
+        Connection(final int threadId, final boolean active)
+        {
+            this.threadId = threadId;
+            serverParams = params.forStream(threadId);
+            testResult.server = serverParams.getServerIndex();
+            testResult.metrics = new StreamMetrics(threadId, false);
+            closed = !active;
+        }
+        
+        boolean isActive()
+        {
+            return !closed;
+        }
+        
+        void startPhase() throws IOException
+        {
+            deadline = Long.MAX_VALUE;
+            // streams added by the ramp up start their pretest once connected
+            final TestMetrics.Phase metricsPhase = toMetricsPhase(phase);
+            if (metricsPhase != null && phase != Phase.RAMP)
+                testResult.metrics.startPhase(metricsPhase, idleSince);
+            switch (phase)
+            {
+            case CONNECT:
+                connect();
+                break;
+            
+            case PRETEST_DOWN:
+            case PRETEST_UP:
+                startPretest();
+                break;
+            
+            case RAMP:
+                if (channel == null)
+                    connect(); // new stream, starts its pretest when connected
+                else
+                {
+                    // continue with rounds of the same size
+                    pretestEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
+                    grow = false;
+                    awaitAccept();
+                }
+                break;
+            
+            case PING:
+                if (threadId == 0) // only one thread pings!
+                {
+                    log(String.format(Locale.US, "thread %d: ping test, %d pings", threadId, params.getPingCount()));
+                    pingCount = 0;
+                    pings = new LatencyHistogram();
+                    awaitAccept();
+                }
+                else
+                {
+                    testResult.ping_shortest = Long.MAX_VALUE;
+                    phaseDone();
+                }
+                break;
+            
+            case DOWN:
+            case UP:
+                speedSamples.reset();
+                result = client.newSingleResult(phase == Phase.UP, threadId);
+                awaitAccept();
+                break;
+            
+            default:
+                throw new IllegalStateException();
+            }
+        }
+        
+        private void startPretest() throws IOException
+        {
+            speedSamples.reset();
+            chunks = 1;
+            grow = true;
+            pretestEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
+            awaitAccept();
+        }
+        
+        private void phaseDone() throws IOException
+        {
+            if (phase == Phase.DOWN)
+            {
+                testResult.down = result.getAllResults();
+                result.addCoarseSpeedItems(testResult.speedItems, false, threadId,
+                        serverParams.getAddressFamily());
+            }
+            else if (phase == Phase.UP)
+            {
+                testResult.up = result.getAllResults();
+                result.addCoarseSpeedItems(testResult.speedItems, true, threadId,
+                        serverParams.getAddressFamily());
+                testResult.totalDownBytes = totalIn;
+                testResult.totalUpBytes = totalOut;
+            }
+            if (result != null && (phase == Phase.DOWN || phase == Phase.UP))
+            {
+                speedSamples.add(result.getBytes(), result.getNsec());
+            }
+            
+            state = State.IDLE;
+            deadline = Long.MAX_VALUE;
+            idleSince = System.nanoTime();
+            testResult.metrics.endPhase();
+            onPhaseDone();
+        }
+        
+        private void connect() throws IOException
+        {
+            log(String.format(Locale.US, "thread %d: connecting...", threadId));
+            
+            connectStart = System.nanoTime();
+            final InetAddress inetAddress = RMBTClient.resolve(serverParams.getHost(),
+                    serverParams.getAddressFamily());
+            dnsNsec = System.nanoTime() - connectStart;
+            connectStart += dnsNsec;
+            tlsNsec = -1;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            state = State.GREETING;
+            acceptPending = false;
+            lineBuf.clear();
+            out.clear();
+            if (channel.connect(new InetSocketAddress(inetAddress, serverParams.getPort())))
+            {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+                connected();
+            }
+            else
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+        
+        private void connected() throws IOException
+        {
+            tcpNsec = System.nanoTime() - connectStart;
+            key.interestOps(SelectionKey.OP_READ);
+            
+            final Socket s = channel.socket();
+            testResult.ip_local = s.getLocalAddress();
+            testResult.ip_server = s.getInetAddress();
+            testResult.port_remote = s.getPort();
+            
+            log(String.format(Locale.US, "thread %d: ReceiveBufferSize: '%s'.", threadId, s.getReceiveBufferSize()));
+            log(String.format(Locale.US, "thread %d: SendBufferSize: '%s'.", threadId, s.getSendBufferSize()));
+            
+            if (client.getSslContext() == null)
+                greetingStart = System.nanoTime();
+            else if (handshaking == null)
+                startHandshake();
+            else
+                state = State.HANDSHAKE_WAIT;
+        }
+        
+        /**
+         * one connection at a time, so the others resume its session like in
+         * {@link RMBTTest}; the turn is passed on with the greeting, which
+         * comes after the TLS 1.3 session ticket
+         */
+        private void startHandshake() throws IOException
+        {
+            handshaking = this;
+            state = State.HANDSHAKE;
+            final Socket s = channel.socket();
+            final SSLEngine engine = client.getSslContext().createSSLEngine(s.getInetAddress().getHostAddress(),
+                    s.getPort());
+            engine.setUseClientMode(true);
+            handshakeStart = System.nanoTime();
+            handshakeStartMillis = System.currentTimeMillis();
+            tls = new TlsChannel(channel, engine);
+            continueHandshake();
+        }
+        
+        private void continueHandshake() throws IOException
+        {
+            if (!tls.handshake())
+            {
+                key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+                return;
+            }
+            tlsNsec = System.nanoTime() - handshakeStart;
+            final SSLSession session = tls.getEngine().getSession();
+            testResult.encryption = String.format(Locale.US, "%s (%s)", session.getProtocol(), session.getCipherSuite());
+            key.interestOps(SelectionKey.OP_READ);
+            state = State.GREETING;
+            greetingStart = System.nanoTime();
+        }
+        
+        private void passHandshakeTurn() throws IOException
+        {
+            handshaking = null;
+            for (final Connection connection : connections)
+                if (connection.state == State.HANDSHAKE_WAIT && connection.isActive())
+                {
+                    connection.startHandshake();
+                    return;
+                }
+        }
+        
+        void handle(final SelectionKey key) throws IOException
+        {
+            if (key.isConnectable())
+            {
+                if (channel.finishConnect())
+                    connected();
+                return;
+            }
+            
+            if (state == State.HANDSHAKE_WAIT)
+                return;
+            if (state == State.HANDSHAKE)
+            {
+                continueHandshake();
+                // the greeting may have come with the last handshake flight
+                if (state == State.HANDSHAKE || !tls.hasBufferedInput())
+                    return;
+            }
+            
+            if (key.isReadable() || tls != null && tls.hasBufferedInput())
+            {
+                // a TlsChannel may keep decrypted data the selector does not
+                // know about
+                do
+                {
+                    readBuf.clear();
+                    final int read = readChannel(readBuf);
+                    if (state == State.PONG)
+                        pingEnd = System.nanoTime(); // before parsing the line
+                    if (read < 0)
+                    {
+                        if (state != State.UPLOAD_DRAIN)
+                            throw new IllegalStateException("connection lost");
+                        // server gave up on the rest of the upload
+                        closeChannel();
+                        state = State.IDLE;
+                        return;
+                    }
+                    totalIn += read;
+                    readBuf.flip();
+                    while (readBuf.hasRemaining() && !closed)
+                    {
+                        if (state == State.DATA)
+                            readData();
+                        else
+                            readLine();
+                    }
+                }
+                while (!closed && tls != null && tls.hasBufferedInput());
+            }
+            
+            if (!closed && key.isValid() && key.isWritable())
+                write();
+            
+            if (tls != null && tls.hasPendingOutput() && this.key.isValid())
+                this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        
+        private int readChannel(final ByteBuffer dst) throws IOException
+        {
+            return tls != null ? tls.read(dst) : channel.read(dst);
+        }
+        
+        private int writeChannel(final ByteBuffer src) throws IOException
+        {
+            return tls != null ? tls.write(src) : channel.write(src);
+        }
+        
+        private long writeChannel(final ByteBuffer[] srcs) throws IOException
+        {
+            return tls != null ? tls.write(srcs) : channel.write(srcs);
+        }
+        
+        private void readLine() throws IOException
+        {
+            while (readBuf.hasRemaining())
+            {
+                if (!lineBuf.hasRemaining())
+                    throw new IllegalStateException("line too long");
+                final byte b = readBuf.get();
+                lineBuf.put(b);
+                if (b == '\n')
+                {
+                    lineBuf.flip();
+                    ControlLineCodec.decode(lineBuf, line);
+                    lineBuf.clear(); // content stays valid until the next put
+                    handleLine();
+                    return;
+                }
+            }
+        }
+        
+        private void readData() throws IOException
+        {
+            final int read = readBuf.remaining();
+            final int posLast = chunksize - 1 - (int) (totalData % chunksize);
+            if (read > posLast)
+                lastByte = readBuf.get(readBuf.position() + posLast + (read - 1 - posLast) / chunksize * chunksize);
+            readBuf.position(readBuf.limit());
+            totalData += read;
+            
+            if (phase == Phase.DOWN)
+            {
+                final long nsec = System.nanoTime() - timeStart;
+                if (testResult.metrics.ttfb < 0)
+                    testResult.metrics.ttfb = nsec;
+                result.addResult(totalData, nsec);
+                speedSamples.add(totalData, nsec);
+            }
+            
+            if (lastByte == (byte) 0xff)
+                endData();
+        }
+        
+        private void endData() throws IOException
+        {
+            final long timeEnd = System.nanoTime();
+            if (phase == Phase.PRETEST_DOWN || phase == Phase.RAMP)
+            {
+                // statistics for the scaler, without the OK/TIME exchange
+                lastNsec = timeEnd - roundStart;
+                lastChunks = chunks;
+            }
+            send(Command.OK);
+            state = State.DATA_TIME;
+            deadline = Long.MAX_VALUE;
+            
+            if (phase == Phase.DOWN)
+            {
+                final long nsec = timeEnd - timeStart;
+                result.addResult(totalData, nsec);
+                speedSamples.add(totalData, nsec);
+                
+                if (lastByte != (byte) 0xff)
+                {
+                    // time is up without termination: socket needs to be reinitialized
+                    closeChannel();
+                    reconnect = true;
+                    connect();
+                }
+            }
+        }
+        
+        private void handleLine() throws IOException
+        {
+            switch (state)
+            {
+            case GREETING:
+                if (!line.equalsAscii(EXPECT_GREETING))
+                    throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected '%s'",
+                            threadId, line, EXPECT_GREETING));
+                state = State.ACCEPT_TOKEN;
+                break;
+            
+            case ACCEPT_TOKEN:
+                expectAccept();
+                greetingNsec = System.nanoTime() - greetingStart;
+                if (tls != null && handshaking == this)
+                {
+                    client.addHandshake(tls.getEngine().getSession(), handshakeStartMillis, tlsNsec);
+                    passHandshakeTurn();
+                }
+                if (System.nanoTime() < slotStart)
+                {
+                    state = State.SLOT;
+                    deadline = slotStart;
+                }
+                else
+                    sendToken();
+                break;
+            
+            case TOKEN_OK:
+                if (line.getCommand() != Command.OK)
+                    throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected 'OK'",
+                            threadId, line));
+                state = State.CHUNKSIZE;
+                break;
+            
+            case CHUNKSIZE:
+                if (line.getCommand() != Command.CHUNKSIZE || line.getValue() <= 0
+                        || line.getValue() > Integer.MAX_VALUE)
+                    throw new IllegalStateException(String.format(Locale.US,
+                            "thread %d: got '%s' expected 'CHUNKSIZE'", threadId, line));
+                chunksize = (int) line.getValue();
+                log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, chunksize));
+                if (testResult.connects.isEmpty())
+                {
+                    final ConnectTiming connectTiming = new ConnectTiming(threadId, dnsNsec, tcpNsec, tlsNsec,
+                            greetingNsec, System.nanoTime() - tokenStart);
+                    testResult.connects.add(connectTiming);
+                    testResult.metrics.connect = connectTiming;
+                    client.logConnectTiming(connectTiming);
+                }
+                if (reconnect)
+                {
+                    reconnect = false;
+                    log(String.format(Locale.US, "thread %d: reconnected", threadId));
+                }
+                else
+                    log(String.format(Locale.US, "thread %d: connected, waiting for rest...", threadId));
+                if (phase == Phase.RAMP)
+                {
+                    testResult.metrics.startPhase(TestMetrics.Phase.PRETEST_DOWN, System.nanoTime());
+                    startPretest();
+                }
+                else
+                    phaseDone();
+                break;
+            
+            case ACCEPT:
+                expectAccept();
+                sendCommand();
+                break;
+            
+            case IDLE:
+                // server is ready before the other streams are
+                expectAccept();
+                acceptPending = true;
+                break;
+            
+            case DATA_TIME:
+                if (phase == Phase.PRETEST_DOWN || phase == Phase.RAMP)
+                    nextPretestRound();
+                else
+                    phaseDone();
+                break;
+            
+            case PUT_OK:
+                if (line.getCommand() != Command.OK)
+                    throw new IllegalStateException();
+                startUpload();
+                break;
+            
+            case UPLOAD:
+            case UPLOAD_TIME:
+                handleUploadLine();
+                break;
+            
+            case UPLOAD_DRAIN:
+                if (line.getCommand() == Command.ACCEPT)
+                    acceptPending = true;
+                else if (line.getCommand() != Command.TIME)
+                    throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected 'TIME'",
+                            threadId, line));
+                if (!line.hasBytes())
+                    state = State.IDLE;
+                break;
+            
+            case PONG:
+                send(Command.OK);
+                if (line.getCommand() != Command.PONG)
+                    throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected 'PONG'",
+                            threadId, line));
+                state = State.PING_TIME;
+                break;
+            
+            case PING_TIME:
+                final long diffClient = pingEnd - pingStart;
+                final long diffServer = parseTime();
+                if (diffClient < shortestPing)
+                    shortestPing = diffClient;
+                testResult.pings.add(new Ping(diffClient, diffServer));
+                pings.add(diffClient);
+                client.setPings(pings);
+                
+                if (++pingCount < params.getPingCount())
+                    state = State.ACCEPT;
+                else
+                {
+                    testResult.ping_shortest = shortestPing;
+                    phaseDone();
+                }
+                break;
+            
+            default:
+                throw new IllegalStateException(String.format(Locale.US, "thread %d: unexpected '%s'", threadId, line));
+            }
+        }
+        
+        private void awaitAccept() throws IOException
+        {
+            if (acceptPending)
+            {
+                acceptPending = false;
+                sendCommand();
+            }
+            else
+                state = State.ACCEPT;
+        }
+        
+        private void expectAccept()
+        {
+            if (line.getCommand() != Command.ACCEPT)
+                throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'",
+                        threadId, line));
+        }
+        
+        private void sendCommand() throws IOException
+        {
+            totalData = 0;
+            lastByte = (byte) 0;
+            switch (phase)
+            {
+            case PRETEST_DOWN:
+            case RAMP:
+                log(String.format(Locale.US, "thread %d: getting %d chunk(s)", threadId, chunks));
+                roundStart = System.nanoTime();
+                send(Command.GETCHUNKS, chunks);
+                state = State.DATA;
+                break;
+            
+            case PING:
+                ControlLineCodec.encode(out, Command.PING);
+                pingStart = System.nanoTime();
+                flush();
+                state = State.PONG;
+                break;
+            
+            case DOWN:
+                log(String.format(Locale.US, "thread %d: download test %d seconds", threadId, params.getDuration()));
+                timeStart = System.nanoTime();
+                deadline = timeStart + params.getDuration() * nsecsL;
+                send(Command.GETTIME, params.getDuration());
+                state = State.DATA;
+                break;
+            
+            case PRETEST_UP:
+                log(String.format(Locale.US, "thread %d: putting %d chunk(s)", threadId, chunks));
+                send(Command.PUTNORESULT);
+                state = State.PUT_OK;
+                break;
+            
+            case UP:
+                log(String.format(Locale.US, "thread %d: upload test %d seconds", threadId, params.getDuration()));
+                send(Command.PUT);
+                state = State.PUT_OK;
+                break;
+            
+            default:
+                throw new IllegalStateException();
+            }
+        }
+        
+        private void nextPretestRound() throws IOException
+        {
+            if (grow)
+                chunks = Math.min(chunks * 2, MAX_CHUNKS);
+            if (System.nanoTime() < pretestEnd)
+                state = State.ACCEPT;
+            else
+                phaseDone();
+        }
+        
+        private void startUpload() throws IOException
+        {
+            state = State.UPLOAD;
+            lastChunk = false;
+            chunksLeft = chunks;
+            timeStart = System.nanoTime();
+            if (params.getUploadPayload() == RMBTTestParameter.UploadPayload.RANDOM_FILE)
+                payload = RMBTClient.getRandomPayload(chunksize).newView();
+            else if (payload == null || payload.capacity() != chunksize - 1)
+                payload = ByteBuffer.allocateDirect(chunksize - 1);
+            chunkBuffers[0] = payload;
+            chunkBuffers[1] = terminator;
+            terminator.position(terminator.limit()); // next write starts a new chunk
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        
+        private void handleUploadLine() throws IOException
+        {
+            if (phase == Phase.PRETEST_UP)
+            {
+                // TIME line of PUTNORESULT
+                nextPretestRound();
+                return;
+            }
+            
+            if (line.getCommand() == Command.TIME && line.hasBytes())
+            {
+                final long nsec = line.getValue();
+                final long bytes = line.getBytes();
+                result.addResult(bytes, nsec);
+                speedSamples.add(bytes, nsec);
+                
+                long enoughTime = params.getDuration() * nsecsL - UPLOAD_MAX_DISCARD_TIME;
+                if (enoughTime < 0)
+                    enoughTime = 0;
+                if (state == State.UPLOAD_TIME && System.nanoTime() - uploadEnd > UPLOAD_SETTLE_NSECS
+                        && nsec > enoughTime)
+                    endUploadEarly();
+            }
+            else
+            {
+                parseTime();
+                phaseDone();
+            }
+        }
+        
+        /**
+         * ends the upload without the last TIME line; the lines the server
+         * still sends are dropped up to it, the other streams may not be done
+         */
+        private void endUploadEarly() throws IOException
+        {
+            phaseDone();
+            state = State.UPLOAD_DRAIN;
+        }
+        
+        private void write() throws IOException
+        {
+            if (tls != null && !tls.flush())
+                return;
+            if (out.position() > 0)
+            {
+                out.flip();
+                totalOut += writeChannel(out);
+                out.compact();
+                if (tls != null)
+                    tls.flush();
+                if (out.position() > 0)
+                    return;
+            }
+            
+            if (state != State.UPLOAD)
+            {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            
+            int written = 0;
+            while (written < WRITE_BATCH_SIZE)
+            {
+                if (!terminator.hasRemaining())
+                {
+                    if (lastChunk)
+                    {
+                        if (tls != null)
+                            tls.flush();
+                        key.interestOps(SelectionKey.OP_READ);
+                        state = State.UPLOAD_TIME;
+                        uploadEnd = System.nanoTime();
+                        if (phase == Phase.UP)
+                            deadline = uploadEnd + UPLOAD_MAX_WAIT_NSECS + UPLOAD_CANCEL_WAIT_NSECS;
+                        return;
+                    }
+                    
+                    if (phase == Phase.PRETEST_UP)
+                        lastChunk = --chunksLeft == 0;
+                    else
+                        lastChunk = System.nanoTime() - timeStart > params.getDuration() * nsecsL
+                                || client.isSteady();
+                    
+                    payloadOffset = RandomPayload.nextSlice(payload, payloadOffset, chunksize - 1);
+                    terminator.clear();
+                    terminator.put(0, lastChunk ? (byte) 0xff : (byte) 0);
+                }
+                
+                final int w = (int) writeChannel(chunkBuffers);
+                if (w == 0)
+                    return;
+                totalOut += w;
+                written += w;
+            }
+            if (tls != null)
+                tls.flush();
+        }
+        
+        private void send(final Command command) throws IOException
+        {
+            ControlLineCodec.encode(out, command);
+            flush();
+        }
+        
+        private void send(final Command command, final long value) throws IOException
+        {
+            ControlLineCodec.encode(out, command, value);
+            flush();
+        }
+        
+        /**
+         * writes the encoded control lines; what the socket does not take is
+         * written as soon as the channel becomes writable
+         */
+        private void flush() throws IOException
+        {
+            out.flip();
+            totalOut += writeChannel(out);
+            out.compact();
+            if (tls != null)
+                tls.flush();
+            if (out.position() > 0 || tls != null && tls.hasPendingOutput())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        
+        private long parseTime()
+        {
+            if (line.getCommand() != Command.TIME)
+                throw new IllegalStateException(String.format(Locale.US, "got '%s' expected 'TIME'", line));
+            return line.getValue();
+        }
+        
+        void checkDeadline(final long now) throws IOException
+        {
+            if (now < deadline)
+                return;
+            
+            if (state == State.DATA && phase == Phase.DOWN)
+                endData();
+            else if (state == State.UPLOAD_TIME && phase == Phase.UP)
+                endUploadEarly();
+            else if (state == State.SLOT)
+            {
+                deadline = Long.MAX_VALUE;
+                sendToken();
+            }
+            else
+                deadline = Long.MAX_VALUE;
+        }
+        
+        private void sendToken() throws IOException
+        {
+            tokenStart = System.nanoTime();
+            ControlLineCodec.encodeToken(out, serverParams.getToken());
+            flush();
+            state = State.TOKEN_OK;
+        }
+        
+        /**
+         * ends the download like its deadline; the upload ends with its next
+         * chunk by itself
+         */
+        void stopEarly() throws IOException
+        {
+            if (state == State.DATA && phase == Phase.DOWN)
+                endData();
+        }
+        
+        private void closeChannel()
+        {
+            if (channel != null)
+                try
+                {
+                    if (tls != null)
+                        tls.close();
+                    else
+                        channel.close();
+                }
+                catch (final IOException e)
+                {
+                    client.log(e);
+                }
+            if (handshaking == this)
+                handshaking = null;
+            channel = null;
+            tls = null;
+            key = null;
+        }
+        
+        void close()
+        {
+            closed = true;
+            closeChannel();
+        }
+    }
+    
+    private void log(final CharSequence text)
+    {
+        client.log(text);
+    }
+}
@@ -15,17 +15,16 @@
  ******************************************************************************/
 package at.alladin.rmbt.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.InputMismatchException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Locale;
-import java.util.Scanner;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CyclicBarrier;
@@ -34,15 +33,16 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.MatchResult;
-import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
+import at.alladin.rmbt.client.TestMetrics.Phase;
 import at.alladin.rmbt.client.helper.Config;
 import at.alladin.rmbt.client.helper.TestStatus;
+import at.alladin.rmbt.shared.protocol.ControlLine;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec;
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
 
 public class RMBTTest implements Callable<ThreadTestResult>
 {
@@ -52,11 +52,13 @@ public class RMBTTest implements Callable<ThreadTestResult>
     private static final String EXPECT_GREETING = Config.RMBT_VERSION_STRING;
     private static final long UPLOAD_MAX_DISCARD_TIME = 2 * nsecsL;
     private static final long UPLOAD_MAX_WAIT_SECS = 3;
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKS = 300000; // GETCHUNKS limit of the test server
     
     private final RMBTClient client;
     private final RMBTTestParameter params;
     private final CyclicBarrier barrier;
-    private final AtomicBoolean fallbackToOneThread;
+    private final StreamScaler scaler;
     private final int threadId;
     
     private final boolean doDownload = true;
@@ -65,184 +67,66 @@ public class RMBTTest implements Callable<ThreadTestResult>
     private int chunksize;
     private byte[] buf;
     
-    private final AtomicLong curTransfer = new AtomicLong();
-    private final AtomicLong curTime = new AtomicLong();
+    // only used with Transport.CHANNEL
+    private SocketChannel channel;
+    private ByteBuffer directBuf;
+    private long channelDown;
+    private long channelUp;
+    
+    // only used with UploadPayload.RANDOM_FILE: view of the mapped file; on
+    // the channel transport a gathering write of a slice of it and the
+    // terminator byte
+    private ByteBuffer payload;
+    private int payloadOffset;
+    private final ByteBuffer terminator = ByteBuffer.allocateDirect(1);
+    private ByteBuffer[] chunkBuffers;
+    
+    private final SpeedSampleRing speedSamples = new SpeedSampleRing();
+    private StreamMetrics metrics;
     
     private InputStreamCounter in;
-    private BufferedReader reader;
     private OutputStreamCounter out;
     
+    // control lines; reused for every command and reply
+    private final ByteBuffer lineBuf = ByteBuffer.allocate(4096);
+    private final ControlLine line = new ControlLine();
+    private final ByteBuffer sendBuf = ByteBuffer.allocate(256);
+    
     private long totalDown;
     private long totalUp;
     
-    private final long minDiffTime;
-    private final int maxCoarseResults;
-    private final int maxFineResults;
-    
-    private class SingleResult
-    {
-        private final Results fine;
-        private final Results coarse;
-        
-        private int fineResults = 0;
-        private int coarseResults = 0;
-        
-        SingleResult()
-        {
-            fine = new Results(maxFineResults);
-            coarse = new Results(maxCoarseResults);
-        }
-        
-        public void addResult(final long newBytes, final long newNsec)
-        {
-            
-            boolean addToCoarse = coarseResults == 0;
-            if (! addToCoarse)
-            {
-                final long diffTime = newNsec - coarse.nsec[(coarseResults - 1) % coarse.nsec.length];
-                if (diffTime > minDiffTime)
-                    addToCoarse = true;
-            }
-            
-            if (addToCoarse)
-            {
-                int coarsePos = coarseResults++ % coarse.bytes.length;
-                coarse.bytes[coarsePos] = newBytes;
-                coarse.nsec[coarsePos] = newNsec;
-            }
-            
-            int finePos = fineResults++ % fine.bytes.length;
-            fine.bytes[finePos] = newBytes;
-            fine.nsec[finePos] = newNsec;
-        }
-        
-//        @SuppressWarnings("unused")
-//        void logResult(final String type)
-//        {
-//            log(String.format(Locale.US, "thread %d - Time Diff %d", threadId, nsec));
-//            log(String.format(Locale.US, "thread %d: %.0f kBit/s %s (%.2f kbytes / %.3f secs)", threadId, getSpeed() / 1e3, type,
-//                    getBytes() / 1e3, getNsec() / nsecs));
-//        }
-        
-//        // bit/s
-//        double getSpeed()
-//        {
-//            return (double) getBytes() / (double) getNsec() * nsecs * 8.0;
-//        }
-        
-        public long getBytes()
-        {
-            if (fineResults == 0)
-                return 0;
-            else
-                return fine.bytes[(fineResults - 1) % fine.bytes.length];
-        }
-        
-        public long getNsec()
-        {
-            if (fineResults == 0)
-                return 0;
-            else
-                return fine.nsec[(fineResults - 1) % fine.nsec.length];
-        }
-        
-        public Results getAllResults()
-        {
-            final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
-            final int numResultsFine = Math.min(fineResults, maxFineResults);
-            final int numResults = numResultsCoarse + numResultsFine;
-            
-            long[] resultBytes = new long[numResults];
-            long[] resultNsec = new long[numResults];
-            
-            int results = 0;
-            int posCoarse = coarseResults - numResultsCoarse;
-            int posFine = fineResults - numResultsFine;
-            
-            while (results < numResults && (posCoarse < coarseResults || posFine < fineResults))
-            {
-                final boolean coarseAvail = posCoarse < coarseResults;
-                final boolean fineAvail = posFine < fineResults;
-                final long thisCoarse = coarseAvail ? coarse.nsec[posCoarse % coarse.nsec.length] : -1;
-                final long thisFine = fineAvail ? fine.nsec[posFine % fine.nsec.length] : -1;
-                
-                if ((thisFine <= thisCoarse || thisCoarse == -1) && fineAvail)
-                {
-                    resultNsec[results] = thisFine;
-                    resultBytes[results++] = fine.bytes[posFine++ % fine.bytes.length];
-                    
-                    if (thisFine == thisCoarse && coarseAvail)
-                        posCoarse++;
-                }
-                else if ((thisCoarse < thisFine || thisFine == -1) && coarseAvail)
-                {
-                    resultNsec[results] = thisCoarse;
-                    resultBytes[results++] = coarse.bytes[posCoarse++ % coarse.bytes.length];
-                }
-                else // shoudn't happen; avoid endless loop
-                    break;
-            }
-            
-            if (results < numResults)
-            {
-//                resultBytes = Arrays.copyOf(resultBytes, results); // copyOf not avail in android sdk < 9
-//                resultNsec = Arrays.copyOf(resultNsec, results);
-                
-                long[] newResultBytes = new long[results];
-                long[] newResultNsec = new long[results];
-                System.arraycopy(resultBytes, 0, newResultBytes, 0, results);
-                System.arraycopy(resultNsec, 0, newResultNsec, 0, results);
-                resultBytes = newResultBytes;
-                resultNsec = newResultNsec;
-            }
-            final Results result = new Results(resultBytes, resultNsec);
-            return result;
-        }
-        
-        public void addCoarseSpeedItems(List<SpeedItem> list, boolean upload, int thread)
-        {
-            long lastNsec = 0;
-            final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
-            for (int i = 0; i < numResultsCoarse; i++)
-            {
-                final long nsec = coarse.nsec[i % coarse.nsec.length];
-                final long bytes = coarse.bytes[i % coarse.bytes.length];
-                final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
-                list.add(item);
-                lastNsec = nsec;
-            }
-            
-            final long nsec = getNsec();
-            if (nsec > lastNsec)
-            {
-                final long bytes = getBytes();
-                final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
-                list.add(item);
-            }
-        }
-    }
+    // setup times of the last open(), see ConnectTiming
+    private long dnsNsec;
+    private long tcpNsec;
+    private long tlsNsec;
+    private long greetingNsec;
     
     public RMBTTest(final RMBTClient client, final RMBTTestParameter params, final int threadId,
-            final CyclicBarrier barrier, final int storeResults, final long minDiffTime,
-            final AtomicBoolean fallbackToOneThread)
+            final CyclicBarrier barrier, final StreamScaler scaler)
     {
         this.client = client;
         this.params = params;
         this.threadId = threadId;
         this.barrier = barrier;
-        this.maxCoarseResults = storeResults;
-        this.maxFineResults = storeResults;
-        this.minDiffTime = minDiffTime;
-        this.fallbackToOneThread = fallbackToOneThread;
+        this.scaler = scaler;
     }
     
+    /**
+     * opens the TCP connection; encryption is added by {@link #open}
+     */
     private Socket getSocket(final String host, final int port) throws UnknownHostException, IOException
     {
+        channel = null;
         if (client.getSslSocketFactory() != null)
         {
-            final Socket socket = client.getSslSocketFactory().createSocket(host, port);
-            
-            return socket;
+            if (params.getTransport() == RMBTTestParameter.Transport.CHANNEL)
+                log(String.format(Locale.US, "thread %d: channel transport not available with encryption", threadId));
+            return new Socket(host, port);
+        }
+        else if (params.getTransport() == RMBTTestParameter.Transport.CHANNEL)
+        {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            return channel.socket();
         }
         else
             return new Socket(host, port);
@@ -254,153 +138,254 @@ public class RMBTTest implements Callable<ThreadTestResult>
         long time;
     }
     
-    public CurrentSpeed getCurrentSpeed(CurrentSpeed result)
+    public SpeedSampleRing getSpeedSamples()
     {
-        if (result == null)
-            result = new CurrentSpeed();
-        result.trans = curTransfer.get();
-        result.time = curTime.get();
-        return result;
+        return speedSamples;
     }
     
     private Socket connect(final TestResult testResult) throws IOException
+    {
+        final Socket s = open(testResult);
+        if (s == null || !login(testResult))
+            return null;
+        return s;
+    }
+    
+    /**
+     * resolves the host, connects, runs the TLS handshake and reads the
+     * greeting; may be done before the test slot opens
+     * 
+     * @return the socket or null if the greeting was wrong
+     */
+    private Socket open(final TestResult testResult) throws IOException
     {
         log(String.format(Locale.US, "thread %d: connecting...", threadId));
         
-        final InetAddress inetAddress = InetAddress.getByName(params.getHost());
-        final Socket s = getSocket(inetAddress.getHostAddress(), params.getPort());
-        
-        testResult.ip_local = s.getLocalAddress();
-        testResult.ip_server = s.getInetAddress();
-        
-        testResult.port_remote = s.getPort();
-        
-        if (s instanceof SSLSocket)
+        final long timeStart = System.nanoTime();
+        final InetAddress inetAddress = RMBTClient.resolve(params.getHost(), params.getAddressFamily());
+        final long timeResolved = System.nanoTime();
+        Socket s = getSocket(inetAddress.getHostAddress(), params.getPort());
+        final long timeConnected = System.nanoTime();
+        long handshakeStart = -1;
+        long handshakeStartMillis = -1;
+        long timeHandshake = -1;
+        boolean handshakeTurn = false;
+        try
+        {
+            if (client.getSslSocketFactory() != null)
+            {
+                final SSLSocket sslSocket = (SSLSocket) client.getSslSocketFactory().createSocket(s,
+                        inetAddress.getHostAddress(), params.getPort(), true);
+                s = sslSocket;
+                try
+                {
+                    handshakeTurn = client.awaitHandshakeTurn();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted before TLS handshake");
+                }
+                handshakeStart = System.nanoTime();
+                handshakeStartMillis = System.currentTimeMillis();
+                sslSocket.startHandshake();
+                timeHandshake = System.nanoTime();
+            }
+            
+            testResult.ip_local = s.getLocalAddress();
+            testResult.ip_server = s.getInetAddress();
+            
+            testResult.port_remote = s.getPort();
+            
+            if (s instanceof SSLSocket)
+            {
+                final SSLSocket sslSocket = (SSLSocket) s;
+                final SSLSession session = sslSocket.getSession();
+                testResult.encryption = String.format(Locale.US, "%s (%s)", session.getProtocol(),
+                        session.getCipherSuite());
+            }
+            
+            log(String.format(Locale.US, "thread %d: ReceiveBufferSize: '%s'.", threadId, s.getReceiveBufferSize()));
+            log(String.format(Locale.US, "thread %d: SendBufferSize: '%s'.", threadId, s.getSendBufferSize()));
+            
+            if (in != null)
+                totalDown += in.getCount();
+            if (out != null)
+                totalUp += out.getCount();
+            totalDown += channelDown;
+            channelDown = 0;
+            totalUp += channelUp;
+            channelUp = 0;
+            
+            in = new InputStreamCounter(s.getInputStream());
+            out = new OutputStreamCounter(s.getOutputStream());
+            lineBuf.clear();
+            lineBuf.flip();
+            
+            if (!readLine() || !line.equalsAscii(EXPECT_GREETING))
+            {
+                log(String.format(Locale.US, "thread %d: got '%s' expected '%s'", threadId, line,
+                        EXPECT_GREETING));
+                return null;
+            }
+            
+            if (!readLine() || line.getCommand() != Command.ACCEPT)
+            {
+                log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
+                return null;
+            }
+            
+            // only now: TLS 1.3 session tickets arrive after the handshake and
+            // are processed with the first read
+            if (timeHandshake >= 0)
+                client.addHandshake(((SSLSocket) s).getSession(), handshakeStartMillis,
+                        timeHandshake - handshakeStart);
+        }
+        finally
         {
-            final SSLSocket sslSocket = (SSLSocket) s;
-            final SSLSession session = sslSocket.getSession();
-            testResult.encryption = String.format(Locale.US, "%s (%s)", session.getProtocol(), session.getCipherSuite());
+            // also after a failed handshake or greeting, the next stream
+            // must not wait out the timeout
+            if (handshakeTurn)
+                client.passHandshakeTurn();
         }
         
-        log(String.format(Locale.US, "thread %d: ReceiveBufferSize: '%s'.", threadId, s.getReceiveBufferSize()));
-        log(String.format(Locale.US, "thread %d: SendBufferSize: '%s'.", threadId, s.getSendBufferSize()));
-        
-        if (in != null)
-            totalDown += in.getCount();
-        if (out != null)
-            totalUp += out.getCount();
-        
-        in = new InputStreamCounter(s.getInputStream());
-        reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 4096);
-        out = new OutputStreamCounter(s.getOutputStream());
+        dnsNsec = timeResolved - timeStart;
+        tcpNsec = timeConnected - timeResolved;
+        tlsNsec = timeHandshake < 0 ? -1 : timeHandshake - handshakeStart;
+        greetingNsec = System.nanoTime() - (timeHandshake < 0 ? timeConnected : timeHandshake);
+        return s;
+    }
+    
+    /**
+     * sends the token and reads the chunk size; the test server only answers
+     * once the test slot opened
+     * 
+     * @return false on an unexpected answer
+     */
+    private boolean login(final TestResult testResult) throws IOException
+    {
+        final long timeStart = System.nanoTime();
+        sendBuf.clear();
+        ControlLineCodec.encodeToken(sendBuf, params.getToken());
+        send();
         
-        String line = reader.readLine();
-        if (!line.equals(EXPECT_GREETING))
+        if (!readLine())
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected '%s'", threadId, line, EXPECT_GREETING));
-            return null;
+            log(String.format(Locale.US, "thread %d: got no answer expected 'OK'", threadId));
+            return false;
         }
-        
-        line = reader.readLine();
-        if (!line.startsWith("ACCEPT "))
+        else if (line.getCommand() != Command.OK)
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            return null;
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'OK'", threadId, line));
+            return false;
         }
         
-        final String send = String.format(Locale.US, "TOKEN %s\n", params.getToken());
-        
-        out.write(send.getBytes("US-ASCII"));
-        
-        line = reader.readLine();
-        
-        if (line == null)
+        if (!readLine() || !line.startsWithAscii("CHUNKSIZE"))
         {
-            log(String.format(Locale.US, "thread %d: got no answer expected 'OK'", threadId, line));
-            return null;
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'CHUNKSIZE'", threadId, line));
+            return false;
         }
-        else if (!line.equals("OK"))
+        if (line.getCommand() != Command.CHUNKSIZE || line.getValue() <= 0 || line.getValue() > Integer.MAX_VALUE)
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'OK'", threadId, line));
-            return null;
+            log(String.format(Locale.US, "thread %d: invalid CHUNKSIZE: '%s'", threadId, line));
+            return false;
         }
-        
-        line = reader.readLine();
-        final Scanner scanner = new Scanner(line);
-        try
+        if (testResult.connects.isEmpty())
         {
-            if (!"CHUNKSIZE".equals(scanner.next()))
-            {
-                log(String.format(Locale.US, "thread %d: got '%s' expected 'CHUNKSIZE'", threadId, line));
-                return null;
-            }
-            try
-            {
-                chunksize = scanner.nextInt();
-                log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, chunksize));
-            }
-            catch (final Exception e)
-            {
-                log(String.format(Locale.US, "thread %d: invalid CHUNKSIZE: '%s'", threadId, line));
-                return null;
-            }
-            if (buf == null || buf != null && buf.length != chunksize)
-                buf = new byte[chunksize];
-            return s;
+            final ConnectTiming connectTiming = new ConnectTiming(threadId, dnsNsec, tcpNsec, tlsNsec, greetingNsec,
+                    System.nanoTime() - timeStart);
+            testResult.connects.add(connectTiming);
+            metrics.connect = connectTiming;
+            client.logConnectTiming(connectTiming);
         }
-        finally
+        chunksize = (int) line.getValue();
+        log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, chunksize));
+        
+        if (buf == null || buf != null && buf.length != chunksize)
+            buf = new byte[chunksize];
+        if (channel != null)
         {
-            scanner.close();
+            final int directBufSize = Math.max(chunksize, CHANNEL_BUFFER_SIZE);
+            if (directBuf == null || directBuf.capacity() != directBufSize)
+                directBuf = ByteBuffer.allocateDirect(directBufSize);
         }
+        return true;
     }
     
     public ThreadTestResult call()
     {
         log(String.format(Locale.US, "thread %d: started.", threadId));
         final ThreadTestResult testResult = new ThreadTestResult();
+        testResult.server = params.getServerIndex();
+        metrics = new StreamMetrics(threadId, true);
+        testResult.metrics = metrics;
         Socket s = null;
         try
         {
             
-            s = connect(testResult);
+            // connect while waiting for the test slot, so the slot starts
+            // with the token instead of DNS, TCP and TLS setup
+            client.awaitSlot(RMBTClient.PRECONNECT_MILLIS);
+            s = open(testResult);
             if (s == null)
                 throw new Exception("error during connect to test server");
+            client.awaitSlot(0);
+            if (!login(testResult))
+                throw new Exception("error during connect to test server");
             
             log(String.format(Locale.US, "thread %d: connected, waiting for rest...", threadId));
-            barrier.await();
+            long waitStart = System.nanoTime();
+            if (barrier != null) // null for streams added by the scaler
+                barrier.await();
+            metrics.startPhase(Phase.PRETEST_DOWN, waitStart);
             
             /***** short download *****/
             {
-                final long targetTimeEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
+                long targetTimeEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
+                boolean grow = true;
                 int chunks = 1;
-                do
+                long lastNsec;
+                while (true)
                 {
-                    downloadChunks(chunks);
-                    chunks *= 2;
+                    int lastChunks;
+                    do
+                    {
+                        lastNsec = downloadChunks(chunks);
+                        lastChunks = chunks;
+                        if (grow)
+                            chunks = Math.min(chunks * 2, MAX_CHUNKS);
+                    }
+                    while (System.nanoTime() < targetTimeEnd);
+                    
+                    // decides on the number of streams; if streams are added,
+                    // keep the connection busy while they ramp up
+                    targetTimeEnd = scaler.pretestDone((long) lastChunks * chunksize, lastNsec, lastChunks);
+                    if (targetTimeEnd == 0)
+                        break;
+                    grow = false;
+                    chunks = lastChunks;
                 }
-                while (System.nanoTime() < targetTimeEnd);
-                
-                if (chunks <= 4)
-                    // connection is quite slow, we'll only use 1 thread
-                    fallbackToOneThread.set(true);
+                metrics.endPhase();
             }
             /*********************/
             
-            boolean _fallbackToOneThread;
+            final CyclicBarrier phaseBarrier = scaler.getBarrier(threadId);
+            if (phaseBarrier == null)
+                return null;
+            
             setStatus(TestStatus.PING);
             /***** ping *****/
             {
-                barrier.await();
-                
-                _fallbackToOneThread = fallbackToOneThread.get();
-                
-                if (_fallbackToOneThread && threadId != 0)
-                    return null;
+                waitStart = System.nanoTime();
+                phaseBarrier.await();
+                metrics.startPhase(Phase.PING, waitStart);
                 
                 long shortestPing = Long.MAX_VALUE;
                 if (threadId == 0) // only one thread pings!
                 {
-                    for (int i = 0; i < 5; i++)
+                    log(String.format(Locale.US, "thread %d: ping test, %d pings", threadId, params.getPingCount()));
+                    final LatencyHistogram pings = new LatencyHistogram();
+                    for (int i = 0; i < params.getPingCount(); i++)
                     {
                         final Ping ping = ping();
                         if (ping != null)
@@ -409,11 +394,13 @@ public class RMBTTest implements Callable<ThreadTestResult>
                                 shortestPing = ping.client;
                             
                             testResult.pings.add(ping);
+                            pings.add(ping.client);
+                            client.setPings(pings);
                         }
                     }
-                    client.setPing(shortestPing);
                 }
                 testResult.ping_shortest = shortestPing;
+                metrics.endPhase();
             }
             /*********************/
             
@@ -425,14 +412,17 @@ public class RMBTTest implements Callable<ThreadTestResult>
                 setStatus(TestStatus.DOWN);
                 /***** download *****/
                 
-                if (!_fallbackToOneThread)
-                    barrier.await();
+                // reset before the barrier, so the steady state detector
+                // never sums up pretest bytes
+                speedSamples.reset();
                 
-                curTransfer.set(0);
-                curTime.set(0);
+                waitStart = System.nanoTime();
+                phaseBarrier.await();
+                metrics.startPhase(Phase.DOWN, waitStart);
                 
-                final SingleResult result = new SingleResult();
+                final SingleResult result = client.newSingleResult(false, threadId);
                 final boolean reinitSocket = download(duration, 0, result);
+                metrics.endPhase();
                 if (reinitSocket)
                 {
                     s.close();
@@ -443,10 +433,9 @@ public class RMBTTest implements Callable<ThreadTestResult>
                 }
                 
                 testResult.down = result.getAllResults();
-                result.addCoarseSpeedItems(testResult.speedItems, false, threadId);
+                result.addCoarseSpeedItems(testResult.speedItems, false, threadId, params.getAddressFamily());
                 
-                curTransfer.set(result.getBytes());
-                curTime.set(result.getNsec());
+                speedSamples.add(result.getBytes(), result.getNsec());
                 
                 /*********************/
                 
@@ -458,11 +447,11 @@ public class RMBTTest implements Callable<ThreadTestResult>
                 setStatus(TestStatus.INIT_UP);
                 /***** short upload *****/
                 {
-                    if (!_fallbackToOneThread)
-                        barrier.await();
+                    waitStart = System.nanoTime();
+                    phaseBarrier.await();
+                    metrics.startPhase(Phase.PRETEST_UP, waitStart);
                     
-                    curTransfer.set(0);
-                    curTime.set(0);
+                    speedSamples.reset();
                     
                     final long targetTimeEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
                     int chunks = 1;
@@ -472,6 +461,7 @@ public class RMBTTest implements Callable<ThreadTestResult>
                         chunks *= 2;
                     }
                     while (System.nanoTime() < targetTimeEnd);
+                    metrics.endPhase();
                 }
                 /*********************/
                 
@@ -479,29 +469,31 @@ public class RMBTTest implements Callable<ThreadTestResult>
                 
                 setStatus(TestStatus.UP);
                 
-                curTransfer.set(0);
-                curTime.set(0);
+                speedSamples.reset();
                 
-                if (!_fallbackToOneThread)
-                    barrier.await();
+                waitStart = System.nanoTime();
+                phaseBarrier.await();
+                metrics.startPhase(Phase.UP, waitStart);
                 
-                final SingleResult result = new SingleResult();
+                final SingleResult result = client.newSingleResult(true, threadId);
                 
                 upload(duration, result);
+                metrics.endPhase();
                 
                 testResult.up = result.getAllResults();
-                result.addCoarseSpeedItems(testResult.speedItems, true, threadId);
+                result.addCoarseSpeedItems(testResult.speedItems, true, threadId, params.getAddressFamily());
                 
                 if (in != null)
                     totalDown += in.getCount();
                 if (out != null)
                     totalUp += out.getCount();
+                totalDown += channelDown;
+                totalUp += channelUp;
                 
                 testResult.totalDownBytes = totalDown;
                 testResult.totalUpBytes = totalUp;
                 
-                curTransfer.set(result.getBytes());
-                curTime.set(result.getNsec());
+                speedSamples.add(result.getBytes(), result.getNsec());
                 
                 /*********************/
             }
@@ -544,7 +536,10 @@ public class RMBTTest implements Callable<ThreadTestResult>
         return testResult;
     }
     
-    private void downloadChunks(final int chunks) throws InterruptedException, IOException
+    /**
+     * @return nanoseconds from the request to the last byte of the chunks
+     */
+    private long downloadChunks(final int chunks) throws InterruptedException, IOException
     {
         if (Thread.interrupted())
             throw new InterruptedException();
@@ -554,19 +549,10 @@ public class RMBTTest implements Callable<ThreadTestResult>
         
         log(String.format(Locale.US, "thread %d: getting %d chunk(s)", threadId, chunks));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
-        String send;
-        send = String.format(Locale.US, "GETCHUNKS %d\n", chunks);
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        final long timeStart = System.nanoTime();
+        send(Command.GETCHUNKS, chunks);
         
         // long expectBytes = chunksize * chunks;
         long totalRead = 0;
@@ -576,22 +562,22 @@ public class RMBTTest implements Callable<ThreadTestResult>
         {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            read = in.read(buf);
+            read = readData();
             if (read > 0)
             {
                 final int posLast = chunksize - 1 - (int) (totalRead % chunksize);
                 if (read > posLast)
-                    lastByte = buf[posLast];
+                    lastByte = getLastChunkByte(posLast, (int) read);
                 totalRead += read;
             }
         }
         while (read > 0 && lastByte != (byte) 0xff);
+        final long nsec = System.nanoTime() - timeStart;
         
-        send = "OK\n";
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        send(Command.OK);
         
-        line = reader.readLine(); // read TIME line
+        readLine(); // read TIME line
+        return nsec;
     }
     
     /**
@@ -619,52 +605,44 @@ public class RMBTTest implements Callable<ThreadTestResult>
         
         log(String.format(Locale.US, "thread %d: download test %d seconds", threadId, seconds));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
         final long timeStart = System.nanoTime();
         final long timeLatestEnd = timeStart + (seconds + additionalWait) * nsecsL;
         
-        String send;
-        send = String.format(Locale.US, "GETTIME %d\n", seconds);
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        send(Command.GETTIME, seconds);
         
         long totalRead = 0;
         long read;
         byte lastByte = (byte) 0;
         
+        // a steady state ends the download like the time limit; GETTIME cannot
+        // be cut short, so the socket is reinitialized in both cases
         do
         {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            read = in.read(buf);
+            read = readData();
             if (read > 0)
             {
                 final int posLast = chunksize - 1 - (int) (totalRead % chunksize);
                 if (read > posLast)
-                    lastByte = buf[posLast];
+                    lastByte = getLastChunkByte(posLast, (int) read);
                 totalRead += read;
                 
                 final long nsec = System.nanoTime() - timeStart;
+                if (totalRead == read)
+                    metrics.ttfb = nsec;
                 
                 result.addResult(totalRead, nsec);
-                curTransfer.set(totalRead);
-                curTime.set(nsec);
+                speedSamples.add(totalRead, nsec);
             }
         }
-        while (read > 0 && lastByte != (byte) 0xff && System.nanoTime() <= timeLatestEnd);
+        while (read > 0 && lastByte != (byte) 0xff && System.nanoTime() <= timeLatestEnd
+                && !client.isSteady());
         
         final long timeEnd = System.nanoTime();
-        send = "OK\n";
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        send(Command.OK);
         
         if (read <= 0)
         {
@@ -674,19 +652,14 @@ public class RMBTTest implements Callable<ThreadTestResult>
         
         final long nsec = timeEnd - timeStart;
         result.addResult(totalRead, nsec);
-        curTransfer.set(totalRead);
-        curTime.set(nsec);
+        speedSamples.add(totalRead, nsec);
         
         if (lastByte != (byte) 0xff)
             return true;
         
-        line = reader.readLine();
-        if (line == null)
+        if (!readLine())
             throw new IllegalStateException("connection lost");
-        final Scanner s = new Scanner(line);
-        s.findInLine("TIME (\\d+)");
-        s.close();
-        // result.nsecServer = Long.parseLong(s.match().group(1));
+        // result.nsecServer = line.getValue();
         return false;
         
     }
@@ -701,35 +674,20 @@ public class RMBTTest implements Callable<ThreadTestResult>
         
         log(String.format(Locale.US, "thread %d: putting %d chunk(s)", threadId, chunks));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
-        out.write("PUTNORESULT\n".getBytes("US-ASCII"));
-        out.flush();
+        send(Command.PUTNORESULT);
         
-        line = reader.readLine();
-        if (line == null)
+        if (!readLine())
             throw new IllegalStateException("connection lost");
-        if (!line.equals("OK"))
+        if (line.getCommand() != Command.OK)
             throw new IllegalStateException();
         
-        buf[chunksize - 1] = (byte) 0; // set last byte to continue value
-        
+        initUploadPayload();
         for (int i = 0; i < chunks; i++)
-        {
-            if (i == chunks - 1)
-                buf[chunksize - 1] = (byte) 0xff; // set last byte to
-                                                  // termination value
-            out.write(buf, 0, chunksize);
-        }
+            writeChunk(i == chunks - 1);
         
-        line = reader.readLine(); // TIME line
+        readLine(); // TIME line
     }
     
     /**
@@ -755,27 +713,18 @@ public class RMBTTest implements Callable<ThreadTestResult>
         
         log(String.format(Locale.US, "thread %d: upload test %d seconds", threadId, seconds));
         
-        long _enoughTime = (seconds - UPLOAD_MAX_DISCARD_TIME) * nsecsL;
+        long _enoughTime = seconds * nsecsL - UPLOAD_MAX_DISCARD_TIME;
         if (_enoughTime < 0)
             _enoughTime = 0;
         final long enoughTime = _enoughTime;
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
-        out.write("PUT\n".getBytes("US-ASCII"));
-        out.flush();
+        send(Command.PUT);
         
-        line = reader.readLine();
-        if (line == null)
+        if (!readLine())
             throw new IllegalStateException("connection lost");
-        if (!line.equals("OK"))
+        if (line.getCommand() != Command.OK)
             throw new IllegalStateException();
         
         final AtomicBoolean terminateIfEnough = new AtomicBoolean(false);
@@ -785,64 +734,33 @@ public class RMBTTest implements Callable<ThreadTestResult>
         {
             public Boolean call() throws Exception
             {
-                
-                final Pattern patternFull = Pattern.compile("TIME (\\d+) BYTES (\\d+)");
-                final Pattern patternTime = Pattern.compile("TIME (\\d+)");
-                
-                final Scanner s = new Scanner(reader);
-                try
+                // parses the lines in place in lineBuf; nothing is allocated per line
+                while (true)
                 {
-                    s.useDelimiter("\n");
-                    boolean terminate = false;
-                    do
+                    if (!readLine())
+                        throw new IllegalStateException("connection lost");
+                    if (line.getCommand() != Command.TIME)
                     {
-                        String next = null;
-                        try
-                        {
-                            next = s.next(patternFull);
-                        }
-                        catch (final InputMismatchException e)
-                        {
-                        }
-                        
-                        if (next == null)
-                        {
-                            next = s.next(patternTime);
-                            if (next == null)
-                            {
-                                System.out.println(s.nextLine());
-                                throw new IllegalStateException();
-                            }
-                            return false;
-                        }
-                        
-                        final MatchResult match = s.match();
-                        if (match.groupCount() == 2)
-                        {
-                            final long nsec = Long.parseLong(match.group(1));
-                            final long bytes = Long.parseLong(match.group(2));
-                            result.addResult(bytes, nsec);
-                            curTransfer.set(bytes);
-                            curTime.set(nsec);
-                        }
-                        
-                        if (terminateAtAllEvents.get())
-                            terminate = true;
-                        if (terminateIfEnough.get() && curTime.get() > enoughTime)
-                            terminate = true;
+                        log(String.format(Locale.US, "thread %d: got '%s' expected 'TIME'", threadId, line));
+                        throw new IllegalStateException();
                     }
-                    while (! terminate);
-                    return true;
-                }
-                finally
-                {
-                    s.close();
+                    if (!line.hasBytes())
+                        return false; // final TIME line
+                    
+                    final long nsec = line.getValue();
+                    result.addResult(line.getBytes(), nsec);
+                    speedSamples.add(line.getBytes(), nsec);
+                    
+                    if (terminateAtAllEvents.get())
+                        return true;
+                    if (terminateIfEnough.get() && nsec > enoughTime)
+                        return true;
                 }
             }
         });
         
         final long maxnsecs = seconds * 1000000000L;
-        buf[chunksize - 1] = (byte) 0; // set last byte to continue value
+        initUploadPayload();
         
         boolean end = false;
         final long timeStart = System.nanoTime();
@@ -850,30 +768,31 @@ public class RMBTTest implements Callable<ThreadTestResult>
         {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            if (System.nanoTime() - timeStart > maxnsecs)
-            {
-                // last package
-                buf[chunksize - 1] = (byte) 0xff; // set last byte to
-                                                  // termination value
-                end = true;
-            }
-            out.write(buf, 0, chunksize);
+            if (System.nanoTime() - timeStart > maxnsecs || client.isSteady())
+                end = true; // last package
+            writeChunk(end);
         }
         while (!end);
         
         // forces buffered bytes to be written out.
         out.flush();
         
-        Thread.sleep(100);
-        
-        terminateIfEnough.set(true);
-        
         Boolean returnValue = null;
         try
         {
             try
             {
-                returnValue = future.get(UPLOAD_MAX_WAIT_SECS, TimeUnit.SECONDS);
+                // give the reader 100 ms for the final result; waiting on the
+                // future instead of sleeping returns early if it is done already
+                try
+                {
+                    returnValue = future.get(100, TimeUnit.MILLISECONDS);
+                }
+                catch (final TimeoutException e)
+                {
+                    terminateIfEnough.set(true);
+                    returnValue = future.get(UPLOAD_MAX_WAIT_SECS, TimeUnit.SECONDS);
+                }
             }
             catch (final TimeoutException e)
             {
@@ -901,42 +820,168 @@ public class RMBTTest implements Callable<ThreadTestResult>
         return returnValue;
     }
     
-    private Ping ping() throws IOException
+    /**
+     * reads the next control line into {@link #line}
+     * 
+     * @return false if the connection was closed before a complete line
+     * @throws IOException
+     */
+    private boolean readLine() throws IOException
+    {
+        while (!ControlLineCodec.decode(lineBuf, line))
+        {
+            lineBuf.compact();
+            if (!lineBuf.hasRemaining())
+                throw new IllegalStateException("line too long");
+            final int read = in.read(lineBuf.array(), lineBuf.arrayOffset() + lineBuf.position(), lineBuf.remaining());
+            if (read > 0)
+                lineBuf.position(lineBuf.position() + read);
+            lineBuf.flip();
+            if (read < 0)
+                return false;
+        }
+        return true;
+    }
+    
+    private void readAccept() throws IOException
+    {
+        if (!readLine())
+            throw new IllegalStateException("connection lost");
+        if (line.getCommand() != Command.ACCEPT)
+        {
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
+            throw new IllegalStateException();
+        }
+    }
+    
+    /**
+     * writes the content of sendBuf
+     */
+    private void send() throws IOException
+    {
+        out.write(sendBuf.array(), sendBuf.arrayOffset(), sendBuf.position());
+        out.flush();
+    }
+    
+    private void send(final Command command) throws IOException
     {
-        log(String.format(Locale.US, "thread %d: ping test", threadId));
+        sendBuf.clear();
+        ControlLineCodec.encode(sendBuf, command);
+        send();
+    }
+    
+    private void send(final Command command, final long value) throws IOException
+    {
+        sendBuf.clear();
+        ControlLineCodec.encode(sendBuf, command, value);
+        send();
+    }
+    
+    private void initUploadPayload() throws IOException
+    {
+        chunkBuffers = null;
+        payload = null;
+        if (params.getUploadPayload() != RMBTTestParameter.UploadPayload.RANDOM_FILE)
+            return;
+        
+        payload = RMBTClient.getRandomPayload(chunksize).newView();
+        // streams can't write from the mapping: writeChunk copies each slice
+        if (channel != null)
+            chunkBuffers = new ByteBuffer[] { payload, terminator };
+    }
+    
+    /**
+     * writes one chunk of upload data; the last byte of the chunk is 0xff for
+     * the last chunk and 0 otherwise
+     * 
+     * @throws IOException
+     */
+    private void writeChunk(final boolean last) throws IOException
+    {
+        final byte terminatorValue = last ? (byte) 0xff : (byte) 0;
+        if (chunkBuffers == null)
+        {
+            if (payload != null)
+            {
+                // a new slice for every chunk, the same one over and over
+                // would compress well
+                payloadOffset = RandomPayload.nextSlice(payload, payloadOffset, chunksize - 1);
+                payload.get(buf, 0, chunksize - 1);
+            }
+            buf[chunksize - 1] = terminatorValue;
+            out.write(buf, 0, chunksize);
+            return;
+        }
         
-        String line = reader.readLine();
-        if (!line.startsWith("ACCEPT "))
+        payloadOffset = RandomPayload.nextSlice(payload, payloadOffset, chunksize - 1);
+        terminator.clear();
+        terminator.put(0, terminatorValue);
+        while (terminator.hasRemaining())
+            channelUp += channel.write(chunkBuffers);
+    }
+    
+    /**
+     * reads the next block of test data, into buf for the stream transport or
+     * into directBuf for the channel transport
+     * 
+     * @return number of bytes read or -1 on end of stream
+     * @throws IOException
+     */
+    private int readData() throws IOException
+    {
+        if (channel == null)
+            return in.read(buf);
+        
+        directBuf.clear();
+        final int read = channel.read(directBuf);
+        if (read > 0)
+            channelDown += read;
+        return read;
+    }
+    
+    /**
+     * @param posLast
+     *            position of the first chunk end within the data just read
+     * @param read
+     *            number of bytes just read
+     * @return the terminator byte of the last chunk ending within the data
+     *         just read
+     */
+    private byte getLastChunkByte(final int posLast, final int read)
+    {
+        final int pos = posLast + (read - 1 - posLast) / chunksize * chunksize;
+        if (channel == null)
+            return buf[pos];
+        else
+            return directBuf.get(pos);
+    }
+    
+    /**
+     * one PING/PONG exchange; the client time is taken right around writing
+     * PING and reading PONG, logging is left to the caller
+     */
+    private Ping ping() throws IOException
+    {
+        if (!readLine() || line.getCommand() != Command.ACCEPT)
         {
             log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
             return null;
         }
         
-        final byte[] data = "PING\n".getBytes("US-ASCII");
+        sendBuf.clear();
+        ControlLineCodec.encode(sendBuf, Command.PING);
         final long timeStart = System.nanoTime();
-        out.write(data);
-        out.flush();
-        line = reader.readLine();
+        send();
+        final boolean gotLine = readLine();
         final long timeEnd = System.nanoTime();
-        out.write("OK\n".getBytes("US-ASCII"));
-        out.flush();
-        if (!line.equals("PONG"))
+        send(Command.OK);
+        if (!gotLine || line.getCommand() != Command.PONG)
             return null;
         
-        line = reader.readLine();
-        final Scanner s = new Scanner(line);
-        s.findInLine("TIME (\\d+)");
-        s.close();
-        
-        final long diffClient = timeEnd - timeStart;
-        final long diffServer = Long.parseLong(s.match().group(1));
-        
-        final double pingClient = diffClient / 1e6;
-        final double pingServer = diffServer / 1e6;
+        if (!readLine() || line.getCommand() != Command.TIME)
+            throw new IllegalStateException(String.format(Locale.US, "got '%s' expected 'TIME'", line));
         
-        log(String.format(Locale.US, "thread %d - client: %.3f ms ping", threadId, pingClient));
-        log(String.format(Locale.US, "thread %d - server: %.3f ms ping", threadId, pingServer));
-        return new Ping(diffClient, diffServer);
+        return new Ping(timeEnd - timeStart, line.getValue());
     }
     
     private void log(final CharSequence text)
@@ -15,11 +15,42 @@
  ******************************************************************************/
 package at.alladin.rmbt.client;
 
+import java.util.List;
+
 public class RMBTTestParameter
 {
     
     // immutable! (accessed by multiple threads!)
     
+    public enum Transport
+    {
+        /** blocking socket streams */
+        STREAM,
+        /** SocketChannel with direct buffers (plaintext only, falls back to STREAM with encryption) */
+        CHANNEL;
+    }
+    
+    public enum Engine
+    {
+        /** one blocking RMBTTest per thread */
+        THREADS,
+        /** one blocking RMBTTest per virtual thread (Java 21+, falls back to THREADS) */
+        VIRTUAL_THREADS,
+        /** all streams driven by one Selector, TLS through SSLEngine */
+        SELECTOR;
+    }
+    
+    public enum UploadPayload
+    {
+        /** zeroed chunks */
+        ZEROS,
+        /**
+         * random bytes from a memory-mapped file, sent with gathering writes
+         * on the channel transport (copied into the chunk buffer otherwise)
+         */
+        RANDOM_FILE;
+    }
+    
     private final String host;
     private final int port;
     private final boolean encryption;
@@ -29,6 +60,38 @@ public class RMBTTestParameter
     private final int numThreads;
     private final long startTime;
     
+    // bounds for the adaptive number of threads; set by the test server
+    private int minThreads;
+    private int maxThreads;
+    
+    // multi-server tests: all test servers, the streams use them in turn;
+    // null for a single server
+    private TestServer[] servers;
+    private int serverIndex;
+    // 4 or 6 for a stream of a dual-stack test, 0 for any family
+    private int addressFamily;
+    // dual-stack tests: names of host for each family, host if not known
+    private String hostIpv4;
+    private String hostIpv6;
+    
+    // optional settings; only assigned in constructors or on fresh copies
+    private Transport transport = Transport.STREAM;
+    private Engine engine = Engine.THREADS;
+    private UploadPayload uploadPayload = UploadPayload.ZEROS;
+    private double earlyStopTolerance = 0;
+    private long earlyStopWindowMillis = 2000;
+    private boolean latencyProbe;
+    private int pingCount = 5;
+    private int maxServers = 1;
+    private boolean dualStack;
+    private boolean compactResults;
+    private boolean uploadMetrics;
+    // samples of each stream kept for the result; 0 means one per
+    // sampleResolutionMillis for the whole duration
+    private long sampleResolutionMillis = 100;
+    private int maxFineSamples;
+    private int maxCoarseSamples;
+    
     public RMBTTestParameter(final String host, final int port, final boolean encryption, final String token,
             final int duration, final int numThreads, final long startTime)
     {
@@ -40,6 +103,261 @@ public class RMBTTestParameter
         this.duration = duration;
         this.numThreads = numThreads;
         this.startTime = startTime;
+        minThreads = numThreads;
+        maxThreads = numThreads;
+    }
+    
+    /**
+     * copies the test server values of base and the optional settings of
+     * options
+     */
+    private RMBTTestParameter(final RMBTTestParameter base, final RMBTTestParameter options)
+    {
+        this(base, options, base.host, base.port, base.token);
+        servers = base.servers;
+        serverIndex = base.serverIndex;
+        addressFamily = base.addressFamily;
+        hostIpv4 = base.hostIpv4;
+        hostIpv6 = base.hostIpv6;
+    }
+    
+    /**
+     * like {@link #RMBTTestParameter(RMBTTestParameter, RMBTTestParameter)},
+     * but for the test server host:port
+     */
+    private RMBTTestParameter(final RMBTTestParameter base, final RMBTTestParameter options, final String host,
+            final int port, final String token)
+    {
+        this(host, port, base.encryption, token, base.duration, base.numThreads, base.startTime);
+        minThreads = base.minThreads;
+        maxThreads = base.maxThreads;
+        transport = options.transport;
+        engine = options.engine;
+        uploadPayload = options.uploadPayload;
+        earlyStopTolerance = options.earlyStopTolerance;
+        earlyStopWindowMillis = options.earlyStopWindowMillis;
+        latencyProbe = options.latencyProbe;
+        pingCount = options.pingCount;
+        maxServers = options.maxServers;
+        dualStack = options.dualStack;
+        compactResults = options.compactResults;
+        uploadMetrics = options.uploadMetrics;
+        sampleResolutionMillis = options.sampleResolutionMillis;
+        maxFineSamples = options.maxFineSamples;
+        maxCoarseSamples = options.maxCoarseSamples;
+    }
+    
+    /**
+     * @return a copy of this parameter with the optional settings taken from
+     *         options
+     */
+    public RMBTTestParameter withOptionsOf(final RMBTTestParameter options)
+    {
+        return new RMBTTestParameter(this, options);
+    }
+    
+    public RMBTTestParameter withTransport(final Transport transport)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.transport = transport;
+        return result;
+    }
+    
+    public RMBTTestParameter withEngine(final Engine engine)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.engine = engine;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which lets the pretest choose between
+     *         minThreads and maxThreads threads; both are limited to at least
+     *         1 and maxThreads to at least minThreads
+     */
+    public RMBTTestParameter withThreadBounds(final int minThreads, final int maxThreads)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.minThreads = Math.max(1, minThreads);
+        result.maxThreads = Math.max(result.minThreads, maxThreads);
+        return result;
+    }
+    
+    public RMBTTestParameter withUploadPayload(final UploadPayload uploadPayload)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.uploadPayload = uploadPayload;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which ends the download and upload
+     *         phases as soon as the aggregate rate of all streams stayed within
+     *         +/- tolerance (e.g. 0.05 for 5 %) of its mean for windowMillis;
+     *         a tolerance of 0 turns early termination off
+     */
+    public RMBTTestParameter withEarlyStop(final double tolerance, final long windowMillis)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.earlyStopTolerance = Math.max(0, tolerance);
+        result.earlyStopWindowMillis = windowMillis;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which, if latencyProbe is set, measures
+     *         the round trip time on an extra connection during download and
+     *         upload
+     */
+    public RMBTTestParameter withLatencyProbe(final boolean latencyProbe)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.latencyProbe = latencyProbe;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter with pingCount (at least 1) PINGs in
+     *         the ping phase
+     */
+    public RMBTTestParameter withPingCount(final int pingCount)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.pingCount = Math.max(1, pingCount);
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter whose dual-stack streams connect to
+     *         hostIpv4 or hostIpv6 instead of the host; null keeps the host
+     */
+    public RMBTTestParameter withFamilyHosts(final String hostIpv4, final String hostIpv6)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.hostIpv4 = hostIpv4;
+        result.hostIpv6 = hostIpv6;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which spreads the streams over servers
+     *         (the first one being this parameter's server) in turn; a list of
+     *         less than two servers means a single-server test
+     */
+    public RMBTTestParameter withServers(final List<TestServer> servers)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.servers = servers.size() < 2 ? null : servers.toArray(new TestServer[servers.size()]);
+        result.serverIndex = 0;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which asks the control server for up to
+     *         maxServers (at least 1) test servers
+     */
+    public RMBTTestParameter withMaxServers(final int maxServers)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.maxServers = Math.max(1, maxServers);
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which, if dualStack is set, connects
+     *         the even streams over IPv4 and the odd ones over IPv6 (at least
+     *         two streams)
+     */
+    public RMBTTestParameter withDualStack(final boolean dualStack)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.dualStack = dualStack;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which, if compactResults is set, sends
+     *         the speed details of the result in the compact encoding when the
+     *         control server supports it
+     */
+    public RMBTTestParameter withCompactResults(final boolean compactResults)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.compactResults = compactResults;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which, if uploadMetrics is set, sends
+     *         the {@link TestMetrics} with the result
+     */
+    public RMBTTestParameter withUploadMetrics(final boolean uploadMetrics)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.uploadMetrics = uploadMetrics;
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which keeps a sample of each stream at
+     *         most every resolutionMillis (at least 1, default 100) for the
+     *         speed details, e.g. 10 for research runs
+     */
+    public RMBTTestParameter withSampleResolution(final long resolutionMillis)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.sampleResolutionMillis = Math.max(1, resolutionMillis);
+        return result;
+    }
+    
+    /**
+     * @return a copy of this parameter which keeps the last maxFineSamples
+     *         samples of each stream in full resolution (for the totals) and
+     *         the last maxCoarseSamples at the sample resolution (for the
+     *         speed details); 0 keeps as many as the duration at the sample
+     *         resolution needs, which is the default
+     */
+    public RMBTTestParameter withSampleRetention(final int maxFineSamples, final int maxCoarseSamples)
+    {
+        final RMBTTestParameter result = new RMBTTestParameter(this, this);
+        result.maxFineSamples = Math.max(0, maxFineSamples);
+        result.maxCoarseSamples = Math.max(0, maxCoarseSamples);
+        return result;
+    }
+    
+    /**
+     * @return this parameter with host, port and token of the server and the
+     *         address family of stream threadId; a dual-stack stream gets the
+     *         name of the server for its family
+     */
+    public RMBTTestParameter forStream(final int threadId)
+    {
+        if (servers == null && !dualStack)
+            return this;
+        // dual stack: both streams of a pair use the same server
+        final int slot = dualStack ? threadId / 2 : threadId;
+        final int family = dualStack ? threadId % 2 == 0 ? 4 : 6 : 0;
+        final RMBTTestParameter result;
+        if (servers == null)
+            result = new RMBTTestParameter(this, this, familyHost(host, hostIpv4, hostIpv6, family), port, token);
+        else
+        {
+            final int index = slot % servers.length;
+            final TestServer server = servers[index];
+            result = new RMBTTestParameter(this, this, familyHost(server.host, server.hostIpv4, server.hostIpv6,
+                    family), server.port, server.token);
+            result.servers = servers;
+            result.serverIndex = index;
+        }
+        result.addressFamily = family;
+        return result;
+    }
+    
+    private static String familyHost(final String host, final String hostIpv4, final String hostIpv6,
+            final int family)
+    {
+        final String result = family == 4 ? hostIpv4 : family == 6 ? hostIpv6 : null;
+        return result == null || result.length() == 0 ? host : result;
     }
     
     public String getHost()
@@ -87,9 +405,133 @@ public class RMBTTestParameter
         return numThreads;
     }
     
+    public int getMinThreads()
+    {
+        return minThreads;
+    }
+    
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+    
     public long getStartTime()
     {
         return startTime;
     }
     
+    public Transport getTransport()
+    {
+        return transport;
+    }
+    
+    public Engine getEngine()
+    {
+        return engine;
+    }
+    
+    public UploadPayload getUploadPayload()
+    {
+        return uploadPayload;
+    }
+    
+    public boolean isEarlyStop()
+    {
+        return earlyStopTolerance > 0;
+    }
+    
+    public double getEarlyStopTolerance()
+    {
+        return earlyStopTolerance;
+    }
+    
+    public long getEarlyStopWindowMillis()
+    {
+        return earlyStopWindowMillis;
+    }
+    
+    public boolean isLatencyProbe()
+    {
+        return latencyProbe;
+    }
+    
+    public int getPingCount()
+    {
+        return pingCount;
+    }
+    
+    public int getMaxServers()
+    {
+        return maxServers;
+    }
+    
+    public boolean isDualStack()
+    {
+        return dualStack;
+    }
+    
+    public boolean isCompactResults()
+    {
+        return compactResults;
+    }
+    
+    public boolean isUploadMetrics()
+    {
+        return uploadMetrics;
+    }
+    
+    public long getSampleResolutionMillis()
+    {
+        return sampleResolutionMillis;
+    }
+    
+    /**
+     * @return the number of full resolution samples kept per stream, 0 for the
+     *         default
+     */
+    public int getMaxFineSamples()
+    {
+        return maxFineSamples;
+    }
+    
+    /**
+     * @return the number of samples at the sample resolution kept per stream,
+     *         0 for the default
+     */
+    public int getMaxCoarseSamples()
+    {
+        return maxCoarseSamples;
+    }
+    
+    /**
+     * @return 4 or 6 for a stream of a dual-stack test (see
+     *         {@link #forStream(int)}), 0 for any address family
+     */
+    public int getAddressFamily()
+    {
+        return addressFamily;
+    }
+    
+    public int getServerCount()
+    {
+        return servers == null ? 1 : servers.length;
+    }
+    
+    /**
+     * @return test server index of a multi-server test; null for a single
+     *         server
+     */
+    public TestServer getServer(final int index)
+    {
+        return servers == null ? null : servers[index];
+    }
+    
+    /**
+     * @return the index of this parameter's server among all test servers
+     */
+    public int getServerIndex()
+    {
+        return serverIndex;
+    }
+    
 }
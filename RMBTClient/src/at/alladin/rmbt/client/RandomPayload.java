@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Incompressible upload payload: a temporary file of random bytes mapped into
+ * memory (like the "random" file the test server maps for the download).
+ * The mapping is read-only and shared; every connection sends slices of its
+ * own {@link #newView() view}, so the payload is never copied to the Java
+ * heap on the channel transport.
+ */
+class RandomPayload
+{
+    private static final int DEFAULT_SIZE = 4 * 1024 * 1024;
+    
+    private final ByteBuffer buffer;
+    
+    private RandomPayload(final ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+    
+    /**
+     * creates and maps a new random file of at least minSize bytes; the file
+     * itself is deleted right away, the mapping stays valid
+     */
+    static RandomPayload create(final int minSize) throws IOException
+    {
+        final int size = Math.max(DEFAULT_SIZE, minSize);
+        final File file = File.createTempFile("rmbt", ".random");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            final Random random = new Random();
+            final byte[] block = new byte[64 * 1024];
+            for (int written = 0; written < size; written += block.length)
+            {
+                random.nextBytes(block);
+                raf.write(block, 0, Math.min(block.length, size - written));
+            }
+            final FileChannel fileChannel = raf.getChannel();
+            return new RandomPayload(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        finally
+        {
+            raf.close();
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+    
+    int size()
+    {
+        return buffer.capacity();
+    }
+    
+    /**
+     * @return a view with its own position and limit onto the shared mapping
+     */
+    ByteBuffer newView()
+    {
+        return buffer.duplicate();
+    }
+    
+    /**
+     * sets position and limit of view to the next length bytes starting at
+     * offset, wrapping around at the end of the file
+     * 
+     * @return the offset of the following slice
+     */
+    static int nextSlice(final ByteBuffer view, final int offset, final int length)
+    {
+        final int start = offset + length > view.capacity() ? 0 : offset;
+        view.clear();
+        view.position(start);
+        view.limit(start + length);
+        return start + length;
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * CPU time of the current thread and garbage collection time of the VM.
+ * 
+ * java.lang.management is missing on Android, so it is used by reflection;
+ * there both methods return -1.
+ */
+final class RuntimeStats
+{
+    private static final Object THREAD_BEAN;
+    private static final Method THREAD_CPU_TIME;
+    private static final List<?> GC_BEANS;
+    private static final Method GC_TIME;
+    
+    static
+    {
+        Object threadBean = null;
+        Method threadCpuTime = null;
+        List<?> gcBeans = null;
+        Method gcTime = null;
+        try
+        {
+            final Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            final Class<?> threadClass = Class.forName("java.lang.management.ThreadMXBean");
+            if ((Boolean) threadClass.getMethod("isCurrentThreadCpuTimeSupported").invoke(threadBean))
+                threadCpuTime = threadClass.getMethod("getCurrentThreadCpuTime");
+            gcBeans = (List<?>) factory.getMethod("getGarbageCollectorMXBeans").invoke(null);
+            gcTime = Class.forName("java.lang.management.GarbageCollectorMXBean").getMethod("getCollectionTime");
+        }
+        catch (final Exception e)
+        {
+            // not available on this platform
+        }
+        THREAD_BEAN = threadBean;
+        THREAD_CPU_TIME = threadCpuTime;
+        GC_BEANS = gcBeans;
+        GC_TIME = gcTime;
+    }
+    
+    // Suppress default constructor for noninstantiability
+    private RuntimeStats()
+    {
+        throw new AssertionError();
+    }
+    
+    /**
+     * @return CPU time of the current thread in ns, -1 if not available
+     */
+    static long currentThreadCpuNsec()
+    {
+        if (THREAD_CPU_TIME == null)
+            return -1;
+        try
+        {
+            return (Long) THREAD_CPU_TIME.invoke(THREAD_BEAN);
+        }
+        catch (final Exception e)
+        {
+            return -1;
+        }
+    }
+    
+    /**
+     * @return accumulated collection time of all garbage collectors in ns
+     *         (with ms resolution), -1 if not available
+     */
+    static long gcNsec()
+    {
+        if (GC_TIME == null)
+            return -1;
+        try
+        {
+            long result = 0;
+            for (final Object bean : GC_BEANS)
+            {
+                final long millis = (Long) GC_TIME.invoke(bean);
+                if (millis > 0)
+                    result += millis;
+            }
+            return result * 1000000L;
+        }
+        catch (final Exception e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+/**
+ * Stores the samples of one test phase of one thread: the last results in full
+ * resolution (fine) and results at least minDiffTime apart (coarse).
+ * 
+ * Both live in one buffer of primitive columns, sized once for the retention
+ * the test asked for: the first maxFineResults slots are a ring of the last
+ * results, the ones behind it a ring of the last coarse results. It never
+ * grows: an allocation in {@link #addResult(long, long)}, even a rare one,
+ * keeps the JIT from optimizing the loops feeding it.
+ */
+class SingleResult
+{
+    private final int maxFineResults;
+    private final int maxCoarseResults;
+    private final long minDiffTime;
+    
+    private final long[] bytes;
+    private final long[] nsec;
+    
+    // results in the rings, at most their size, and the slots to write next
+    private int fineCount;
+    private int finePos;
+    private int coarseCount;
+    private int coarsePos;
+    private long lastCoarseNsec;
+    
+    // records every result if set
+    private SpeedTrace.Stream trace;
+    // merges the results with the other streams if set
+    private SpeedCurve curve;
+    private int curveStream;
+    
+    SingleResult(final int maxFineResults, final int maxCoarseResults, final long minDiffTime)
+    {
+        if (maxFineResults < 1 || maxCoarseResults < 1)
+            throw new IllegalArgumentException("at least one fine and one coarse result must be kept");
+        if ((long) maxFineResults + maxCoarseResults > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("too many results to keep");
+        this.maxFineResults = maxFineResults;
+        this.maxCoarseResults = maxCoarseResults;
+        this.minDiffTime = minDiffTime;
+        bytes = new long[maxFineResults + maxCoarseResults];
+        nsec = new long[maxFineResults + maxCoarseResults];
+    }
+    
+    /**
+     * records every result added from now on into trace
+     */
+    void setTrace(final SpeedTrace trace, final boolean upload, final int thread)
+    {
+        this.trace = trace.addStream(upload, thread, maxFineResults, maxCoarseResults, minDiffTime);
+    }
+    
+    /**
+     * adds every result from now on to curve as stream
+     */
+    void setCurve(final SpeedCurve curve, final int stream)
+    {
+        this.curve = curve;
+        curveStream = stream;
+    }
+    
+    public void addResult(final long newBytes, final long newNsec)
+    {
+        if (trace != null)
+            trace.add(newBytes, newNsec);
+        if (curve != null)
+            curve.add(curveStream, newBytes, newNsec);
+        
+        if (coarseCount == 0 || newNsec - lastCoarseNsec > minDiffTime)
+        {
+            final int pos = maxFineResults + coarsePos;
+            bytes[pos] = newBytes;
+            nsec[pos] = newNsec;
+            if (++coarsePos == maxCoarseResults)
+                coarsePos = 0;
+            if (coarseCount < maxCoarseResults)
+                coarseCount++;
+            lastCoarseNsec = newNsec;
+        }
+        
+        bytes[finePos] = newBytes;
+        nsec[finePos] = newNsec;
+        if (++finePos == maxFineResults)
+            finePos = 0;
+        if (fineCount < maxFineResults)
+            fineCount++;
+    }
+    
+    public long getBytes()
+    {
+        if (fineCount == 0)
+            return 0;
+        else
+            return bytes[fineSlot(fineCount - 1)];
+    }
+    
+    public long getNsec()
+    {
+        if (fineCount == 0)
+            return 0;
+        else
+            return nsec[fineSlot(fineCount - 1)];
+    }
+    
+    /**
+     * @return the slot of the i-th oldest result in the fine ring
+     */
+    private int fineSlot(final int i)
+    {
+        final int index = finePos - fineCount + i;
+        return index < 0 ? index + maxFineResults : index;
+    }
+    
+    /**
+     * @return the slot of the i-th oldest result in the coarse ring
+     */
+    private int coarseSlot(final int i)
+    {
+        final int index = coarsePos - coarseCount + i;
+        return maxFineResults + (index < 0 ? index + maxCoarseResults : index);
+    }
+    
+    /**
+     * @return the coarse and the fine results merged by time, oldest first
+     */
+    public Results getAllResults()
+    {
+        // most coarse results are in the fine ring too: count them first
+        final int numResults = merge(null, null);
+        final long[] resultBytes = new long[numResults];
+        final long[] resultNsec = new long[numResults];
+        merge(resultBytes, resultNsec);
+        return new Results(resultBytes, resultNsec);
+    }
+    
+    /**
+     * merges both rings into resultBytes and resultNsec if not null
+     * 
+     * @return the number of merged results
+     */
+    private int merge(final long[] resultBytes, final long[] resultNsec)
+    {
+        int results = 0;
+        int coarse = 0;
+        int fine = 0;
+        while (coarse < coarseCount || fine < fineCount)
+        {
+            final int coarseSlot = coarse < coarseCount ? coarseSlot(coarse) : -1;
+            final int fineSlot = fine < fineCount ? fineSlot(fine) : -1;
+            final int slot;
+            if (fineSlot >= 0 && (coarseSlot < 0 || nsec[fineSlot] <= nsec[coarseSlot]))
+            {
+                slot = fineSlot;
+                fine++;
+                if (coarseSlot >= 0 && nsec[fineSlot] == nsec[coarseSlot])
+                    coarse++;
+            }
+            else
+            {
+                slot = coarseSlot;
+                coarse++;
+            }
+            if (resultBytes != null)
+            {
+                resultBytes[results] = bytes[slot];
+                resultNsec[results] = nsec[slot];
+            }
+            results++;
+        }
+        return results;
+    }
+    
+    public void addCoarseSpeedItems(SpeedItems items, boolean upload, int thread)
+    {
+        addCoarseSpeedItems(items, upload, thread, 0);
+    }
+    
+    /**
+     * adds the coarse results and the last result to items
+     * 
+     * @param ipVersion
+     *            address family of a dual-stack stream, 0 otherwise
+     */
+    public void addCoarseSpeedItems(SpeedItems items, boolean upload, int thread, int ipVersion)
+    {
+        long lastNsec = 0;
+        for (int i = 0; i < coarseCount; i++)
+        {
+            final int slot = coarseSlot(i);
+            items.add(upload, thread, ipVersion, nsec[slot], bytes[slot]);
+            lastNsec = nsec[slot];
+        }
+        
+        final long endNsec = getNsec();
+        if (endNsec > lastNsec)
+            items.add(upload, thread, ipVersion, endNsec, getBytes());
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Merged speed curve of all streams of one phase, built while the samples
+ * arrive: each sample adds the bytes a stream received (or sent) since its
+ * previous sample to the slot of the common time grid it falls into. Adding
+ * a sample is O(1) and the memory is fixed when the curve is created; the
+ * slots are the curve as uploaded ("speed_curve").
+ * 
+ * Each stream has exactly one writer thread, several streams may write
+ * concurrently and any thread may read; nobody locks.
+ */
+public final class SpeedCurve
+{
+    public static final long DEFAULT_GRID_NSEC = 50000000L; // 50 ms
+    // covered after the test duration, e.g. until the last upload result
+    private static final long SLACK_NSEC = 2000000000L;
+    
+    private final long gridNsec;
+    // bytes of all streams per slot; samples after the last slot go into it
+    private final AtomicLongArray slots;
+    // per stream, only written by its thread: bytes and nsec of the latest
+    // sample, -1 before the first one
+    private final AtomicLongArray streamBytes;
+    private final AtomicLongArray streamNsec;
+    
+    /**
+     * @param durationNsec
+     *            planned duration of the phase
+     */
+    public SpeedCurve(final int maxStreams, final long durationNsec, final long gridNsec)
+    {
+        if (gridNsec <= 0)
+            throw new IllegalArgumentException("grid must be positive");
+        this.gridNsec = gridNsec;
+        slots = new AtomicLongArray((int) ((durationNsec + SLACK_NSEC + gridNsec - 1) / gridNsec));
+        streamBytes = new AtomicLongArray(maxStreams);
+        streamNsec = new AtomicLongArray(maxStreams);
+        for (int i = 0; i < maxStreams; i++)
+        {
+            streamBytes.set(i, -1);
+            streamNsec.set(i, -1);
+        }
+    }
+    
+    public long getGridNsec()
+    {
+        return gridNsec;
+    }
+    
+    /**
+     * adds the cumulative bytes of stream at nsec since the start of the
+     * phase; thread of the stream only
+     */
+    public void add(final int stream, final long bytes, final long nsec)
+    {
+        final long lastBytes = streamBytes.get(stream);
+        final long delta = lastBytes < 0 ? bytes : bytes - lastBytes;
+        if (delta != 0)
+            slots.addAndGet(slot(nsec), delta);
+        streamBytes.set(stream, bytes);
+        streamNsec.set(stream, nsec);
+    }
+    
+    private int slot(final long nsec)
+    {
+        final long slot = nsec < 0 ? 0 : nsec / gridNsec;
+        return (int) Math.min(slot, slots.length() - 1);
+    }
+    
+    /**
+     * @return the number of slots up to the latest sample of any stream
+     */
+    public int getSlotCount()
+    {
+        long nsec = -1;
+        for (int i = 0; i < streamNsec.length(); i++)
+            nsec = Math.max(nsec, streamNsec.get(i));
+        return nsec < 0 ? 0 : slot(nsec) + 1;
+    }
+    
+    /**
+     * copies the cumulative bytes of all streams at the end of each slot
+     * (the live curve) into bytes
+     * 
+     * @return the number of slots copied, at most bytes.length
+     */
+    public int getCurve(final long[] bytes)
+    {
+        final int count = Math.min(getSlotCount(), bytes.length);
+        long total = 0;
+        for (int i = 0; i < count; i++)
+        {
+            total += slots.get(i);
+            bytes[i] = total;
+        }
+        return count;
+    }
+    
+    /**
+     * @return the bytes of all streams so far
+     */
+    public long getBytes()
+    {
+        long result = 0;
+        for (int i = 0; i < streamBytes.length(); i++)
+            result += Math.max(0, streamBytes.get(i));
+        return result;
+    }
+    
+    /**
+     * @return the latest time all streams have samples for (like the total
+     *         of {@link TotalTestResult}), -1 without samples
+     */
+    public long getNsec()
+    {
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < streamNsec.length(); i++)
+        {
+            final long nsec = streamNsec.get(i);
+            if (nsec >= 0 && nsec < result)
+                result = nsec;
+        }
+        return result == Long.MAX_VALUE ? -1 : result;
+    }
+    
+    /**
+     * @return the bytes of all streams up to nsec, interpolated linearly
+     *         within its slot
+     */
+    public long getBytes(final long nsec)
+    {
+        final int slot = slot(nsec);
+        long result = 0;
+        for (int i = 0; i < slot; i++)
+            result += slots.get(i);
+        final long inSlot = Math.min(nsec - (long) slot * gridNsec, gridNsec);
+        if (inSlot > 0)
+            result += Math.round((double) slots.get(slot) * inSlot / gridNsec);
+        return result;
+    }
+    
+    /**
+     * @return {"grid": grid in ns, "bytes": bytes per slot}
+     */
+    public JSONObject toJSON() throws JSONException
+    {
+        final JSONObject result = new JSONObject();
+        result.put("grid", gridNsec);
+        final JSONArray bytes = new JSONArray();
+        final int count = getSlotCount();
+        for (int i = 0; i < count; i++)
+            bytes.put(slots.get(i));
+        result.put("bytes", bytes);
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The speed details of a test (time and bytes of a stream in one direction,
+ * "speed_detail"), kept in growable primitive columns instead of an object
+ * per item. Use a {@link Cursor} to walk over them.
+ * 
+ * Not synchronized: filled by the thread of a stream, then handed over to
+ * the one aggregating the result.
+ */
+public final class SpeedItems
+{
+    private static final int FLAG_UPLOAD = 1;
+    private static final int IP_VERSION_SHIFT = 1;
+    private static final int IP_VERSION_MASK = 7;
+    private static final int THREAD_SHIFT = 4;
+    
+    // thread, address family and direction of each item
+    private int[] streams;
+    private long[] times;
+    private long[] bytes;
+    private int count;
+    
+    public SpeedItems()
+    {
+        streams = new int[16];
+        times = new long[16];
+        bytes = new long[16];
+    }
+    
+    /**
+     * @param ipVersion
+     *            address family of a dual-stack stream, 0 otherwise
+     */
+    public void add(final boolean upload, final int thread, final int ipVersion, final long time, final long bytes)
+    {
+        ensureCapacity(count + 1);
+        streams[count] = thread << THREAD_SHIFT | (ipVersion & IP_VERSION_MASK) << IP_VERSION_SHIFT
+                | (upload ? FLAG_UPLOAD : 0);
+        times[count] = time;
+        this.bytes[count] = bytes;
+        count++;
+    }
+    
+    public void addAll(final SpeedItems items)
+    {
+        ensureCapacity(count + items.count);
+        System.arraycopy(items.streams, 0, streams, count, items.count);
+        System.arraycopy(items.times, 0, times, count, items.count);
+        System.arraycopy(items.bytes, 0, bytes, count, items.count);
+        count += items.count;
+    }
+    
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity <= streams.length)
+            return;
+        final int newCapacity = Math.max(capacity, streams.length * 2);
+        final int[] newStreams = new int[newCapacity];
+        final long[] newTimes = new long[newCapacity];
+        final long[] newBytes = new long[newCapacity];
+        System.arraycopy(streams, 0, newStreams, 0, count);
+        System.arraycopy(times, 0, newTimes, 0, count);
+        System.arraycopy(bytes, 0, newBytes, 0, count);
+        streams = newStreams;
+        times = newTimes;
+        bytes = newBytes;
+    }
+    
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * @return a cursor before the first item
+     */
+    public Cursor cursor()
+    {
+        return new Cursor();
+    }
+    
+    /**
+     * @return one object per item like {"direction": "download", "thread": 0,
+     *         "time": ns, "bytes": bytes, "ip_version": 4 if dual-stack}
+     */
+    public JSONArray toJSON() throws JSONException
+    {
+        final JSONArray result = new JSONArray();
+        final Cursor cursor = cursor();
+        while (cursor.next())
+        {
+            final JSONObject item = new JSONObject();
+            item.put("direction", cursor.isUpload() ? "upload" : "download");
+            item.put("thread", cursor.getThread());
+            item.put("time", cursor.getTime());
+            item.put("bytes", cursor.getBytes());
+            if (cursor.getIpVersion() > 0)
+                item.put("ip_version", cursor.getIpVersion());
+            result.put(item);
+        }
+        return result;
+    }
+    
+    /**
+     * Iterates over the items in the order they were added; like
+     * {@link at.alladin.rmbt.shared.protocol.SpeedDetailCodec.Decoder} the
+     * getters refer to the current item only.
+     */
+    public final class Cursor
+    {
+        private int index = -1;
+        
+        private Cursor()
+        {
+        }
+        
+        /**
+         * moves to the next item
+         * 
+         * @return false at the end of the items
+         */
+        public boolean next()
+        {
+            if (index >= count)
+                return false;
+            return ++index < count;
+        }
+        
+        public boolean isUpload()
+        {
+            return (streams[index] & FLAG_UPLOAD) != 0;
+        }
+        
+        public int getThread()
+        {
+            return streams[index] >>> THREAD_SHIFT;
+        }
+        
+        /**
+         * @return address family of a dual-stack stream, 0 otherwise
+         */
+        public int getIpVersion()
+        {
+            return streams[index] >>> IP_VERSION_SHIFT & IP_VERSION_MASK;
+        }
+        
+        public long getTime()
+        {
+            return times[index];
+        }
+        
+        public long getBytes()
+        {
+            return bytes[index];
+        }
+    }
+}
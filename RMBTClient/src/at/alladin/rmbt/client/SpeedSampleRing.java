@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import at.alladin.rmbt.client.RMBTTest.CurrentSpeed;
+
+/**
+ * Ring of the latest (bytes, nsec) samples of one test stream.
+ * 
+ * There is exactly one writer (the thread running the stream); any number of
+ * threads (UI, CLI, metrics) may read concurrently. Writes are published
+ * with a sequence counter which is odd while a write is in progress; readers
+ * retry until they read the same even sequence before and after copying, so
+ * a reader never sees bytes and nsec of different samples. Neither side
+ * locks or allocates.
+ * 
+ * Samples closer than the sample interval to the start of the newest slot
+ * replace the newest slot instead of taking a new one, so the ring covers
+ * capacity * interval of time regardless of the read/write rate.
+ */
+public final class SpeedSampleRing
+{
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long DEFAULT_INTERVAL_NSEC = 50000000L; // 50 ms
+    
+    private final int mask;
+    private final long intervalNsec;
+    
+    // slots are volatile so reads are ordered before the re-check of seq
+    private final AtomicLongArray bytes;
+    private final AtomicLongArray nsec;
+    
+    private volatile long seq;
+    private volatile int head;
+    private volatile int size;
+    
+    // only accessed by the writer
+    private long slotStart;
+    
+    public SpeedSampleRing()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_INTERVAL_NSEC);
+    }
+    
+    /**
+     * @param capacity
+     *            number of slots, a power of two
+     * @param intervalNsec
+     *            minimum time covered by one slot
+     */
+    public SpeedSampleRing(final int capacity, final long intervalNsec)
+    {
+        if (capacity < 2 || (capacity & capacity - 1) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        mask = capacity - 1;
+        this.intervalNsec = intervalNsec;
+        bytes = new AtomicLongArray(capacity);
+        nsec = new AtomicLongArray(capacity);
+    }
+    
+    public int capacity()
+    {
+        return mask + 1;
+    }
+    
+    /**
+     * adds a sample; writer thread only
+     */
+    public void add(final long sampleBytes, final long sampleNsec)
+    {
+        final long s = seq;
+        seq = s + 1;
+        int h = head;
+        if (size == 0 || sampleNsec - slotStart >= intervalNsec || sampleNsec < slotStart)
+        {
+            if (size == 0)
+                h = 0;
+            else
+                h = h + 1 & mask;
+            head = h;
+            if (size <= mask)
+                size++;
+            slotStart = sampleNsec;
+        }
+        bytes.set(h, sampleBytes);
+        nsec.set(h, sampleNsec);
+        seq = s + 2;
+    }
+    
+    /**
+     * drops all samples, e.g. at the start of a new phase; writer thread only
+     */
+    public void reset()
+    {
+        final long s = seq;
+        seq = s + 1;
+        size = 0;
+        seq = s + 2;
+    }
+    
+    /**
+     * @return the sequence value to pass to {@link #validate(long)}; waits
+     *         while a write is in progress
+     */
+    private long begin()
+    {
+        long s;
+        while (((s = seq) & 1) != 0)
+            Thread.yield();
+        return s;
+    }
+    
+    private boolean validate(final long s)
+    {
+        return seq == s;
+    }
+    
+    /**
+     * reads the newest sample; (0, 0) if there is none
+     * 
+     * @return false if the ring is empty
+     */
+    boolean getLatest(final CurrentSpeed result)
+    {
+        while (true)
+        {
+            final long s = begin();
+            final int n = size;
+            final int h = head;
+            final long b = n == 0 ? 0 : bytes.get(h);
+            final long t = n == 0 ? 0 : nsec.get(h);
+            if (validate(s))
+            {
+                result.trans = b;
+                result.time = t;
+                return n > 0;
+            }
+        }
+    }
+    
+    /**
+     * reads the newest sample into latest and the newest sample at least
+     * windowNsec older into reference. If there is no such sample, reference
+     * is the start of the phase (0, 0) or, if the ring has already dropped
+     * samples, the oldest sample.
+     * 
+     * @return false if the ring is empty
+     */
+    boolean getWindow(final long windowNsec, final CurrentSpeed latest, final CurrentSpeed reference)
+    {
+        while (true)
+        {
+            final long s = begin();
+            final int n = size;
+            final int h = head;
+            long latestBytes = 0;
+            long latestNsec = 0;
+            long refBytes = 0;
+            long refNsec = 0;
+            if (n > 0)
+            {
+                latestBytes = bytes.get(h);
+                latestNsec = nsec.get(h);
+                boolean found = false;
+                for (int i = 1; i < n && !found; i++)
+                {
+                    final int idx = h - i & mask;
+                    refNsec = nsec.get(idx);
+                    refBytes = bytes.get(idx);
+                    found = latestNsec - refNsec >= windowNsec;
+                }
+                if (!found && n <= mask)
+                {
+                    refBytes = 0;
+                    refNsec = 0;
+                }
+            }
+            if (validate(s))
+            {
+                latest.trans = latestBytes;
+                latest.time = latestNsec;
+                reference.trans = refBytes;
+                reference.time = refNsec;
+                return n > 0;
+            }
+        }
+    }
+    
+    /**
+     * copies the newest samples, oldest first, into the given arrays
+     * 
+     * @return the number of samples copied (at most the length of the arrays)
+     */
+    public int snapshot(final long[] sampleBytes, final long[] sampleNsec)
+    {
+        final int max = Math.min(sampleBytes.length, sampleNsec.length);
+        while (true)
+        {
+            final long s = begin();
+            final int n = Math.min(size, max);
+            final int h = head;
+            for (int i = 0; i < n; i++)
+            {
+                final int idx = h - (n - 1 - i) & mask;
+                sampleBytes[i] = bytes.get(idx);
+                sampleNsec[i] = nsec.get(idx);
+            }
+            if (validate(s))
+                return n;
+        }
+    }
+}
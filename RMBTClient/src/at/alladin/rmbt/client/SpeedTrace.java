@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import at.alladin.rmbt.shared.protocol.SpeedDetailCodec;
+
+/**
+ * Every (bytes, nsec) result the streams of a test fed into their
+ * {@link SingleResult}, plus the totals the client calculated from them.
+ * {@link #replay()} runs the recorded results through SingleResult and
+ * {@link TotalTestResult} again, so changes to the aggregation can be
+ * checked bit by bit against real tests; see {@link #main(String[])}.
+ * RMBTClient/traces holds a few captured traces with their totals (one and
+ * several streams, and rings small enough to wrap) which every change of the
+ * aggregation has to replay unchanged.
+ * 
+ * The binary format is gzip-compressed: "RMBT" and the version, the number
+ * of streams, per stream a header (flags, thread, max fine and coarse
+ * results, min diff time, count) followed by the deltas of all its nsecs
+ * and then of all its bytes as zigzag varints, and at last the four totals.
+ */
+public class SpeedTrace
+{
+    public static final int VERSION = 1;
+    
+    private static final byte[] MAGIC = { 'R', 'M', 'B', 'T' };
+    private static final int FLAG_UPLOAD = 1;
+    private static final int MAX_STREAMS = 4096;
+    private static final int MAX_RESULTS = 1 << 26;
+    
+    /**
+     * the results of one direction of one stream
+     */
+    public static final class Stream
+    {
+        public final boolean upload;
+        public final int thread;
+        final int maxFineResults;
+        final int maxCoarseResults;
+        final long minDiffTime;
+        
+        private long[] bytes;
+        private long[] nsec;
+        private int count;
+        
+        Stream(final boolean upload, final int thread, final int maxFineResults, final int maxCoarseResults,
+                final long minDiffTime, final int capacity)
+        {
+            this.upload = upload;
+            this.thread = thread;
+            this.maxFineResults = maxFineResults;
+            this.maxCoarseResults = maxCoarseResults;
+            this.minDiffTime = minDiffTime;
+            bytes = new long[capacity];
+            nsec = new long[capacity];
+        }
+        
+        /**
+         * like {@link SingleResult#addResult(long, long)}; only called by the
+         * thread of the stream
+         */
+        public void add(final long newBytes, final long newNsec)
+        {
+            if (count == bytes.length)
+            {
+                final long[] newBytesArray = new long[count * 2];
+                final long[] newNsecArray = new long[count * 2];
+                System.arraycopy(bytes, 0, newBytesArray, 0, count);
+                System.arraycopy(nsec, 0, newNsecArray, 0, count);
+                bytes = newBytesArray;
+                nsec = newNsecArray;
+            }
+            bytes[count] = newBytes;
+            nsec[count] = newNsec;
+            count++;
+        }
+        
+        public int getCount()
+        {
+            return count;
+        }
+    }
+    
+    private final List<Stream> streams = Collections.synchronizedList(new ArrayList<Stream>());
+    
+    // totals calculated by the client, -1 if not recorded
+    private long bytesDownload = -1;
+    private long nsecDownload = -1;
+    private long bytesUpload = -1;
+    private long nsecUpload = -1;
+    
+    /**
+     * starts recording the results of a stream
+     */
+    public Stream addStream(final boolean upload, final int thread, final int maxFineResults,
+            final int maxCoarseResults, final long minDiffTime)
+    {
+        final Stream stream = new Stream(upload, thread, maxFineResults, maxCoarseResults, minDiffTime, 1024);
+        streams.add(stream);
+        return stream;
+    }
+    
+    /**
+     * records the totals calculated from the streams, for the comparison with
+     * the replay
+     */
+    public void setResult(final TotalTestResult result)
+    {
+        bytesDownload = result.bytes_download;
+        nsecDownload = result.nsec_download;
+        bytesUpload = result.bytes_upload;
+        nsecUpload = result.nsec_upload;
+    }
+    
+    public int getSampleCount()
+    {
+        int result = 0;
+        synchronized (streams)
+        {
+            for (final Stream stream : streams)
+                result += stream.count;
+        }
+        return result;
+    }
+    
+    /**
+     * aggregates the recorded results like {@link RMBTClient} does
+     */
+    public TotalTestResult replay()
+    {
+        synchronized (streams)
+        {
+            int numThreads = 0;
+            for (final Stream stream : streams)
+                numThreads = Math.max(numThreads, stream.thread + 1);
+            
+            final long[][] allDownBytes = new long[numThreads][];
+            final long[][] allDownNsecs = new long[numThreads][];
+            final long[][] allUpBytes = new long[numThreads][];
+            final long[][] allUpNsecs = new long[numThreads][];
+            for (final Stream stream : streams)
+            {
+                final SingleResult singleResult = new SingleResult(stream.maxFineResults, stream.maxCoarseResults,
+                        stream.minDiffTime);
+                for (int i = 0; i < stream.count; i++)
+                    singleResult.addResult(stream.bytes[i], stream.nsec[i]);
+                final Results results = singleResult.getAllResults();
+                if (stream.upload)
+                {
+                    allUpBytes[stream.thread] = results.bytes;
+                    allUpNsecs[stream.thread] = results.nsec;
+                }
+                else
+                {
+                    allDownBytes[stream.thread] = results.bytes;
+                    allDownNsecs[stream.thread] = results.nsec;
+                }
+            }
+            
+            final TotalTestResult result = new TotalTestResult();
+            result.calculateDownload(allDownBytes, allDownNsecs);
+            result.calculateUpload(allUpBytes, allUpNsecs);
+            return result;
+        }
+    }
+    
+    /**
+     * @return true if result has exactly the recorded totals (also if none
+     *         were recorded)
+     */
+    public boolean matches(final TotalTestResult result)
+    {
+        return (bytesDownload == -1 || bytesDownload == result.bytes_download)
+                && (nsecDownload == -1 || nsecDownload == result.nsec_download)
+                && (bytesUpload == -1 || bytesUpload == result.bytes_upload)
+                && (nsecUpload == -1 || nsecUpload == result.nsec_upload);
+    }
+    
+    public void write(final OutputStream out) throws IOException
+    {
+        final GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+        // varints are written byte by byte, buffer them before the deflater
+        final BufferedOutputStream gzip = new BufferedOutputStream(gzipOut);
+        gzip.write(MAGIC);
+        SpeedDetailCodec.writeVarint(gzip, VERSION);
+        synchronized (streams)
+        {
+            SpeedDetailCodec.writeVarint(gzip, streams.size());
+            for (final Stream stream : streams)
+            {
+                SpeedDetailCodec.writeVarint(gzip, stream.upload ? FLAG_UPLOAD : 0);
+                SpeedDetailCodec.writeVarint(gzip, stream.thread);
+                SpeedDetailCodec.writeVarint(gzip, stream.maxFineResults);
+                SpeedDetailCodec.writeVarint(gzip, stream.maxCoarseResults);
+                SpeedDetailCodec.writeVarint(gzip, stream.minDiffTime);
+                SpeedDetailCodec.writeVarint(gzip, stream.count);
+                writeDeltas(gzip, stream.nsec, stream.count);
+                writeDeltas(gzip, stream.bytes, stream.count);
+            }
+        }
+        writeSigned(gzip, bytesDownload);
+        writeSigned(gzip, nsecDownload);
+        writeSigned(gzip, bytesUpload);
+        writeSigned(gzip, nsecUpload);
+        gzip.flush();
+        gzipOut.finish();
+    }
+    
+    public static SpeedTrace read(final InputStream in) throws IOException
+    {
+        final InputStream gzip = new BufferedInputStream(new GZIPInputStream(in));
+        for (final byte b : MAGIC)
+            if (gzip.read() != b)
+                throw new IOException("not a speed trace");
+        final long version = SpeedDetailCodec.readVarint(gzip);
+        if (version != VERSION)
+            throw new IOException("unsupported speed trace version " + version);
+        
+        final SpeedTrace result = new SpeedTrace();
+        final int numStreams = readInt(gzip, MAX_STREAMS);
+        int total = 0;
+        for (int i = 0; i < numStreams; i++)
+        {
+            final boolean upload = (readInt(gzip, Integer.MAX_VALUE) & FLAG_UPLOAD) != 0;
+            final int thread = readInt(gzip, MAX_STREAMS);
+            final int maxFineResults = readInt(gzip, Integer.MAX_VALUE);
+            final int maxCoarseResults = readInt(gzip, Integer.MAX_VALUE);
+            final long minDiffTime = SpeedDetailCodec.readVarint(gzip);
+            final int count = readInt(gzip, MAX_RESULTS - total);
+            total += count;
+            final Stream stream = new Stream(upload, thread, maxFineResults, maxCoarseResults, minDiffTime,
+                    Math.max(count, 1));
+            readDeltas(gzip, stream.nsec, count);
+            readDeltas(gzip, stream.bytes, count);
+            stream.count = count;
+            result.streams.add(stream);
+        }
+        result.bytesDownload = readSigned(gzip);
+        result.nsecDownload = readSigned(gzip);
+        result.bytesUpload = readSigned(gzip);
+        result.nsecUpload = readSigned(gzip);
+        return result;
+    }
+    
+    private static void writeDeltas(final OutputStream out, final long[] values, final int count) throws IOException
+    {
+        long last = 0;
+        for (int i = 0; i < count; i++)
+        {
+            writeSigned(out, values[i] - last);
+            last = values[i];
+        }
+    }
+    
+    private static void readDeltas(final InputStream in, final long[] values, final int count) throws IOException
+    {
+        long last = 0;
+        for (int i = 0; i < count; i++)
+        {
+            last += readSigned(in);
+            values[i] = last;
+        }
+    }
+    
+    private static void writeSigned(final OutputStream out, final long value) throws IOException
+    {
+        SpeedDetailCodec.writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+    
+    private static long readSigned(final InputStream in) throws IOException
+    {
+        final long zigzag = SpeedDetailCodec.readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+    
+    private static int readInt(final InputStream in, final int max) throws IOException
+    {
+        final long value = SpeedDetailCodec.readVarint(in);
+        if (value < 0 || value > max)
+            throw new IOException("malformed speed trace");
+        return (int) value;
+    }
+    
+    /**
+     * replays the trace files given as arguments, or all *.trace files in
+     * directories given as arguments (like RMBTClient/traces), and compares
+     * the totals with the recorded ones; exits with status 1 if any differ
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        final List<String> fileNames = new ArrayList<String>();
+        for (final String arg : args)
+        {
+            final File file = new File(arg);
+            if (file.isDirectory())
+            {
+                final String[] names = file.list();
+                if (names == null)
+                    throw new IOException("cannot list " + arg);
+                Arrays.sort(names);
+                for (final String name : names)
+                    if (name.endsWith(".trace"))
+                        fileNames.add(new File(file, name).getPath());
+            }
+            else
+                fileNames.add(arg);
+        }
+        if (fileNames.isEmpty())
+        {
+            System.out.println("no speed traces given");
+            System.exit(1);
+        }
+        
+        boolean ok = true;
+        for (final String fileName : fileNames)
+        {
+            final FileInputStream in = new FileInputStream(new File(fileName));
+            final SpeedTrace trace;
+            try
+            {
+                trace = read(in);
+            }
+            catch (final EOFException e)
+            {
+                System.out.println(String.format(Locale.US, "%s: truncated", fileName));
+                ok = false;
+                continue;
+            }
+            finally
+            {
+                in.close();
+            }
+            
+            final long start = System.nanoTime();
+            final TotalTestResult result = trace.replay();
+            final long nsec = System.nanoTime() - start;
+            
+            final boolean matches = trace.matches(result);
+            ok &= matches;
+            System.out.println(String.format(Locale.US,
+                    "%s: %d streams, %d results in %.2f ms; down %d bytes / %d ns, up %d bytes / %d ns: %s",
+                    fileName, trace.streams.size(), trace.getSampleCount(), nsec / 1e6, result.bytes_download,
+                    result.nsec_download, result.bytes_upload, result.nsec_upload, matches ? "ok"
+                            : String.format(Locale.US, "DIFFERS, recorded down %d / %d, up %d / %d",
+                                    trace.bytesDownload, trace.nsecDownload, trace.bytesUpload,
+                                    trace.nsecUpload)));
+        }
+        if (!ok)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+/**
+ * Decides when the aggregate rate of all streams of a phase has settled.
+ * 
+ * The aggregate byte count is sampled at least {@link #STEP_NSEC} apart; the
+ * phase is steady as soon as the rate of every step within the window is
+ * within +/- tolerance of the mean rate of the whole window. Samples are added
+ * by whichever test thread polls first; once steady, the state stays set until
+ * the next {@link #reset()}.
+ */
+final class SteadyStateDetector
+{
+    /** minimum spacing of samples, a few coarse results per step */
+    static final long STEP_NSEC = 250000000L; // 250 ms
+    
+    private final double tolerance;
+    private final int steps;
+    
+    // ring of the latest steps + 1 samples; guarded by this
+    private final long[] bytes;
+    private final long[] nsec;
+    private int count;
+    
+    private volatile long nextSample;
+    private volatile boolean steady;
+    
+    /**
+     * @param tolerance
+     *            allowed relative deviation of a step from the mean rate
+     * @param windowNsec
+     *            time the rate has to stay within the tolerance; at least two
+     *            steps
+     */
+    SteadyStateDetector(final double tolerance, final long windowNsec)
+    {
+        this.tolerance = tolerance;
+        steps = (int) Math.max(2, windowNsec / STEP_NSEC);
+        bytes = new long[steps + 1];
+        nsec = new long[steps + 1];
+    }
+    
+    /**
+     * forgets all samples, e.g. at the start of a phase
+     */
+    synchronized void reset()
+    {
+        count = 0;
+        nextSample = 0;
+        steady = false;
+    }
+    
+    /**
+     * @return true if {@link #add(long, long)} would take a sample at now
+     */
+    boolean isDue(final long now)
+    {
+        final long next = nextSample;
+        return next == 0 || now - next >= 0;
+    }
+    
+    boolean isSteady()
+    {
+        return steady;
+    }
+    
+    /**
+     * adds the aggregate byte count of all streams at now unless the last
+     * sample is less than a step ago
+     * 
+     * @return true if the phase is steady
+     */
+    synchronized boolean add(final long totalBytes, final long now)
+    {
+        if (steady || !isDue(now))
+            return steady;
+        
+        final int length = bytes.length;
+        if (count > 0 && totalBytes < bytes[(count - 1) % length])
+            count = 0; // a stream restarted its count; start over
+        
+        final int pos = count++ % length;
+        bytes[pos] = totalBytes;
+        nsec[pos] = now;
+        nextSample = now + STEP_NSEC;
+        
+        if (count < length)
+            return false;
+        
+        final int first = count % length;
+        final double mean = rate(first, pos);
+        if (mean <= 0)
+            return false;
+        
+        for (int i = 0; i < steps; i++)
+        {
+            final double stepRate = rate((first + i) % length, (first + i + 1) % length);
+            if (Math.abs(stepRate - mean) > tolerance * mean)
+                return false;
+        }
+        steady = true;
+        return true;
+    }
+    
+    private double rate(final int from, final int to)
+    {
+        final long diffNsec = nsec[to] - nsec[from];
+        if (diffNsec <= 0)
+            return 0;
+        return (double) (bytes[to] - bytes[from]) / diffNsec;
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Timing and load of one stream; all times in ns. The arrays are indexed by
+ * {@link TestMetrics.Phase} and hold -1 for phases the stream did not run or
+ * values that are not available.
+ */
+public class StreamMetrics
+{
+    public final int thread;
+    // setup of the initial connection, null if it failed
+    public ConnectTiming connect;
+    // from sending GETTIME until the first data of the download arrived
+    public long ttfb = -1;
+    // waiting for the other streams before the phase started
+    public final long[] waitNsec;
+    // from the start of the phase until this stream was done with it
+    public final long[] phaseNsec;
+    // CPU time of the thread of this stream, -1 if it is shared with others
+    public final long[] cpuNsec;
+    // garbage collection time of the VM while this stream ran the phase
+    public final long[] gcNsec;
+    
+    private final boolean measureCpu;
+    private TestMetrics.Phase current;
+    private long phaseStart;
+    private long cpuStart;
+    private long gcStart;
+    
+    /**
+     * @param measureCpu
+     *            the stream runs on a thread of its own, which is the one
+     *            calling startPhase and endPhase
+     */
+    StreamMetrics(final int thread, final boolean measureCpu)
+    {
+        this.thread = thread;
+        this.measureCpu = measureCpu;
+        final int phases = TestMetrics.Phase.values().length;
+        waitNsec = newArray(phases);
+        phaseNsec = newArray(phases);
+        cpuNsec = newArray(phases);
+        gcNsec = newArray(phases);
+    }
+    
+    private static long[] newArray(final int length)
+    {
+        final long[] result = new long[length];
+        for (int i = 0; i < length; i++)
+            result[i] = -1;
+        return result;
+    }
+    
+    /**
+     * starts phase unless it is the current one already (the pretest runs
+     * several rounds while streams are added)
+     * 
+     * @param waitStart
+     *            System.nanoTime() when the stream started waiting for the
+     *            phase
+     */
+    void startPhase(final TestMetrics.Phase phase, final long waitStart)
+    {
+        if (phase == current)
+            return;
+        phaseStart = System.nanoTime();
+        current = phase;
+        waitNsec[phase.ordinal()] = phaseStart - waitStart;
+        cpuStart = measureCpu ? RuntimeStats.currentThreadCpuNsec() : -1;
+        gcStart = RuntimeStats.gcNsec();
+    }
+    
+    /**
+     * records the current phase up to now; may be called again while the
+     * phase goes on
+     */
+    void endPhase()
+    {
+        if (current == null)
+            return;
+        final int i = current.ordinal();
+        phaseNsec[i] = System.nanoTime() - phaseStart;
+        if (cpuStart >= 0)
+        {
+            final long cpu = RuntimeStats.currentThreadCpuNsec();
+            if (cpu >= 0)
+                cpuNsec[i] = cpu - cpuStart;
+        }
+        if (gcStart >= 0)
+        {
+            final long gc = RuntimeStats.gcNsec();
+            if (gc >= 0)
+                gcNsec[i] = gc - gcStart;
+        }
+    }
+    
+    public JSONObject toJSON() throws JSONException
+    {
+        final JSONObject result = new JSONObject();
+        result.put("thread", thread);
+        if (connect != null)
+        {
+            result.put("dns", connect.dns);
+            result.put("tcp", connect.tcp);
+            if (connect.tls >= 0)
+                result.put("tls", connect.tls);
+            result.put("greeting", connect.greeting);
+            result.put("token", connect.token);
+        }
+        if (ttfb >= 0)
+            result.put("ttfb", ttfb);
+        result.put("phases", TestMetrics.phasesToJSON(waitNsec, phaseNsec, cpuNsec, gcNsec));
+        return result;
+    }
+}
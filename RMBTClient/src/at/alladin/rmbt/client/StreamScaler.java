@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chooses the number of test streams from the download pretest, within the
+ * bounds set by the test server.
+ * 
+ * Every stream reports its last (largest) pretest round. The socket receive
+ * buffer is no help here: with receive autotuning (e.g. on Linux) the kernel
+ * grows the window far beyond the initial SO_RCVBUF, and setting it would
+ * turn autotuning off. So the number of streams follows the measured
+ * aggregate throughput:
+ * <ul>
+ * <li>if a stream got at most two chunks through in its last round, the
+ * connection is slow and one stream is used (as before, regardless of the
+ * lower bound; one per address family in dual-stack tests)</li>
+ * <li>otherwise the number of streams is doubled once and the new streams run
+ * a pretest of their own (ramp up)</li>
+ * <li>if that did not raise the aggregate throughput by at least
+ * {@link #RAMP_UP_GAIN}, the added streams are dropped again (ramp down)</li>
+ * </ul>
+ * 
+ * {@link RMBTSelectorTest} only uses {@link #addPretest} and {@link #decide};
+ * the threads of {@link RMBTTest} additionally synchronize on
+ * {@link #pretestDone}. It waits on a {@link Condition} rather than a monitor,
+ * so a waiting virtual thread does not pin its carrier.
+ */
+class StreamScaler
+{
+    private static final double RAMP_UP_GAIN = 1.2;
+    private static final int SLOW_CHUNKS = 2;
+    
+    private final RMBTClient client;
+    private final int minStreams;
+    private final int maxStreams;
+    private final int initialStreams;
+    // dual stack: streams come in pairs, one per address family
+    private final int group;
+    private final long pretestNsec;
+    
+    // statistics of the current round of reports
+    private double bytesPerNsec;
+    private boolean slow;
+    // the round before a ramp up, 0 streams if there was none
+    private int previousStreams;
+    private double previousBytesPerNsec;
+    
+    // coordination of the RMBTTest threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition nextGeneration = lock.newCondition();
+    private int streams;
+    private int reported;
+    private int generation;
+    private boolean rampedUp;
+    private boolean done;
+    private long rampEnd;
+    private CyclicBarrier barrier;
+    
+    StreamScaler(final RMBTClient client, final RMBTTestParameter params)
+    {
+        this.client = client;
+        group = params.isDualStack() ? 2 : 1;
+        minStreams = Math.max(group, params.getMinThreads());
+        maxStreams = Math.max(minStreams, params.getMaxThreads());
+        initialStreams = toGroups(Math.min(Math.max(params.getNumThreads(), minStreams), maxStreams));
+        pretestNsec = params.getPretestDuration() * 1000000000L;
+        streams = initialStreams;
+    }
+    
+    /**
+     * @return streams rounded to whole groups within maxStreams
+     */
+    private int toGroups(final int streams)
+    {
+        final int up = (streams + group - 1) / group * group;
+        return up <= maxStreams ? up : streams / group * group;
+    }
+    
+    int getInitialStreams()
+    {
+        return initialStreams;
+    }
+    
+    int getMaxStreams()
+    {
+        return maxStreams;
+    }
+    
+    /**
+     * @param bytes
+     *            bytes of the last pretest round
+     * @param nsec
+     *            duration of the last pretest round
+     * @param chunks
+     *            number of chunks of the last round
+     */
+    void addPretest(final long bytes, final long nsec, final int chunks)
+    {
+        lock.lock();
+        try
+        {
+            if (nsec > 0)
+                bytesPerNsec += (double) bytes / nsec;
+            if (chunks <= SLOW_CHUNKS)
+                slow = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * decides from the reports since the last call how many streams to use
+     * and resets the statistics
+     * 
+     * @param current
+     *            number of streams which reported
+     * @param allowRampUp
+     *            false limits the result to current
+     */
+    int decide(final int current, final boolean allowRampUp)
+    {
+        lock.lock();
+        try
+        {
+            int target;
+            if (slow)
+                target = 1;
+            else if (allowRampUp)
+                target = current * 2;
+            else if (previousStreams > 0 && previousStreams < current
+                    && bytesPerNsec < previousBytesPerNsec * RAMP_UP_GAIN)
+                target = previousStreams;
+            else
+                target = current;
+            
+            if (!allowRampUp && target > current)
+                target = current;
+            if (!slow)
+                target = Math.max(target, minStreams);
+            target = toGroups(Math.max(1, Math.min(target, maxStreams)));
+            
+            client.log(String.format(Locale.US, "pretest: %d streams, %.0f kBit/s%s -> %d streams", current,
+                    bytesPerNsec * 8e6, slow ? " (slow)" : "", target));
+            
+            if (target > current)
+            {
+                previousStreams = current;
+                previousBytesPerNsec = bytesPerNsec;
+            }
+            bytesPerNsec = 0;
+            slow = false;
+            return target;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * reports the pretest of one stream and waits for the others
+     * 
+     * @return 0 if the pretest is done or the time until which the stream has
+     *         to continue its pretest while new streams ramp up
+     * @throws InterruptedException
+     */
+    long pretestDone(final long bytes, final long nsec, final int chunks) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            addPretest(bytes, nsec, chunks);
+            final int myGeneration = generation;
+            if (++reported == streams)
+            {
+                final int target = decide(streams, !rampedUp);
+                reported = 0;
+                generation++;
+                if (target > streams)
+                {
+                    rampedUp = true;
+                    rampEnd = System.nanoTime() + pretestNsec;
+                    client.startStreams(streams, target);
+                    streams = target;
+                }
+                else
+                {
+                    streams = target;
+                    barrier = new CyclicBarrier(target);
+                    done = true;
+                }
+                nextGeneration.signalAll();
+            }
+            else
+                while (generation == myGeneration)
+                    nextGeneration.await();
+            
+            return done ? 0 : rampEnd;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return the barrier for the phases after the pretest or null if the
+     *         stream is not used any more; only valid after
+     *         {@link #pretestDone} returned 0
+     */
+    CyclicBarrier getBarrier(final int threadId)
+    {
+        lock.lock();
+        try
+        {
+            return threadId < streams ? barrier : null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    int getStreams()
+    {
+        lock.lock();
+        try
+        {
+            return streams;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Timing and load of all streams of a test and whether the client itself
+ * limited the measured speed; all times in ns, -1 if not available. The
+ * arrays are indexed by {@link Phase}.
+ */
+public class TestMetrics
+{
+    public enum Phase
+    {
+        PRETEST_DOWN, PING, DOWN, PRETEST_UP, UP;
+    }
+    
+    // share of the phase time a thread may spend on the CPU or the VM in
+    // garbage collection before the client counts as the bottleneck
+    static final double CPU_LIMIT = 0.9;
+    static final double GC_LIMIT = 0.1;
+    
+    public final int processors;
+    public final List<StreamMetrics> streams;
+    // longest wait of a stream for the others before the phase started
+    public final long[] waitNsec;
+    // until the last stream was done with the phase
+    public final long[] phaseNsec;
+    // CPU time of all streams, or of the selector thread running them all
+    public final long[] cpuNsec;
+    // longest garbage collection time seen by a stream
+    public final long[] gcNsec;
+    // a thread was busy (nearly) all the time, all processors were, or
+    // garbage collection took a considerable share of the phase
+    public final boolean[] clientLimited;
+    
+    /**
+     * @param selector
+     *            metrics of the selector thread if all streams ran on it,
+     *            null if each stream had a thread of its own
+     */
+    TestMetrics(final int processors, final List<StreamMetrics> streams, final StreamMetrics selector)
+    {
+        this.processors = processors;
+        this.streams = streams;
+        final int phases = Phase.values().length;
+        waitNsec = new long[phases];
+        phaseNsec = new long[phases];
+        cpuNsec = new long[phases];
+        gcNsec = new long[phases];
+        clientLimited = new boolean[phases];
+        for (int i = 0; i < phases; i++)
+        {
+            waitNsec[i] = -1;
+            phaseNsec[i] = -1;
+            gcNsec[i] = -1;
+            long cpu = selector != null ? selector.cpuNsec[i] : 0;
+            for (final StreamMetrics stream : streams)
+            {
+                waitNsec[i] = Math.max(waitNsec[i], stream.waitNsec[i]);
+                phaseNsec[i] = Math.max(phaseNsec[i], stream.phaseNsec[i]);
+                gcNsec[i] = Math.max(gcNsec[i], stream.gcNsec[i]);
+                if (selector == null && stream.phaseNsec[i] >= 0)
+                    cpu = cpu >= 0 && stream.cpuNsec[i] >= 0 ? cpu + stream.cpuNsec[i] : -1;
+            }
+            cpuNsec[i] = phaseNsec[i] >= 0 ? cpu : -1;
+            if (phaseNsec[i] <= 0)
+                continue;
+            
+            // against the time of the whole phase: a stream done early (like
+            // the ones not pinging) did not slow down the others
+            if (selector != null)
+                clientLimited[i] = isBusy(selector.cpuNsec[i], phaseNsec[i], 1);
+            else
+                for (final StreamMetrics stream : streams)
+                    if (isBusy(stream.cpuNsec[i], phaseNsec[i], 1))
+                        clientLimited[i] = true;
+            if (isBusy(cpuNsec[i], phaseNsec[i], processors))
+                clientLimited[i] = true;
+            if (gcNsec[i] >= 0 && gcNsec[i] >= GC_LIMIT * phaseNsec[i])
+                clientLimited[i] = true;
+        }
+    }
+    
+    private static boolean isBusy(final long cpuNsec, final long phaseNsec, final int threads)
+    {
+        return cpuNsec >= 0 && cpuNsec >= CPU_LIMIT * threads * phaseNsec;
+    }
+    
+    /**
+     * @return true if the client limited the download or the upload
+     */
+    public boolean isClientLimited()
+    {
+        return clientLimited[Phase.DOWN.ordinal()] || clientLimited[Phase.UP.ordinal()];
+    }
+    
+    /**
+     * @return a line for the log like "down: 10.012 s, wait 1.20 ms, cpu
+     *         35%, gc 2 ms"
+     */
+    public String format(final Phase phase)
+    {
+        final int i = phase.ordinal();
+        return String.format(Locale.US, "%s: %.3f s, wait %.2f ms, cpu %s, gc %s%s",
+                phase.name().toLowerCase(Locale.US), phaseNsec[i] / 1e9, waitNsec[i] / 1e6,
+                cpuNsec[i] < 0 || phaseNsec[i] <= 0 ? "n/a" : String.format(Locale.US, "%.0f%%",
+                        100.0 * cpuNsec[i] / phaseNsec[i]),
+                gcNsec[i] < 0 ? "n/a" : String.format(Locale.US, "%d ms", gcNsec[i] / 1000000L),
+                clientLimited[i] ? ", client limited" : "");
+    }
+    
+    public JSONObject toJSON() throws JSONException
+    {
+        final JSONObject result = new JSONObject();
+        result.put("processors", processors);
+        result.put("client_limited", isClientLimited());
+        result.put("phases", phasesToJSON(waitNsec, phaseNsec, cpuNsec, gcNsec));
+        final JSONArray streamArray = new JSONArray();
+        for (final StreamMetrics stream : streams)
+            streamArray.put(stream.toJSON());
+        result.put("streams", streamArray);
+        return result;
+    }
+    
+    static JSONObject phasesToJSON(final long[] waitNsec, final long[] phaseNsec, final long[] cpuNsec,
+            final long[] gcNsec) throws JSONException
+    {
+        final JSONObject result = new JSONObject();
+        for (final Phase phase : Phase.values())
+        {
+            final int i = phase.ordinal();
+            if (phaseNsec[i] < 0)
+                continue;
+            final JSONObject item = new JSONObject();
+            item.put("time", phaseNsec[i]);
+            putIfKnown(item, "wait", waitNsec[i]);
+            putIfKnown(item, "cpu", cpuNsec[i]);
+            putIfKnown(item, "gc", gcNsec[i]);
+            result.put(phase.name().toLowerCase(Locale.US), item);
+        }
+        return result;
+    }
+    
+    private static void putIfKnown(final JSONObject item, final String key, final long value) throws JSONException
+    {
+        if (value >= 0)
+            item.put(key, value);
+    }
+}
@@ -32,7 +32,10 @@ public abstract class TestResult
     
     public final List<Ping> pings = new ArrayList<Ping>();
     
-    public final List<SpeedItem> speedItems = new ArrayList<SpeedItem>();
+    // setup of the initial connection per stream
+    public final List<ConnectTiming> connects = new ArrayList<ConnectTiming>();
+    
+    public final SpeedItems speedItems = new SpeedItems();
     
     public static long getSpeedBitPerSec(final long bytes, final long nsec)
     {
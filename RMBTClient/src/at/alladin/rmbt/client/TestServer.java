@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+/**
+ * A test server of a multi-server test with the token it accepts.
+ */
+public class TestServer
+{
+    public TestServer(final String host, final int port, final String token)
+    {
+        this(host, host, host, port, token);
+    }
+    
+    /**
+     * @param hostIpv4
+     *            name of host for the IPv4 streams of a dual-stack test
+     * @param hostIpv6
+     *            name of host for the IPv6 streams of a dual-stack test
+     */
+    public TestServer(final String host, final String hostIpv4, final String hostIpv6, final int port,
+            final String token)
+    {
+        this.host = host;
+        this.hostIpv4 = hostIpv4;
+        this.hostIpv6 = hostIpv6;
+        this.port = port;
+        this.token = token;
+    }
+    
+    final public String host;
+    final public String hostIpv4;
+    final public String hostIpv6;
+    final public int port;
+    final public String token;
+}
@@ -23,6 +23,12 @@ public class ThreadTestResult extends TestResult
     public long totalDownBytes;
     public long totalUpBytes;
     
+    // index of the test server (multi-server tests)
+    public int server;
+    
+    // timing and load of this stream
+    public StreamMetrics metrics;
+    
     public static long getLastEntry(final long[] data)
     {
         if (data == null || data.length == 0)
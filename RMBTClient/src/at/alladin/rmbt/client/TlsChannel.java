@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a {@link SocketChannel} with an {@link SSLEngine}, so encrypted
+ * connections can be run by the selector like plain ones. Works in blocking
+ * and non-blocking mode; in non-blocking mode
+ * <ul>
+ * <li>{@link #handshake()} returns false until the handshake is done,</li>
+ * <li>decrypted data may be left in the channel's buffers after a read (see
+ * {@link #hasBufferedInput()}), the selector will not report it,</li>
+ * <li>encrypted data may be left to be sent after a flush (see
+ * {@link #hasPendingOutput()}).</li>
+ * </ul>
+ * 
+ * Net buffers hold several records: one socket read is unwrapped record by
+ * record straight into the caller's buffer, and writes are collected until
+ * the batch is full, {@link #flush()} is called or the channel reads from
+ * the socket, so small writes (chunks, control lines) share socket writes.
+ * The direct buffers are pooled.
+ */
+public final class TlsChannel implements ByteChannel, GatheringByteChannel
+{
+    // records per socket read or write
+    private static final int BATCH_RECORDS = 4;
+    private static final DirectBufferPool POOL = new DirectBufferPool(64);
+    
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    
+    // all in read mode: received and not yet unwrapped, wrapped and not yet
+    // sent, unwrapped and not yet taken by the caller
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private final ByteBuffer[] none = new ByteBuffer[] { ByteBuffer.allocate(0) };
+    
+    // netIn only holds part of a record
+    private boolean underflow;
+    private boolean closed;
+    
+    /**
+     * @param engine
+     *            in client or server mode, the handshake is started here
+     */
+    public TlsChannel(final SocketChannel channel, final SSLEngine engine) throws SSLException
+    {
+        this.channel = channel;
+        this.engine = engine;
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = POOL.acquire(BATCH_RECORDS * packetSize);
+        netIn.flip();
+        netOut = POOL.acquire(BATCH_RECORDS * packetSize);
+        netOut.flip();
+        appIn = POOL.acquire(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        engine.beginHandshake();
+    }
+    
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+    
+    public SSLEngine getEngine()
+    {
+        return engine;
+    }
+    
+    /**
+     * continues the handshake as far as the channel allows without blocking
+     * 
+     * @return true if the handshake is done and its last flight is sent
+     */
+    public boolean handshake() throws IOException
+    {
+        checkOpen();
+        while (true)
+        {
+            switch (engine.getHandshakeStatus())
+            {
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                return flush();
+            
+            case NEED_TASK:
+                runTasks();
+                break;
+            
+            case NEED_WRAP:
+                if (!flush())
+                    return false;
+                if (wrap(none, 0, 1).getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new SSLException("closed during handshake");
+                break;
+            
+            default: // NEED_UNWRAP and, since Java 9, NEED_UNWRAP_AGAIN
+                if (!flush())
+                    return false;
+                if (!underflow && netIn.hasRemaining())
+                {
+                    final SSLEngineResult result = unwrapToAppIn();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("closed during handshake");
+                }
+                else if (fill() == 0)
+                    return false;
+                break;
+            }
+        }
+    }
+    
+    /**
+     * unwraps the records at hand into dst, reading from the socket only if
+     * there are none
+     * 
+     * @return bytes put into dst or -1 at the end of the stream
+     */
+    public int read(final ByteBuffer dst) throws IOException
+    {
+        checkOpen();
+        int produced = drainAppIn(dst);
+        while (dst.hasRemaining())
+        {
+            if (underflow || !netIn.hasRemaining())
+            {
+                if (produced > 0)
+                    break;
+                final int read = fill();
+                if (read < 0)
+                    return -1;
+                if (read == 0)
+                    break;
+            }
+            
+            final SSLEngineResult result;
+            if (dst.remaining() >= engine.getSession().getApplicationBufferSize())
+            {
+                result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                if (result.getStatus() == SSLEngineResult.Status.OK)
+                    afterUnwrap(result);
+            }
+            else
+            {
+                result = unwrapToAppIn();
+                produced += drainAppIn(dst);
+            }
+            
+            switch (result.getStatus())
+            {
+            case BUFFER_UNDERFLOW:
+                underflow = true;
+                break;
+            
+            case BUFFER_OVERFLOW:
+                // appIn is still full (the caller's buffer is) or too small
+                if (appIn.hasRemaining())
+                    return produced;
+                POOL.release(appIn);
+                appIn = POOL.acquire(engine.getSession().getApplicationBufferSize());
+                appIn.flip();
+                break;
+            
+            case CLOSED:
+                return produced > 0 ? produced : -1;
+            
+            default:
+                break;
+            }
+        }
+        return produced;
+    }
+    
+    /**
+     * @return true if a read may produce data without the socket becoming
+     *         readable
+     */
+    public boolean hasBufferedInput()
+    {
+        return !closed && (appIn.hasRemaining() || !underflow && netIn.hasRemaining());
+    }
+    
+    public int write(final ByteBuffer src) throws IOException
+    {
+        single[0] = src;
+        try
+        {
+            return (int) write(single, 0, 1);
+        }
+        finally
+        {
+            single[0] = null;
+        }
+    }
+    
+    public long write(final ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+    
+    /**
+     * wraps srcs into the current batch; a full batch is written to the
+     * socket
+     * 
+     * @return bytes taken from srcs; 0 if the batch is full and the socket
+     *         does not take it
+     */
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException
+    {
+        checkOpen();
+        long consumed = 0;
+        while (hasRemaining(srcs, offset, length) && makeRoom())
+        {
+            final SSLEngineResult result = wrap(srcs, offset, length);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new ClosedChannelException();
+            if (result.getStatus() != SSLEngineResult.Status.OK)
+                break;
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runTasks();
+        }
+        return consumed;
+    }
+    
+    /**
+     * writes the current batch
+     * 
+     * @return true if nothing is left
+     */
+    public boolean flush() throws IOException
+    {
+        while (netOut.hasRemaining())
+            if (channel.write(netOut) == 0)
+                return false;
+        return true;
+    }
+    
+    public boolean hasPendingOutput()
+    {
+        return !closed && netOut.hasRemaining();
+    }
+    
+    public boolean isOpen()
+    {
+        return !closed && channel.isOpen();
+    }
+    
+    /**
+     * sends close_notify if the socket takes it right away and closes the
+     * channel
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            engine.closeOutbound();
+            if (channel.isOpen() && flush())
+            {
+                wrap(none, 0, 1);
+                flush();
+            }
+        }
+        catch (final IOException e)
+        {
+            // closing anyway
+        }
+        finally
+        {
+            channel.close();
+            POOL.release(netIn);
+            POOL.release(netOut);
+            POOL.release(appIn);
+        }
+    }
+    
+    private void checkOpen() throws ClosedChannelException
+    {
+        if (closed)
+            throw new ClosedChannelException();
+    }
+    
+    /**
+     * reads from the socket into netIn, after writing the current batch: the
+     * peer may wait for it
+     * 
+     * @return bytes read or -1
+     */
+    private int fill() throws IOException
+    {
+        flush();
+        netIn.compact();
+        if (!netIn.hasRemaining())
+        {
+            // a record larger than announced
+            final ByteBuffer larger = POOL.acquire(netIn.capacity() + engine.getSession().getPacketBufferSize());
+            netIn.flip();
+            larger.put(netIn);
+            POOL.release(netIn);
+            netIn = larger;
+        }
+        final int read;
+        try
+        {
+            read = channel.read(netIn);
+        }
+        finally
+        {
+            netIn.flip();
+        }
+        if (read < 0)
+        {
+            if (engine.isInboundDone())
+                return -1;
+            try
+            {
+                engine.closeInbound(); // complains about the missing close_notify
+            }
+            catch (final SSLException e)
+            {
+                // expected from servers that just close the socket
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                throw new EOFException("closed during handshake");
+            return -1;
+        }
+        if (read > 0)
+            underflow = false;
+        return read;
+    }
+    
+    private SSLEngineResult unwrapToAppIn() throws IOException
+    {
+        appIn.compact();
+        final SSLEngineResult result;
+        try
+        {
+            result = engine.unwrap(netIn, appIn);
+        }
+        finally
+        {
+            appIn.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+            underflow = true;
+        else if (result.getStatus() == SSLEngineResult.Status.OK)
+            afterUnwrap(result);
+        return result;
+    }
+    
+    /**
+     * answers what a record may ask for after the handshake (TLS 1.3 key
+     * update, renegotiation)
+     */
+    private void afterUnwrap(final SSLEngineResult result) throws IOException
+    {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            runTasks();
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && flush())
+        {
+            wrap(none, 0, 1);
+            flush();
+        }
+    }
+    
+    /**
+     * @return true if the batch has room for another record, after writing it
+     *         if needed
+     */
+    private boolean makeRoom() throws IOException
+    {
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        if (netOut.capacity() - netOut.limit() >= packetSize)
+            return true;
+        flush();
+        netOut.compact();
+        netOut.flip();
+        return netOut.capacity() - netOut.limit() >= packetSize;
+    }
+    
+    /**
+     * appends records to netOut, which stays in read mode
+     */
+    private SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length) throws SSLException
+    {
+        final int start = netOut.position();
+        netOut.position(netOut.limit());
+        netOut.limit(netOut.capacity());
+        try
+        {
+            return engine.wrap(srcs, offset, length, netOut);
+        }
+        finally
+        {
+            netOut.limit(netOut.position());
+            netOut.position(start);
+        }
+    }
+    
+    private int drainAppIn(final ByteBuffer dst)
+    {
+        final int n = Math.min(appIn.remaining(), dst.remaining());
+        if (n == 0)
+            return 0;
+        final int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        return n;
+    }
+    
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+    
+    private static boolean hasRemaining(final ByteBuffer[] buffers, final int offset, final int length)
+    {
+        for (int i = offset; i < offset + length; i++)
+            if (buffers[i].hasRemaining())
+                return true;
+        return false;
+    }
+}
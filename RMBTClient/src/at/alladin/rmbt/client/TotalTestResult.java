@@ -25,6 +25,43 @@ public class TotalTestResult extends TestResult
     public long nsec_upload;
     public long totalDownBytes;
     public long totalUpBytes;
+    // phase ended before the test duration because the rate was steady
+    public boolean early_stop_download;
+    public boolean early_stop_upload;
+    // round trip times of the ping phase and, with the latency probe, while
+    // downloading and uploading; null if not measured
+    public LatencyStats ping_idle;
+    public LatencyStats ping_download;
+    public LatencyStats ping_upload;
+    // TLS handshakes of all streams including reconnects and their total time
+    public int tls_handshakes_full;
+    public int tls_handshakes_resumed;
+    public long tls_handshake_nsec;
+    // multi-server tests: the shares of the test servers in bytes_download and
+    // bytes_upload, cut at the same time as the total; null for one server
+    public long[] bytes_download_servers;
+    public long[] bytes_upload_servers;
+    // dual-stack tests: shares of the IPv4 and IPv6 streams in bytes_download
+    // and bytes_upload (cut at the same time as the total) and their speeds in
+    // kbit/s; 0 otherwise
+    public boolean dual_stack;
+    public long bytes_download_ipv4;
+    public long bytes_download_ipv6;
+    public long bytes_upload_ipv4;
+    public long bytes_upload_ipv6;
+    public double speed_download_ipv4;
+    public double speed_download_ipv6;
+    public double speed_upload_ipv4;
+    public double speed_upload_ipv6;
+    // timing and load of the streams, whether the client was the bottleneck
+    public TestMetrics metrics;
+    // merged results of all streams on a common time grid
+    public SpeedCurve speed_curve_download;
+    public SpeedCurve speed_curve_upload;
+    
+    // bytes of each thread up to nsec_download and nsec_upload
+    private long[] threadBytesDownload;
+    private long[] threadBytesUpload;
     
     public double getDownloadSpeedBitPerSec()
     {
@@ -46,6 +83,26 @@ public class TotalTestResult extends TestResult
         calculate(bytes, nsecs, true);
     }
     
+    /**
+     * splits bytes_download or bytes_upload into the shares of groups of
+     * threads (e.g. per test server); all threads start each phase together,
+     * so they are cut at the same time as the total and the shares add up to
+     * it
+     * 
+     * @param groups
+     *            groups[i] is the group (0..numGroups-1) of thread i
+     */
+    public long[] getShares(final int[] groups, final int numGroups, final boolean upload)
+    {
+        final long[] threadBytes = upload ? threadBytesUpload : threadBytesDownload;
+        if (threadBytes == null || groups.length != threadBytes.length)
+            throw new IllegalArgumentException();
+        final long[] result = new long[numGroups];
+        for (int i = 0; i < threadBytes.length; i++)
+            result[groups[i]] += threadBytes[i];
+        return result;
+    }
+    
     private void calculate(final long[][] allBytes, final long[][] allNsecs, final boolean upload)
     {
         if (allBytes.length != allNsecs.length)
@@ -63,6 +120,7 @@ public class TotalTestResult extends TestResult
         }
         
         long totalBytes = 0;
+        final long[] threadBytes = new long[numThreads];
         
         for (int i = 0; i < numThreads; i++)
         {
@@ -105,17 +163,20 @@ public class TotalTestResult extends TestResult
                     calcBytes = bytes1 + compensation;
                 }
                 totalBytes += calcBytes;
+                threadBytes[i] = calcBytes;
             }
         }
         
         if (upload)
         {
+            threadBytesUpload = threadBytes;
             bytes_upload = totalBytes;
             nsec_upload = targetTime;
             speed_upload = getUploadSpeedBitPerSec() / 1e3;
         }
         else
         {
+            threadBytesDownload = threadBytes;
             bytes_download = totalBytes;
             nsec_download = targetTime;
             speed_download = getDownloadSpeedBitPerSec() / 1e3;
@@ -15,11 +15,13 @@
  ******************************************************************************/
 package at.alladin.rmbt.client.helper;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -27,11 +29,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import at.alladin.rmbt.client.LatencyStats;
 import at.alladin.rmbt.client.Ping;
 import at.alladin.rmbt.client.RMBTTestParameter;
-import at.alladin.rmbt.client.SpeedItem;
+import at.alladin.rmbt.client.SpeedItems;
+import at.alladin.rmbt.client.TestServer;
 import at.alladin.rmbt.client.TotalTestResult;
 import at.alladin.rmbt.client.ndt.UiServicesAdapter;
+import at.alladin.rmbt.shared.protocol.SpeedDetailCodec;
 
 public class ControlServerConnection
 {
@@ -50,6 +55,9 @@ public class ControlServerConnection
     private long testTime = 0;
     
     private String testHost = "";
+    // dual-stack tests: names of the test server for each family
+    private String testHostIpv4;
+    private String testHostIpv6;
     private int testPort = 0;
     private String remoteIp = "";
     private String serverName;
@@ -57,6 +65,24 @@ public class ControlServerConnection
     
     private int testDuration = 0;
     private int testNumThreads = 0;
+    private int testNumThreadsMin = 0;
+    private int testNumThreadsMax = 0;
+    
+    // multi-server tests: the servers we accept and the ones we got
+    private int maxTestServers = 1;
+    private final List<TestServer> testServers = new ArrayList<TestServer>();
+    
+    private boolean dualStack;
+    
+    // compact speed details: if we want them and if the server decodes them
+    private boolean compactResults;
+    private boolean serverAcceptsCompact;
+    
+    private boolean uploadMetrics;
+    
+    private boolean serverAcceptsBatch;
+    // the last result was refused for good, sending it again is useless
+    private boolean rejected;
     
     private String clientUUID = "";
     
@@ -110,6 +136,9 @@ public class ControlServerConnection
         // url to make request to
         
         clientUUID = uuid;
+        // the connection may be reused for several tests
+        hasError = false;
+        errorMsg = null;
         
         hostUri = getUri(encryption, host, pathPrefix, port, Config.RMBT_CONTROL_MAIN_URL);
         
@@ -128,6 +157,10 @@ public class ControlServerConnection
             regData.put("language", Locale.getDefault().getLanguage());
             regData.put("timezone", TimeZone.getDefault().getID());
             regData.put("time", System.currentTimeMillis());
+            if (maxTestServers > 1)
+                regData.put("test_servers_max", maxTestServers);
+            if (dualStack)
+                regData.put("dual_stack", true);
             
             if (geoInfo != null)
             {
@@ -177,6 +210,10 @@ public class ControlServerConnection
                     testTime = System.currentTimeMillis() + 1000 * response.getLong("test_wait");
                     
                     testHost = response.getString("test_server_address");
+                    // optional, older servers send the name for the family
+                    // of the client only
+                    testHostIpv4 = response.optString("test_server_address_ipv4", null);
+                    testHostIpv6 = response.optString("test_server_address_ipv6", null);
                     testPort = response.getInt("test_server_port");
                     testEncryption = response.getBoolean("test_server_encryption");
                     serverName = response.optString("test_server_name", null);
@@ -184,6 +221,26 @@ public class ControlServerConnection
                     
                     testDuration = response.getInt("test_duration");
                     testNumThreads = response.getInt("test_numthreads");
+                    // optional, older servers send a fixed number of threads
+                    testNumThreadsMin = response.optInt("test_numthreads_min", testNumThreads);
+                    testNumThreadsMax = response.optInt("test_numthreads_max", testNumThreads);
+                    
+                    // optional, all servers of a multi-server test
+                    testServers.clear();
+                    final JSONArray servers = response.optJSONArray("test_servers");
+                    if (servers != null)
+                        for (int i = 0; i < servers.length() && i < maxTestServers; i++)
+                        {
+                            final JSONObject server = servers.getJSONObject(i);
+                            final String address = server.getString("address");
+                            testServers.add(new TestServer(address, server.optString("address_ipv4", address),
+                                    server.optString("address_ipv6", address), server.getInt("port"),
+                                    server.getString("token")));
+                        }
+                    
+                    // optional, older servers only accept the JSON array
+                    serverAcceptsCompact = response.optBoolean("speed_detail_compact");
+                    serverAcceptsBatch = response.optBoolean("result_batch");
                     
                     remoteIp = response.getString("client_remote_ip");
                     
@@ -227,117 +284,267 @@ public class ControlServerConnection
     {
         
         if (resultURI != null)
+            post(resultURI, createTestResult(result, additionalValues));
+        else
+        {
+            hasError = true;
+            errorMsg = "No URL to send the Data to.";
+        }
+        
+        return errorMsg;
+    }
+    
+    /**
+     * @return the result upload of the test registered last, to be sent with
+     *         {@link #sendTestResult(URI, JSONObject)}
+     */
+    public JSONObject createTestResult(final TotalTestResult result, final JSONObject additionalValues)
+    {
+        final JSONObject testData = new JSONObject();
+        
+        try
         {
             
-            final JSONObject testData = new JSONObject();
+            testData.put("client_uuid", clientUUID);
+            testData.put("client_name", Config.RMBT_CLIENT_NAME);
+            testData.put("client_version", Config.RMBT_VERSION_NUMBER);
+            testData.put("client_language", Locale.getDefault().getLanguage());
+            
+            testData.put("time", System.currentTimeMillis());
             
-            try
+            testData.put("test_token", testToken);
+            
+            testData.put("test_port_remote", result.port_remote);
+            testData.put("test_bytes_download", result.bytes_download);
+            testData.put("test_bytes_upload", result.bytes_upload);
+            testData.put("test_total_bytes_download", result.totalDownBytes);
+            testData.put("test_total_bytes_upload", result.totalUpBytes);
+            testData.put("test_encryption", result.encryption);
+            testData.put("test_ip_local", result.ip_local.getHostAddress());
+            testData.put("test_ip_server", result.ip_server.getHostAddress());
+            testData.put("test_nsec_download", result.nsec_download);
+            testData.put("test_nsec_upload", result.nsec_upload);
+            testData.put("test_early_stop_download", result.early_stop_download);
+            testData.put("test_early_stop_upload", result.early_stop_upload);
+            testData.put("test_num_threads", result.num_threads);
+            testData.put("test_speed_download", (long) Math.floor(result.speed_download + 0.5d));
+            testData.put("test_speed_upload", (long) Math.floor(result.speed_upload + 0.5d));
+            if (result.bytes_download_servers != null && result.bytes_upload_servers != null)
             {
-                
-                testData.put("client_uuid", clientUUID);
-                testData.put("client_name", Config.RMBT_CLIENT_NAME);
-                testData.put("client_version", Config.RMBT_VERSION_NUMBER);
-                testData.put("client_language", Locale.getDefault().getLanguage());
-                
-                testData.put("time", System.currentTimeMillis());
-                
-                testData.put("test_token", testToken);
-                
-                testData.put("test_port_remote", result.port_remote);
-                testData.put("test_bytes_download", result.bytes_download);
-                testData.put("test_bytes_upload", result.bytes_upload);
-                testData.put("test_total_bytes_download", result.totalDownBytes);
-                testData.put("test_total_bytes_upload", result.totalUpBytes);
-                testData.put("test_encryption", result.encryption);
-                testData.put("test_ip_local", result.ip_local.getHostAddress());
-                testData.put("test_ip_server", result.ip_server.getHostAddress());
-                testData.put("test_nsec_download", result.nsec_download);
-                testData.put("test_nsec_upload", result.nsec_upload);
-                testData.put("test_num_threads", result.num_threads);
-                testData.put("test_speed_download", (long) Math.floor(result.speed_download + 0.5d));
-                testData.put("test_speed_upload", (long) Math.floor(result.speed_upload + 0.5d));
-                testData.put("test_ping_shortest", result.ping_shortest);
-                
-                final JSONArray pingData = new JSONArray();
-                
-                if (result.pings != null && !result.pings.isEmpty())
+                // in the order of test_servers of the registration
+                final JSONArray servers = new JSONArray();
+                for (int i = 0; i < result.bytes_download_servers.length; i++)
                 {
-                    for (final Ping ping : result.pings)
-                    {
-                        final JSONObject pingItem = new JSONObject();
-                        pingItem.put("value", ping.client);
-                        pingItem.put("value_server", ping.server);
-                        pingData.put(pingItem);
-                    }
-                }
-                
-                testData.put("pings", pingData);
-                
-                JSONArray speedDetail = new JSONArray();
-                
-                if (result.speedItems != null)
-                {
-                    for (SpeedItem item : result.speedItems)
-                        speedDetail.put(item.toJSON());
+                    final JSONObject server = new JSONObject();
+                    if (i < testServers.size())
+                        server.put("address", testServers.get(i).host);
+                    server.put("bytes_download", result.bytes_download_servers[i]);
+                    server.put("bytes_upload", result.bytes_upload_servers[i]);
+                    servers.put(server);
                 }
-                
-                testData.put("speed_detail", speedDetail);
-                
-                addToJSONObject(testData, additionalValues);
-                
-                // System.out.println(testData.toString(4));
-                
+                testData.put("test_bytes_servers", servers);
             }
-            catch (final JSONException e1)
+            if (result.dual_stack)
             {
-                hasError = true;
-                errorMsg = "Error gernerating request";
-                // e1.printStackTrace();
+                testData.put("test_speed_download_ipv4", (long) Math.floor(result.speed_download_ipv4 + 0.5d));
+                testData.put("test_speed_download_ipv6", (long) Math.floor(result.speed_download_ipv6 + 0.5d));
+                testData.put("test_speed_upload_ipv4", (long) Math.floor(result.speed_upload_ipv4 + 0.5d));
+                testData.put("test_speed_upload_ipv6", (long) Math.floor(result.speed_upload_ipv6 + 0.5d));
+            }
+            testData.put("test_ping_shortest", result.ping_shortest);
+            putLatency(testData, "test_ping_idle", result.ping_idle);
+            putLatency(testData, "test_ping_download", result.ping_download);
+            putLatency(testData, "test_ping_upload", result.ping_upload);
+            if (result.speed_curve_download != null && result.speed_curve_upload != null)
+            {
+                final JSONObject speedCurve = new JSONObject();
+                speedCurve.put("download", result.speed_curve_download.toJSON());
+                speedCurve.put("upload", result.speed_curve_upload.toJSON());
+                testData.put("speed_curve", speedCurve);
+            }
+            if (result.metrics != null)
+            {
+                testData.put("test_client_limited", result.metrics.isClientLimited());
+                if (uploadMetrics)
+                    testData.put("test_metrics", result.metrics.toJSON());
             }
             
-            // getting JSON string from URL
-            final JSONObject response = jParser.sendJSONToUrl(resultURI, testData);
+            final JSONArray pingData = new JSONArray();
             
-            if (response != null)
-                try
-                {
-                    final JSONArray errorList = response.getJSONArray("error");
-                    
-                    // System.out.println(response.toString(4));
-                    
-                    if (errorList.length() == 0)
-                    {
-                        
-                        // System.out.println("All is fine");
-                        
-                    }
-                    else
-                    {
-                        hasError = true;
-                        for (int i = 0; i < errorList.length(); i++)
-                        {
-                            if (i > 0)
-                                errorMsg += "\n";
-                            errorMsg += errorList.getString(i);
-                        }
-                    }
-                    
-                    // }
-                }
-                catch (final JSONException e)
+            if (result.pings != null && !result.pings.isEmpty())
+            {
+                for (final Ping ping : result.pings)
                 {
-                    hasError = true;
-                    errorMsg = "Error parsing server response";
-                    e.printStackTrace();
+                    final JSONObject pingItem = new JSONObject();
+                    pingItem.put("value", ping.client);
+                    pingItem.put("value_server", ping.server);
+                    pingData.put(pingItem);
                 }
+            }
+            
+            testData.put("pings", pingData);
+            
+            if (compactResults && serverAcceptsCompact && result.speedItems != null)
+                testData.put("speed_detail_compact", encodeSpeedDetail(result.speedItems));
+            else
+                testData.put("speed_detail", result.speedItems != null ? result.speedItems.toJSON()
+                        : new JSONArray());
+            
+            addToJSONObject(testData, additionalValues);
+            
+            // System.out.println(testData.toString(4));
+            
         }
-        else
+        catch (final JSONException e1)
         {
             hasError = true;
-            errorMsg = "No URL to send the Data to.";
+            errorMsg = "Error gernerating request";
+            // e1.printStackTrace();
         }
         
-        return errorMsg;
+        return testData;
+    }
+    
+    private static String encodeSpeedDetail(final SpeedItems speedItems)
+    {
+        try
+        {
+            final SpeedDetailCodec.Encoder encoder = new SpeedDetailCodec.Encoder();
+            final SpeedItems.Cursor item = speedItems.cursor();
+            while (item.next())
+                encoder.add(item.isUpload(), item.getThread(), item.getIpVersion(), item.getTime(),
+                        item.getBytes());
+            return encoder.finish();
+        }
+        catch (final IOException e)
+        {
+            // only written to memory
+            throw new IllegalStateException(e.toString());
+        }
+    }
+    
+    /**
+     * sends testData (see {@link #createTestResult}) to uri, e.g. a result
+     * spooled earlier
+     * 
+     * @return null or the error message
+     */
+    public String sendTestResult(final URI uri, final JSONObject testData)
+    {
+        hasError = false;
+        errorMsg = "";
+        post(uri, testData);
+        return hasError ? errorMsg : null;
+    }
+    
+    /**
+     * sends several results (see {@link #createTestResult}) to uri in one
+     * request, if the control server supports it (see
+     * {@link #isResultBatchSupported()}); results the server refuses for good
+     * are logged and count as sent
+     * 
+     * @return null or the error message if at least one result has to be sent
+     *         again (sending the others again does no harm, a control server
+     *         stores each result only once)
+     */
+    public String sendTestResults(final URI uri, final List<JSONObject> results)
+    {
+        hasError = false;
+        errorMsg = "";
+        rejected = false;
+        
+        final JSONObject request = new JSONObject();
+        try
+        {
+            final JSONArray resultData = new JSONArray();
+            for (final JSONObject testData : results)
+                resultData.put(testData);
+            request.put("results", resultData);
+            
+            final JSONObject response = jParser.sendJSONToUrl(uri, request);
+            final JSONArray errorList = response.getJSONArray("error");
+            if (errorList.length() > 0)
+                return toErrorMsg(errorList);
+            
+            final JSONArray answers = response.getJSONArray("results");
+            if (answers.length() != results.size())
+                return "Unexpected number of answers";
+            
+            String result = null;
+            for (int i = 0; i < answers.length(); i++)
+            {
+                final JSONObject answer = answers.getJSONObject(i);
+                final JSONArray resultErrorList = answer.getJSONArray("error");
+                if (resultErrorList.length() == 0)
+                    continue;
+                if (answer.optBoolean("retry", true))
+                    result = toErrorMsg(resultErrorList);
+                else
+                    System.out.println("result rejected: " + toErrorMsg(resultErrorList));
+            }
+            return result;
+        }
+        catch (final JSONException e)
+        {
+            e.printStackTrace();
+            return "Error parsing server response";
+        }
+    }
+    
+    private static String toErrorMsg(final JSONArray errorList) throws JSONException
+    {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < errorList.length(); i++)
+        {
+            if (i > 0)
+                result.append('\n');
+            result.append(errorList.getString(i));
+        }
+        return result.toString();
+    }
+    
+    private void post(final URI uri, final JSONObject testData)
+    {
+        rejected = false;
+        
+        // getting JSON string from URL
+        final JSONObject response = jParser.sendJSONToUrl(uri, testData);
+        
+        if (response != null)
+            try
+            {
+                final JSONArray errorList = response.getJSONArray("error");
+                
+                // System.out.println(response.toString(4));
+                
+                if (errorList.length() == 0)
+                {
+                    
+                    // System.out.println("All is fine");
+                    
+                }
+                else
+                {
+                    hasError = true;
+                    for (int i = 0; i < errorList.length(); i++)
+                    {
+                        if (i > 0)
+                            errorMsg += "\n";
+                        errorMsg += errorList.getString(i);
+                    }
+                    // only servers that store each result once tell whether
+                    // to send it again; without that it is always retried
+                    rejected = response.has("retry") && !response.getBoolean("retry");
+                }
+                
+                // }
+            }
+            catch (final JSONException e)
+            {
+                hasError = true;
+                errorMsg = "Error parsing server response";
+                e.printStackTrace();
+            }
     }
     
     public void sendNDTResult(final String host, final String pathPrefix, final int port, final boolean encryption,
@@ -375,6 +582,23 @@ public class ControlServerConnection
         }
     }
     
+    /**
+     * puts count, min, median, p90, p99 and jitter of stats (in nsec) as
+     * prefix_count etc.; nothing if stats is null or empty
+     */
+    private static void putLatency(final JSONObject data, final String prefix, final LatencyStats stats)
+            throws JSONException
+    {
+        if (stats == null || stats.count == 0)
+            return;
+        data.put(prefix + "_count", stats.count);
+        data.put(prefix + "_min", stats.min);
+        data.put(prefix + "_median", stats.median);
+        data.put(prefix + "_p90", stats.p90);
+        data.put(prefix + "_p99", stats.p99);
+        data.put(prefix + "_jitter", stats.jitter);
+    }
+    
     private void addToJSONObject(final JSONObject data, final JSONObject additionalValues) throws JSONException
     {
         if (additionalValues != null && additionalValues.length() > 0)
@@ -415,11 +639,34 @@ public class ControlServerConnection
         return testTime;
     }
     
+    /**
+     * @return true if the control server refused the last result for good
+     *         (e.g. an invalid token), so it must not be sent again
+     */
+    public boolean isRejected()
+    {
+        return rejected;
+    }
+    
+    /**
+     * @return true if the control server registering the last test accepts
+     *         several results in one request (see {@link #sendTestResults})
+     */
+    public boolean isResultBatchSupported()
+    {
+        return serverAcceptsBatch;
+    }
+    
     public String getErrorMsg()
     {
         return errorMsg;
     }
     
+    public URI getResultURI()
+    {
+        return resultURI;
+    }
+    
     public String getTestId()
     {
         return testId;
@@ -432,8 +679,49 @@ public class ControlServerConnection
     
     public RMBTTestParameter getTestParameter()
     {
-        return new RMBTTestParameter(testHost, testPort, testEncryption, testToken, testDuration, testNumThreads,
-                testTime);
+        final RMBTTestParameter params = new RMBTTestParameter(testHost, testPort, testEncryption, testToken,
+                testDuration, testNumThreads, testTime).withThreadBounds(testNumThreadsMin, testNumThreadsMax)
+                .withFamilyHosts(testHostIpv4, testHostIpv6);
+        if (testServers.isEmpty())
+            return params;
+        return params.withServers(testServers);
+    }
+    
+    /**
+     * lets {@link #requestNewTestConnection} ask for a test server name that
+     * resolves to both address families and the names for each family
+     */
+    public void setDualStack(final boolean dualStack)
+    {
+        this.dualStack = dualStack;
+    }
+    
+    /**
+     * lets {@link #requestNewTestConnection} accept up to maxTestServers test
+     * servers for a multi-server test
+     */
+    public void setMaxTestServers(final int maxTestServers)
+    {
+        this.maxTestServers = maxTestServers;
+    }
+    
+    /**
+     * lets {@link #createTestResult} send the speed details in the compact
+     * encoding of {@link SpeedDetailCodec} if the control server announced
+     * that it decodes them
+     */
+    public void setCompactResults(final boolean compactResults)
+    {
+        this.compactResults = compactResults;
+    }
+    
+    /**
+     * lets {@link #createTestResult} send the connection timing and client
+     * load of the result's streams
+     */
+    public void setUploadMetrics(final boolean uploadMetrics)
+    {
+        this.uploadMetrics = uploadMetrics;
     }
     
 }
@@ -18,6 +18,11 @@ package at.alladin.rmbt.client.helper;
 public class IntermediateResult
 {
     public long pingNano;
+    // statistics of the pings so far; -1 before the first ping
+    public long pingMedianNano;
+    public long pingP90Nano;
+    public long pingP99Nano;
+    public long pingJitterNano;
     public long downBitPerSec;
     public long upBitPerSec;
     public TestStatus status;
@@ -15,9 +15,15 @@
  ******************************************************************************/
 package at.alladin.rmbt.client.helper;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
@@ -25,9 +31,18 @@ import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
@@ -42,6 +57,15 @@ public class JSONParser
     // Start filing Errors
     JSONArray errorList = null;
     
+    // shared by all parsers, so registration, result and NDT requests reuse
+    // the pooled keep-alive connections to the control server
+    private static HttpClient client;
+    
+    private static int maxConnections = 4;
+    private static int maxConnectionsPerRoute = 2;
+    private static int timeout = 20000;
+    private static long maxIdleTime = 30000;
+    
     // constructor
     public JSONParser()
     {
@@ -49,22 +73,70 @@ public class JSONParser
         errorList = new JSONArray();
     }
     
+    /**
+     * sets the limits of the shared HTTP client; only effective before the
+     * first request of any parser
+     * 
+     * @param maxConnections
+     *            maximum number of pooled connections
+     * @param maxConnectionsPerRoute
+     *            maximum number of pooled connections to one host
+     * @param timeout
+     *            connect and read timeout in milliseconds
+     * @param maxIdleTime
+     *            milliseconds after which an unused connection is closed
+     */
+    public static synchronized void setConnectionLimits(final int maxConnections, final int maxConnectionsPerRoute,
+            final int timeout, final long maxIdleTime)
+    {
+        if (maxConnections < 1 || maxConnectionsPerRoute < 1 || timeout < 0 || maxIdleTime < 0)
+            throw new IllegalArgumentException("invalid connection limits");
+        JSONParser.maxConnections = maxConnections;
+        JSONParser.maxConnectionsPerRoute = Math.min(maxConnections, maxConnectionsPerRoute);
+        JSONParser.timeout = timeout;
+        JSONParser.maxIdleTime = maxIdleTime;
+    }
+    
+    private static synchronized HttpClient getClient()
+    {
+        if (client == null)
+        {
+            final HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, timeout);
+            HttpConnectionParams.setSoTimeout(params, timeout);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setTimeout(params, timeout);
+            ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+            
+            final SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            
+            client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        }
+        else
+        {
+            // the server may have closed connections that were idle too long
+            final ClientConnectionManager manager = client.getConnectionManager();
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS);
+        }
+        return client;
+    }
+    
     public JSONObject getURL(final URI uri)
     {
         JSONObject jObj = null;
         String responseBody;
+        errorList = new JSONArray();
         
         try
         {
-            final HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, 20000);
-            HttpConnectionParams.setSoTimeout(params, 20000);
-            final HttpClient client = new DefaultHttpClient(params);
-            
             final HttpGet httpget = new HttpGet(uri);
             
             final ResponseHandler<String> responseHandler = new BasicResponseHandler();
-            responseBody = client.execute(httpget, responseHandler);
+            responseBody = getClient().execute(httpget, responseHandler);
             
             // try parse the string to a JSON object
             try
@@ -105,25 +177,37 @@ public class JSONParser
     {
         JSONObject jObj = null;
         String responseBody;
+        errorList = new JSONArray();
         
         try
         {
-            final HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, 20000);
-            HttpConnectionParams.setSoTimeout(params, 20000);
-            final HttpClient client = new DefaultHttpClient(params);
-            
             final HttpPost httppost = new HttpPost(uri);
             
-            final StringEntity se = new StringEntity(data.toString());
-            
-            httppost.setEntity(se);
+            // written straight into the connection instead of building the
+            // whole document as a String first
+            final EntityTemplate entity = new EntityTemplate(new ContentProducer()
+            {
+                public void writeTo(final OutputStream out) throws IOException
+                {
+                    final Writer writer = new BufferedWriter(new OutputStreamWriter(out, HTTP.UTF_8));
+                    try
+                    {
+                        writeJSON(writer, data);
+                    }
+                    catch (final JSONException e)
+                    {
+                        throw new IOException(e.toString());
+                    }
+                    writer.flush();
+                }
+            });
+            httppost.setEntity(entity);
             httppost.setHeader(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
             httppost.setHeader("Content-type", "application/json");
             // Log.e("webservice request","executing");
             
             final ResponseHandler<String> responseHandler = new BasicResponseHandler();
-            responseBody = client.execute(httppost, responseHandler);
+            responseBody = getClient().execute(httppost, responseHandler);
             
             // try parse the string to a JSON object
             try
@@ -163,6 +247,52 @@ public class JSONParser
         return jObj;
     }
     
+    /**
+     * serializes value like {@link JSONObject#toString()}, but without building
+     * the whole document in memory; only uses methods that are also available
+     * in the org.json implementation of Android
+     */
+    static void writeJSON(final Writer writer, final Object value) throws IOException, JSONException
+    {
+        if (value == null || JSONObject.NULL.equals(value))
+            writer.write("null");
+        else if (value instanceof JSONObject)
+        {
+            final JSONObject object = (JSONObject) value;
+            writer.write('{');
+            boolean first = true;
+            for (final Iterator<?> keys = object.keys(); keys.hasNext();)
+            {
+                final String key = keys.next().toString();
+                if (!first)
+                    writer.write(',');
+                first = false;
+                writer.write(JSONObject.quote(key));
+                writer.write(':');
+                writeJSON(writer, object.get(key));
+            }
+            writer.write('}');
+        }
+        else if (value instanceof JSONArray)
+        {
+            final JSONArray array = (JSONArray) value;
+            writer.write('[');
+            for (int i = 0; i < array.length(); i++)
+            {
+                if (i > 0)
+                    writer.write(',');
+                writeJSON(writer, array.get(i));
+            }
+            writer.write(']');
+        }
+        else if (value instanceof Number)
+            writer.write(JSONObject.numberToString((Number) value));
+        else if (value instanceof Boolean)
+            writer.write(value.toString());
+        else
+            writer.write(JSONObject.quote(value.toString()));
+    }
+    
     private void writeErrorList(final String errorText)
     {
         try
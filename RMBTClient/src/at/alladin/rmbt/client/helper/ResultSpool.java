@@ -0,0 +1,510 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.client.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Results waiting for their upload, kept in an append-only file so they
+ * survive restarts.
+ * 
+ * Every line holds one result as {"url":..., "data":..., "batch":...}. Uploaded
+ * lines are not removed; the byte offset of the first pending line is kept in
+ * a second file (file name + ".pos"). Once everything is uploaded both files
+ * are emptied. Only the lines of one upload call are read into memory; the
+ * file itself is limited to maxBytes.
+ * 
+ * A result may be uploaded more than once, e.g. if the answer to its upload
+ * got lost; control servers store each result only once.
+ */
+public class ResultSpool
+{
+    private static final String CHARSET = "UTF-8";
+    
+    private final File file;
+    private final File posFile;
+    private final long maxBytes;
+    
+    /** one upload at a time; the spool itself is not locked while sending */
+    private final Object uploadLock = new Object();
+    
+    private Thread flusher;
+    private volatile boolean paused;
+    // pending lines, counted from the file once; -1 until then
+    private int pending = -1;
+    
+    public ResultSpool(final File file, final long maxBytes)
+    {
+        this.file = file;
+        posFile = new File(file.getPath() + ".pos");
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * appends the upload data to uri
+     * 
+     * @param batch
+     *            whether the control server at uri accepts several results in
+     *            one request (see
+     *            {@link ControlServerConnection#isResultBatchSupported()})
+     * @return false if the spool is full and the result was dropped
+     */
+    public synchronized boolean append(final URI uri, final JSONObject data, final boolean batch) throws IOException
+    {
+        final String line;
+        try
+        {
+            final JSONObject entry = new JSONObject();
+            entry.put("url", uri.toString());
+            entry.put("data", data);
+            if (batch)
+                entry.put("batch", true);
+            line = entry.toString() + "\n";
+        }
+        catch (final JSONException e)
+        {
+            throw new IOException(e.toString());
+        }
+        
+        final byte[] bytes = line.getBytes(CHARSET);
+        // a line cut off by a crash gets its end, so it is skipped on its own
+        // instead of taking this result with it
+        final boolean cutOff = !endsWithNewline();
+        if (file.length() + bytes.length + (cutOff ? 1 : 0) > maxBytes)
+            return false;
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            if (cutOff)
+                out.write('\n');
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if (pending >= 0)
+            pending++;
+        // wakes up an idle flusher
+        notifyAll();
+        return true;
+    }
+    
+    /**
+     * @return the number of results waiting for their upload; only the first
+     *         call reads the file
+     */
+    public synchronized int getPending() throws IOException
+    {
+        if (pending >= 0)
+            return pending;
+        int result = 0;
+        final BufferedReader reader = openPending();
+        try
+        {
+            while (reader.readLine() != null)
+                result++;
+        }
+        finally
+        {
+            reader.close();
+        }
+        pending = result;
+        return result;
+    }
+    
+    /**
+     * uploads up to maxResults pending results over connection, oldest first,
+     * one per request
+     * 
+     * @see #upload(ControlServerConnection, int, int)
+     */
+    public int upload(final ControlServerConnection connection, final int maxResults) throws IOException
+    {
+        return upload(connection, maxResults, 1);
+    }
+    
+    /**
+     * uploads up to maxResults pending results over connection, oldest first;
+     * up to maxBatch consecutive results for the same control server are sent
+     * in one request if it supports that. Stops at the first failure, the
+     * failed results stay pending, and before the next request while paused.
+     * Results the control server refuses for good and broken lines are
+     * dropped. The requests are sent without holding the spool, so appending
+     * and pausing do not wait for them.
+     * 
+     * @return the number of results no longer pending
+     */
+    public int upload(final ControlServerConnection connection, final int maxResults, final int maxBatch)
+            throws IOException
+    {
+        synchronized (uploadLock)
+        {
+            int done = 0;
+            for (final Batch batch : readBatches(maxResults, maxBatch))
+            {
+                if (paused)
+                    break;
+                if (!batch.results.isEmpty() && !send(connection, batch.uri, batch.results))
+                    break;
+                done += batch.lines;
+                advance(batch.end, batch.lines);
+            }
+            return done;
+        }
+    }
+    
+    /**
+     * reads up to maxResults pending lines, grouped into the requests that
+     * send them
+     */
+    private synchronized List<Batch> readBatches(final int maxResults, final int maxBatch) throws IOException
+    {
+        final List<Batch> result = new ArrayList<Batch>();
+        Batch batch = null;
+        int lines = 0;
+        long end = readPos();
+        final BufferedReader reader = openPending();
+        try
+        {
+            String line;
+            while (lines < maxResults && (line = reader.readLine()) != null)
+            {
+                lines++;
+                end += line.getBytes(CHARSET).length + 1;
+                URI uri = null;
+                JSONObject data = null;
+                boolean entryBatchable = false;
+                try
+                {
+                    final JSONObject entry = new JSONObject(line);
+                    uri = new URI(entry.getString("url"));
+                    data = entry.getJSONObject("data");
+                    entryBatchable = entry.optBoolean("batch");
+                }
+                catch (final JSONException e)
+                {
+                    // broken line (e.g. cut off by a crash): skip it
+                    System.out.println("skipping spooled result: " + e.toString());
+                }
+                catch (final URISyntaxException e)
+                {
+                    System.out.println("skipping spooled result: " + e.toString());
+                }
+                
+                if (batch == null || data == null || batch.results.isEmpty() || !batch.batchable
+                        || !entryBatchable || batch.results.size() >= maxBatch || !uri.equals(batch.uri))
+                {
+                    batch = new Batch(uri, entryBatchable);
+                    result.add(batch);
+                }
+                if (data != null)
+                    batch.results.add(data);
+                batch.lines++;
+                batch.end = end;
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return result;
+    }
+    
+    /**
+     * marks everything before pos, the next lines lines, as uploaded
+     */
+    private synchronized void advance(final long pos, final int lines) throws IOException
+    {
+        if (pos >= file.length())
+            clear();
+        else
+        {
+            writePos(pos);
+            if (pending >= 0)
+                pending = Math.max(0, pending - lines);
+        }
+        notifyAll();
+    }
+    
+    /**
+     * waits until no results are pending
+     * 
+     * @return false if results are still pending after timeoutMillis
+     */
+    public synchronized boolean awaitFlushed(final long timeoutMillis) throws IOException, InterruptedException
+    {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (getPending() > 0)
+        {
+            if (left <= 0)
+                return false;
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return true;
+    }
+    
+    /**
+     * @return false if the results have to be sent again
+     */
+    private static boolean send(final ControlServerConnection connection, final URI uri,
+            final List<JSONObject> batch)
+    {
+        final String error;
+        if (batch.size() == 1)
+        {
+            error = connection.sendTestResult(uri, batch.get(0));
+            if (error != null && connection.isRejected())
+            {
+                System.out.println("spooled result rejected: " + error);
+                return true;
+            }
+        }
+        else
+            error = connection.sendTestResults(uri, batch);
+        
+        if (error != null)
+        {
+            System.out.println(String.format(Locale.US, "%d spooled result(s) not uploaded: %s", batch.size(),
+                    error));
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * starts a background thread uploading the pending results over
+     * connection, which must not be used by anything else meanwhile, once at
+     * least minPending results are pending. After a failed upload it waits
+     * minDelayMillis, doubled with each further failure up to
+     * maxDelayMillis; each delay is randomly shortened by up to half, so many
+     * clients failing at the same time do not retry in step.
+     * 
+     * @param maxBatch
+     *            maximum number of results in one request
+     */
+    public synchronized void startFlusher(final ControlServerConnection connection, final int maxBatch,
+            final int minPending, final long minDelayMillis, final long maxDelayMillis)
+    {
+        if (flusher != null)
+            return;
+        flusher = new Thread("ResultSpool flusher")
+        {
+            @Override
+            public void run()
+            {
+                flush(connection, maxBatch, Math.max(1, minPending), minDelayMillis, maxDelayMillis);
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    /**
+     * stops the flusher and waits for it to finish the request in progress
+     */
+    public void stopFlusher() throws InterruptedException
+    {
+        final Thread thread;
+        synchronized (this)
+        {
+            thread = flusher;
+            flusher = null;
+        }
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+    
+    /**
+     * keeps the flusher from uploading, e.g. while a test is running; a
+     * request in progress is finished, the next one waits
+     */
+    public void setPaused(final boolean paused)
+    {
+        this.paused = paused;
+        if (!paused)
+            synchronized (this)
+            {
+                notifyAll();
+            }
+    }
+    
+    private void flush(final ControlServerConnection connection, final int maxBatch, final int minPending,
+            final long minDelayMillis, final long maxDelayMillis)
+    {
+        final Random random = new Random();
+        long delay = minDelayMillis;
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                int done = 0;
+                try
+                {
+                    synchronized (this)
+                    {
+                        while (paused || getPending() < minPending)
+                            wait();
+                    }
+                    // one request at a time, so memory does not grow with
+                    // the number of pending results
+                    done = upload(connection, maxBatch, maxBatch);
+                }
+                catch (final IOException e)
+                {
+                    e.printStackTrace();
+                }
+                
+                if (done > 0 || paused)
+                {
+                    delay = minDelayMillis;
+                    continue;
+                }
+                
+                final long jitter = (long) (random.nextDouble() * delay / 2);
+                System.out.println(String.format(Locale.US, "retrying spooled results in %d ms", delay - jitter));
+                Thread.sleep(delay - jitter);
+                delay = Math.min(maxDelayMillis, delay * 2);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            // stopped
+        }
+    }
+    
+    private BufferedReader openPending() throws IOException
+    {
+        if (!file.exists())
+            return new BufferedReader(new InputStreamReader(new FileInputStream(createEmpty()), CHARSET));
+        final FileInputStream in = new FileInputStream(file);
+        final long pos = readPos();
+        long skipped = 0;
+        while (skipped < pos)
+        {
+            final long n = in.skip(pos - skipped);
+            if (n <= 0)
+                break;
+            skipped += n;
+        }
+        return new BufferedReader(new InputStreamReader(in, CHARSET));
+    }
+    
+    /**
+     * @return true if the file is empty or its last line is complete
+     */
+    private boolean endsWithNewline() throws IOException
+    {
+        final long length = file.length();
+        if (length == 0)
+            return true;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    
+    private File createEmpty() throws IOException
+    {
+        new FileOutputStream(file).close();
+        return file;
+    }
+    
+    private long readPos() throws IOException
+    {
+        if (!posFile.exists())
+            return 0;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(posFile), CHARSET));
+        try
+        {
+            final String line = reader.readLine();
+            return line == null ? 0 : Long.parseLong(line.trim());
+        }
+        catch (final NumberFormatException e)
+        {
+            return 0;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    private void writePos(final long pos) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(posFile), CHARSET);
+        try
+        {
+            writer.write(Long.toString(pos));
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    private void clear() throws IOException
+    {
+        pending = 0;
+        new FileOutputStream(file).close();
+        if (posFile.exists() && !posFile.delete())
+            writePos(0);
+    }
+    
+    private static class Batch
+    {
+        final URI uri;
+        final boolean batchable;
+        final List<JSONObject> results = new ArrayList<JSONObject>();
+        int lines;
+        long end;
+        
+        Batch(final URI uri, final boolean batchable)
+        {
+            this.uri = uri;
+            this.batchable = batchable;
+        }
+    }
+}
@@ -11813,6 +11813,16 @@ CREATE TABLE test (
     zip_code_geo integer,
     mobile_provider_id integer,
     roaming_type integer,
+    early_stop_download boolean,
+    early_stop_upload boolean,
+    speed_download_ipv4 integer,
+    speed_download_ipv6 integer,
+    speed_upload_ipv4 integer,
+    speed_upload_ipv6 integer,
+    client_limited boolean,
+    client_metrics text,
+    speed_curve text,
+    bytes_servers text,
     CONSTRAINT enforce_dims_location CHECK ((st_ndims(location) = 2)),
     CONSTRAINT enforce_geotype_location CHECK (((geometrytype(location) = 'POINT'::text) OR (location IS NULL))),
     CONSTRAINT enforce_srid_location CHECK ((st_srid(location) = 900913)),
@@ -11829,6 +11839,76 @@ ALTER TABLE public.test OWNER TO rmbt;
 
 COMMENT ON COLUMN test.server_id IS 'id of test server used';
 
+
+--
+-- Name: COLUMN test.early_stop_download; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.early_stop_download IS 'download ended before the test duration because the rate was steady';
+
+
+--
+-- Name: COLUMN test.early_stop_upload; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.early_stop_upload IS 'upload ended before the test duration because the rate was steady';
+
+
+--
+-- Name: COLUMN test.speed_download_ipv4; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.speed_download_ipv4 IS 'dual-stack tests: share of the IPv4 streams in speed_download (kbit/s)';
+
+
+--
+-- Name: COLUMN test.speed_download_ipv6; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.speed_download_ipv6 IS 'dual-stack tests: share of the IPv6 streams in speed_download (kbit/s)';
+
+
+--
+-- Name: COLUMN test.speed_upload_ipv4; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.speed_upload_ipv4 IS 'dual-stack tests: share of the IPv4 streams in speed_upload (kbit/s)';
+
+
+--
+-- Name: COLUMN test.speed_upload_ipv6; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.speed_upload_ipv6 IS 'dual-stack tests: share of the IPv6 streams in speed_upload (kbit/s)';
+
+
+--
+-- Name: COLUMN test.client_limited; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.client_limited IS 'the CPU or garbage collection of the client limited the download or upload';
+
+
+--
+-- Name: COLUMN test.client_metrics; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.client_metrics IS 'JSON: connection timing of the streams, barrier wait, CPU and GC time per phase (ns)';
+
+
+--
+-- Name: COLUMN test.speed_curve; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.speed_curve IS 'JSON: bytes of all streams per slot of the grid (ns) for download and upload, merged by the client';
+
+
+--
+-- Name: COLUMN test.bytes_servers; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test.bytes_servers IS 'JSON: multi-server tests: share of each test server in bytes_download and bytes_upload';
+
 --
 -- Name: android_device_map; Type: TABLE; Schema: public; Owner: rmbt; Tablespace: 
 --
@@ -12579,7 +12659,8 @@ CREATE TABLE test_speed (
     upload boolean NOT NULL,
     thread smallint NOT NULL,
     "time" bigint NOT NULL,
-    bytes bigint NOT NULL
+    bytes bigint NOT NULL,
+    ip_version smallint
 );
 
 
@@ -12592,6 +12673,13 @@ ALTER TABLE public.test_speed OWNER TO rmbt;
 COMMENT ON COLUMN test_speed.upload IS 'f=down,t=up';
 
 
+--
+-- Name: COLUMN test_speed.ip_version; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN test_speed.ip_version IS 'address family of the stream in dual-stack tests (4 or 6), NULL otherwise';
+
+
 --
 -- Name: test_speed_uid_seq; Type: SEQUENCE; Schema: public; Owner: rmbt
 --
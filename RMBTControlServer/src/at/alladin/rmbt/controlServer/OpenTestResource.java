@@ -97,6 +97,7 @@ public class OpenTestResource extends ServerResource
                 " nat_type \"connection\"," +
                 " public_ip_asn asn," +
                 " client_public_ip_anonymized ip_anonym," +
+                " t.speed_curve," +
                 " (ndt.s2cspd*1000)::int ndt_download_kbit," +
                 " (ndt.c2sspd*1000)::int ndt_upload_kbit" +
                 " FROM test t" +
@@ -170,51 +171,60 @@ public class OpenTestResource extends ServerResource
                 JSONArray downloadSpeeds = new JSONArray();
                 JSONArray uploadSpeeds = new JSONArray();
                 
-                //Load speed data from database
-                PreparedStatement psSpeed = conn.prepareStatement("SELECT upload, thread, bytes, (time::float /1000/1000) as time FROM test_speed WHERE test_id = ? ORDER BY upload, time ASC");
-                psSpeed.setLong(1,rs.getLong("test_uid"));
-                
-                //Prepare arrays (bytes cumulated per thread)
-                long bytes[] = new long[rs.getInt("num_threads")];
-                ResultSet rsSpeed = psSpeed.executeQuery();                
-                long bytesCum=0;
-                boolean upload = false;
-                double lastMs = -1;
-                JSONObject lastObj = null; //the last object => if there are more than one entries for one timestamp
-                while(rsSpeed.next()) {
-                    int thread = rsSpeed.getInt("thread");
-                    double ms = rsSpeed.getDouble("time");
+                //the client merged the streams into a curve already
+                final String clientCurve = rs.getString("speed_curve");
+                if (clientCurve != null) {
+                    final JSONObject curves = new JSONObject(clientCurve);
+                    addClientCurve(downloadSpeeds, curves.getJSONObject("download"));
+                    addClientCurve(uploadSpeeds, curves.getJSONObject("upload"));
+                }
+                else {
+                    //Load speed data from database
+                    PreparedStatement psSpeed = conn.prepareStatement("SELECT upload, thread, bytes, (time::float /1000/1000) as time FROM test_speed WHERE test_id = ? ORDER BY upload, time ASC");
+                    psSpeed.setLong(1,rs.getLong("test_uid"));
                     
-                    //if its the first time a upload => clear array
-                    if (!upload && rsSpeed.getBoolean("upload")) {
-                        for (int i=0;i<bytes.length;i++)
-                        {
-                            bytes[i]=0;
+                    //Prepare arrays (bytes cumulated per thread)
+                    long bytes[] = new long[rs.getInt("num_threads")];
+                    ResultSet rsSpeed = psSpeed.executeQuery();                
+                    long bytesCum=0;
+                    boolean upload = false;
+                    double lastMs = -1;
+                    JSONObject lastObj = null; //the last object => if there are more than one entries for one timestamp
+                    while(rsSpeed.next()) {
+                        int thread = rsSpeed.getInt("thread");
+                        double ms = rsSpeed.getDouble("time");
+                        
+                        //if its the first time a upload => clear array
+                        if (!upload && rsSpeed.getBoolean("upload")) {
+                            for (int i=0;i<bytes.length;i++)
+                            {
+                                bytes[i]=0;
+                            }
+                            bytesCum=0;
+                            upload=true;
+                        }
+                        
+                        //bytesCum = bytesCum - old + new
+                        bytesCum = bytesCum - bytes[thread];
+                        bytes[thread] = rsSpeed.getLong("bytes");
+                        bytesCum = bytesCum + bytes[thread];
+                        
+                        //put the object in the json-response
+                        JSONArray json = (rsSpeed.getBoolean("upload"))?uploadSpeeds:downloadSpeeds;
+                        
+                        //if it is a new timestamp => make new array
+                        if (lastMs != ms) {
+                            JSONObject obj = new JSONObject();
+                            obj.put("time_elapsed", (int) ms);
+                            obj.put("bytes_total",bytesCum);
+                            json.put(obj);
+                            lastObj = obj;
+                            lastMs = ms;
+                        }
+                        else {
+                            //if it is the same time => update the previous timestamp
+                            lastObj.put("bytes_total",bytesCum);
                         }
-                        bytesCum=0;
-                        upload=true;
-                    }
-                    
-                    //bytesCum = bytesCum - old + new
-                    bytesCum = bytesCum - bytes[thread];
-                    bytes[thread] = rsSpeed.getLong("bytes");
-                    bytesCum = bytesCum + bytes[thread];
-                    
-                    //put the object in the json-response
-                    JSONArray json = (rsSpeed.getBoolean("upload"))?uploadSpeeds:downloadSpeeds;
-                    
-                    //if it is a new timestamp => make new array
-                    if (lastMs != ms) {
-                        JSONObject obj = new JSONObject();
-                        obj.put("time_elapsed", (int) ms);
-                        obj.put("bytes_total",bytesCum);
-                        json.put(obj);
-                        lastObj = obj;
-                        lastMs = ms;
-                    }
-                    else {
-                        //if it is the same time => update the previous timestamp
-                        lastObj.put("bytes_total",bytesCum);
                     }
                 }
                 
@@ -257,6 +267,23 @@ public class OpenTestResource extends ServerResource
 
         return response.toString();
     }
+    
+    /**
+     * converts a speed curve merged by the client ({"grid": ns, "bytes": bytes
+     * per slot}) into the format of the curves from test_speed
+     */
+    private static void addClientCurve(final JSONArray speeds, final JSONObject curve) throws JSONException {
+        final long grid = curve.getLong("grid");
+        final JSONArray bytes = curve.getJSONArray("bytes");
+        long bytesCum = 0;
+        for (int i = 0; i < bytes.length(); i++) {
+            bytesCum += bytes.getLong(i);
+            final JSONObject obj = new JSONObject();
+            obj.put("time_elapsed", (int) ((i + 1) * grid / 1000000));
+            obj.put("bytes_total", bytesCum);
+            speeds.put(obj);
+        }
+    }
         
     
 }
@@ -33,6 +33,7 @@ import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
 import java.util.UUID;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.data.Reference;
@@ -188,24 +189,16 @@ public class RegistrationResource extends ServerResource
                             
                             final Test_Server server = getNearestServer(errorList, geolat, geolong, geotime, ip);
                             
+                            // the client measures IPv4 and IPv6 at once
+                            final boolean dualStack = request.optBoolean("dual_stack");
+                            
                             if (server != null)
                             {
                                 
                                 testServerId = server.getUid();
                                 
-                                final InetAddress inetAddress = InetAddresses.forString(getIP());
-                                if (inetAddress instanceof Inet6Address)
-                                    testServerAddress = server.getWeb_address_ipv6();
-                                else if (inetAddress instanceof Inet4Address)
-                                    testServerAddress = server.getWeb_address_ipv4();
-                                else
-                                    testServerAddress = server.getWeb_address(); // does
-                                                                                 // this
-                                                                                 // really
-                                                                                 // make
-                                                                                 // sense?
-                                                                                 // ;)
-                                    
+                                testServerAddress = getServerAddress(server, dualStack);
+                                
                                 // hack for android api <= 10 (2.3.x)
                                 // using encryption with test doesn't work
                                 if (request.has("plattform") && request.optString("plattform").equals("Android"))
@@ -251,15 +244,27 @@ public class RegistrationResource extends ServerResource
                                     timeWithZone = Helperfunctions.getTimeWithTimeZone(timeZoneId);
                                 
                                 answer.put("test_server_address", testServerAddress);
+                                if (dualStack && server != null)
+                                {
+                                    answer.put("test_server_address_ipv4", server.getWeb_address_ipv4());
+                                    answer.put("test_server_address_ipv6", server.getWeb_address_ipv6());
+                                }
                                 answer.put("test_server_port", testServerPort);
                                 answer.put("test_server_name", testServerName);
                                 answer.put("test_server_encryption", testServerEncryption);
                                 
                                 answer.put("test_duration", settings.getString("RMBT_DURATION"));
                                 answer.put("test_numthreads", settings.getString("RMBT_NUM_THREADS"));
+                                answer.put("test_numthreads_min", settings.getString("RMBT_NUM_THREADS_MIN"));
+                                answer.put("test_numthreads_max", settings.getString("RMBT_NUM_THREADS_MAX"));
                                 
                                 answer.put("client_remote_ip", ip);
                                 
+                                // the result may carry a SpeedDetailCodec string
+                                answer.put("speed_detail_compact", true);
+                                // spooled results may be sent as {"results": [...]}
+                                answer.put("result_batch", true);
+                                
                                 final String resultUrl = new Reference(getURL(), settings.getString("RMBT_RESULT_PATH"))
                                         .getTargetRef().toString();
                                 
@@ -400,6 +405,11 @@ public class RegistrationResource extends ServerResource
                                             
                                             answer.put("test_token", token);
                                             
+                                            final int maxServers = request.optInt("test_servers_max", 1);
+                                            if (maxServers > 1 && server != null)
+                                                answer.put("test_servers", getTestServers(server,
+                                                        testServerEncryption, token, maxServers, dualStack));
+                                            
                                             answer.put("test_uuid", testUuid);
                                             answer.put("test_id", key);
                                             
@@ -486,6 +496,65 @@ public class RegistrationResource extends ServerResource
         return request(entity);
     }
     
+    /**
+     * @return the address of server for the IP version of the client or, for
+     *         a dual-stack test, the one for both versions
+     */
+    private String getServerAddress(final Test_Server server, final boolean dualStack)
+    {
+        final String webAddress = server.getWeb_address();
+        if (dualStack && webAddress != null && !webAddress.isEmpty())
+            return webAddress;
+        final InetAddress inetAddress = InetAddresses.forString(getIP());
+        if (inetAddress instanceof Inet6Address)
+            return server.getWeb_address_ipv6();
+        else if (inetAddress instanceof Inet4Address)
+            return server.getWeb_address_ipv4();
+        else
+            return server.getWeb_address(); // does this really make sense? ;)
+    }
+    
+    /**
+     * @return mainServer and up to maxServers - 1 servers of
+     *         RMBT_MULTI_SERVER_UIDS for a multi-server test; the test servers
+     *         check tokens with the same secret, so they all get token
+     */
+    private JSONArray getTestServers(final Test_Server mainServer, final boolean encryption, final String token,
+            final int maxServers, final boolean dualStack) throws JSONException
+    {
+        final JSONArray result = new JSONArray();
+        result.put(getTestServer(mainServer, encryption, token, dualStack));
+        for (final String uid : settings.getString("RMBT_MULTI_SERVER_UIDS").split(",\\s*"))
+        {
+            if (result.length() >= maxServers)
+                break;
+            if (uid.isEmpty())
+                continue;
+            final Test_Server server = new Test_Server(conn);
+            server.getServerByUid(Integer.parseInt(uid));
+            // a missing server only makes the test use fewer servers
+            if (!server.hasError() && server.getUid() != 0 && server.getUid() != mainServer.getUid())
+                result.put(getTestServer(server, encryption, token, dualStack));
+        }
+        return result;
+    }
+    
+    private JSONObject getTestServer(final Test_Server server, final boolean encryption, final String token,
+            final boolean dualStack) throws JSONException
+    {
+        final JSONObject result = new JSONObject();
+        result.put("address", getServerAddress(server, dualStack));
+        if (dualStack)
+        {
+            result.put("address_ipv4", server.getWeb_address_ipv4());
+            result.put("address_ipv6", server.getWeb_address_ipv6());
+        }
+        result.put("port", encryption ? server.getPort_ssl() : server.getPort());
+        result.put("name", server.getName());
+        result.put("token", token);
+        return result;
+    }
+    
     /**
      * @param geolat
      * @param geolong
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package at.alladin.rmbt.controlServer;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -41,6 +42,7 @@ import at.alladin.rmbt.db.Signal;
 import at.alladin.rmbt.db.Test;
 import at.alladin.rmbt.db.fields.IntField;
 import at.alladin.rmbt.shared.Helperfunctions;
+import at.alladin.rmbt.shared.protocol.SpeedDetailCodec;
 
 import com.google.common.net.InetAddresses;
 
@@ -54,6 +56,7 @@ public class ResultResource extends ServerResource
         addAllowOrigin();
         
         JSONObject request = null;
+        boolean retry = false;
         
         final ErrorList errorList = new ErrorList();
         final JSONObject answer = new JSONObject();
@@ -70,385 +73,514 @@ public class ResultResource extends ServerResource
             {
                 request = new JSONObject(entity);
                 
-                final String lang = request.optString("client_language");
-                
-                // Load Language Files for Client
-                
-                final List<String> langs = Arrays.asList(settings.getString("RMBT_SUPPORTED_LANGUAGES").split(",\\s*"));
-                
-                if (langs.contains(lang))
+                final JSONArray results = request.optJSONArray("results");
+                if (results == null)
+                    retry = storeResult(request, secret, clientIp, errorList);
+                else
                 {
-                    errorList.setLanguage(lang);
-                    labels = (PropertyResourceBundle) ResourceBundle.getBundle("at.alladin.rmbt.res.SystemMessages",
-                            new Locale(lang));
+                    // several spooled results in one request, each stored on
+                    // its own and answered in the same order
+                    final JSONArray resultAnswers = new JSONArray();
+                    for (int i = 0; i < results.length(); i++)
+                    {
+                        final ErrorList resultErrorList = new ErrorList();
+                        final boolean resultRetry = storeResult(results.getJSONObject(i), secret, clientIp,
+                                resultErrorList);
+                        final JSONObject resultAnswer = new JSONObject();
+                        resultAnswer.put("error", resultErrorList.getList());
+                        if (!resultErrorList.isEmpty())
+                            resultAnswer.put("retry", resultRetry);
+                        resultAnswers.put(resultAnswer);
+                    }
+                    answer.put("results", resultAnswers);
                 }
+            }
+            catch (final JSONException e)
+            {
+                errorList.addError("ERROR_REQUEST_JSON");
+                System.out.println("Error parsing JSDON Data " + e.toString());
+            }
+        else
+            errorList.addErrorString("Expected request is missing.");
+        
+        try
+        {
+            answer.putOpt("error", errorList.getList());
+            // tells spooling clients whether sending the result again may help
+            if (!errorList.isEmpty())
+                answer.put("retry", retry);
+        }
+        catch (final JSONException e)
+        {
+            System.out.println("Error saving ErrorList: " + e.toString());
+        }
+        
+        return answer.toString();
+    }
+    
+    /**
+     * stores one result in its own transaction
+     * 
+     * @return true if the result could not be stored for a reason that may
+     *         go away, so the client should send it again later
+     */
+    private boolean storeResult(final JSONObject request, final String secret, final String clientIp,
+            final ErrorList errorList)
+    {
+        try
+        {
+            final String lang = request.optString("client_language");
+            
+            // Load Language Files for Client
+            
+            final List<String> langs = Arrays.asList(settings.getString("RMBT_SUPPORTED_LANGUAGES").split(",\\s*"));
+            
+            if (langs.contains(lang))
+            {
+                errorList.setLanguage(lang);
+                labels = (PropertyResourceBundle) ResourceBundle.getBundle("at.alladin.rmbt.res.SystemMessages",
+                        new Locale(lang));
+            }
+            
+//            System.out.println(request.toString(4));
+            
+            if (conn != null)
+            {
+                
+                conn.setAutoCommit(false);
                 
-//                System.out.println(request.toString(4));
+                final Test test = new Test(conn);
                 
-                if (conn != null)
+                if (request.optString("test_token").length() > 0)
                 {
                     
-                    conn.setAutoCommit(false);
+                    final String[] token = request.getString("test_token").split("_");
                     
-                    final Test test = new Test(conn);
-                    
-                    if (request.optString("test_token").length() > 0)
+                    try
                     {
                         
-                        final String[] token = request.getString("test_token").split("_");
+                        // Check if UUID
+                        final UUID testUuid = UUID.fromString(token[0]);
+                        
+                        final String data = token[0] + "_" + token[1];
+                        
+                        final String hmac = Helperfunctions.calculateHMAC(secret, data);
+                        if (hmac.length() == 0)
+                            errorList.addError("ERROR_TEST_TOKEN");
                         
-                        try
+                        if (token[2].length() > 0 && hmac.equals(token[2]))
                         {
                             
-                            // Check if UUID
-                            final UUID testUuid = UUID.fromString(token[0]);
+                            final List<String> clientNames = Arrays.asList(settings.getString("RMBT_CLIENT_NAME")
+                                    .split(",\\s*"));
+                            final List<String> clientVersions = Arrays.asList(settings.getString(
+                                    "RMBT_VERSION_NUMBER").split(",\\s*"));
                             
-                            final String data = token[0] + "_" + token[1];
-                            
-                            final String hmac = Helperfunctions.calculateHMAC(secret, data);
-                            if (hmac.length() == 0)
-                                errorList.addError("ERROR_TEST_TOKEN");
-                            
-                            if (token[2].length() > 0 && hmac.equals(token[2]))
-                            {
-                                
-                                final List<String> clientNames = Arrays.asList(settings.getString("RMBT_CLIENT_NAME")
-                                        .split(",\\s*"));
-                                final List<String> clientVersions = Arrays.asList(settings.getString(
-                                        "RMBT_VERSION_NUMBER").split(",\\s*"));
-                                
-                                if (test.getTestByUuid(testUuid) > 0)
-                                    if (clientNames.contains(request.optString("client_name"))
-                                            && clientVersions.contains(request.optString("client_version")))
+                            if (test.getTestByUuid(testUuid) > 0)
+                                if (clientNames.contains(request.optString("client_name"))
+                                        && clientVersions.contains(request.optString("client_version")))
+                                {
+                                    
+                                    // a result sent again, e.g. after its answer got lost,
+                                    // is stored only once
+                                    if (!lockRunningTest(test.getUid()))
                                     {
-                                        
-                                        test.setFields(request);
-                                        
-                                        // RMBTClient Info
-                                        
-                                        final String ipLocal = request.optString("test_ip_local", null);
-                                        if (ipLocal != null)
+                                        System.out.println("Result already stored: " + testUuid);
+                                        conn.commit();
+                                        return false;
+                                    }
+                                    
+                                    test.setFields(request);
+                                    
+                                    // RMBTClient Info
+                                    
+                                    final String ipLocal = request.optString("test_ip_local", null);
+                                    if (ipLocal != null)
+                                    {
+                                        test.getField("client_local_ip").setString(
+                                                Helperfunctions.filterIpString(ipLocal));
+                                    }
+                                    test.getField("client_public_ip").setString(clientIp);
+                                    test.getField("client_public_ip_anonymized").setString(
+                                            Helperfunctions.anonymizeIpString(clientIp));
+                                    
+                                    if (ipLocal != null)
+                                    {
+                                        test.getField("nat_type")
+                                                .setString(Helperfunctions.getNatType(ipLocal, clientIp));
+                                    }
+                                    
+                                    final String ipServer = request.optString("test_ip_server", null);
+                                    if (ipServer != null)
+                                    {
+                                        final InetAddress testServerInetAddress = InetAddresses.forString(ipServer);
+                                        test.getField("server_ip").setString(
+                                                InetAddresses.toAddrString(testServerInetAddress));
+                                    }
+                                    
+                                    // Additional Info
+                                    
+                                    JSONArray speedData = request.optJSONArray("speed_detail");
+                                    // compact alternative to speed_detail, see SpeedDetailCodec
+                                    final String speedDataCompact = request.optString("speed_detail_compact", null);
+                                    
+                                    if (speedDataCompact != null && !test.hasError())
+                                    {
+                                        final PreparedStatement psSpeed = conn.prepareStatement("INSERT INTO test_speed (test_id, upload, thread, time, bytes, ip_version) VALUES (?,?,?,?,?,?)");
+                                        psSpeed.setLong(1, test.getUid());
+                                        try
                                         {
-                                            test.getField("client_local_ip").setString(
-                                                    Helperfunctions.filterIpString(ipLocal));
+                                            final SpeedDetailCodec.Decoder decoder = new SpeedDetailCodec.Decoder(speedDataCompact);
+                                            while (decoder.next())
+                                                addSpeedItem(psSpeed, decoder.isUpload(), decoder.getThread(),
+                                                        decoder.getTime(), decoder.getBytes(), decoder.getIpVersion());
+                                            psSpeed.executeBatch();
                                         }
-                                        test.getField("client_public_ip").setString(clientIp);
-                                        test.getField("client_public_ip_anonymized").setString(
-                                                Helperfunctions.anonymizeIpString(clientIp));
-                                        
-                                        if (ipLocal != null)
+                                        catch (final IOException e)
                                         {
-                                            test.getField("nat_type")
-                                                    .setString(Helperfunctions.getNatType(ipLocal, clientIp));
+                                            // rolled back like a broken speed_detail array
+                                            throw new JSONException("Error decoding speed_detail_compact "
+                                                    + e.toString());
                                         }
-                                        
-                                        final String ipServer = request.optString("test_ip_server", null);
-                                        if (ipServer != null)
+                                    }
+                                    else if (speedData != null && !test.hasError())
+                                    {
+                                        final PreparedStatement psSpeed = conn.prepareStatement("INSERT INTO test_speed (test_id, upload, thread, time, bytes, ip_version) VALUES (?,?,?,?,?,?)");
+                                        psSpeed.setLong(1, test.getUid());
+                                        for (int i = 0; i < speedData.length(); i++)
                                         {
-                                            final InetAddress testServerInetAddress = InetAddresses.forString(ipServer);
-                                            test.getField("server_ip").setString(
-                                                    InetAddresses.toAddrString(testServerInetAddress));
+                                            final JSONObject item = speedData.getJSONObject(i);
+                                            
+                                            final String direction = item.optString("direction");
+                                            if (direction != null && (direction.equals("download") || direction.equals("upload")))
+                                                addSpeedItem(psSpeed, direction.equals("upload"), item.optInt("thread"),
+                                                        item.optLong("time"), item.optLong("bytes"), item.optInt("ip_version"));
                                         }
+                                        psSpeed.executeBatch();
+                                    }
+                                    
+                                    final JSONArray pingData = request.optJSONArray("pings");
+                                    
+                                    if (pingData != null && !test.hasError())
+                                    {
+                                        final PreparedStatement psPing = conn.prepareStatement("INSERT INTO ping (test_id, value, value_server) " + "VALUES(?,?,?)");
+                                        psPing.setLong(1, test.getUid());
                                         
-                                        // Additional Info
-                                        
-                                        JSONArray speedData = request.optJSONArray("speed_detail");
-                                        
-                                        if (speedData != null && !test.hasError())
+                                        for (int i = 0; i < pingData.length(); i++)
                                         {
-                                            final PreparedStatement psSpeed = conn.prepareStatement("INSERT INTO test_speed (test_id, upload, thread, time, bytes) VALUES (?,?,?,?,?)");
-                                            psSpeed.setLong(1, test.getUid());
-                                            for (int i = 0; i < speedData.length(); i++)
-                                            {
-                                                final JSONObject item = speedData.getJSONObject(i);
-                                                
-                                                final String direction = item.optString("direction");
-                                                if (direction != null && (direction.equals("download") || direction.equals("upload")))
-                                                {
-                                                    psSpeed.setBoolean(2, direction.equals("upload"));
-                                                    psSpeed.setInt(3, item.optInt("thread"));
-                                                    psSpeed.setLong(4, item.optLong("time"));
-                                                    psSpeed.setLong(5, item.optLong("bytes"));
-                                                    
-                                                    psSpeed.executeUpdate();
-                                                }
-                                            }
+                                            
+                                            final JSONObject pingDataItem = pingData.getJSONObject(i);
+                                            
+                                            long valueClient = pingDataItem.optLong("value", -1);
+                                            if (valueClient >= 0)
+                                                psPing.setLong(2, valueClient);
+                                            else
+                                                psPing.setNull(2, Types.BIGINT);
+                                            
+                                            long valueServer = pingDataItem.optLong("value_server", -1);
+                                            if (valueServer >= 0)
+                                                psPing.setLong(3, valueServer);
+                                            else
+                                                psPing.setNull(3, Types.BIGINT);
+                                            
+                                            psPing.executeUpdate();
                                         }
-                                        
-                                        final JSONArray pingData = request.optJSONArray("pings");
-                                        
-                                        if (pingData != null && !test.hasError())
+                                    }
+                                    
+                                    final JSONArray geoData = request.optJSONArray("geoLocations");
+                                    
+                                    if (geoData != null && !test.hasError())
+                                        for (int i = 0; i < geoData.length(); i++)
                                         {
-                                            final PreparedStatement psPing = conn.prepareStatement("INSERT INTO ping (test_id, value, value_server) " + "VALUES(?,?,?)");
-                                            psPing.setLong(1, test.getUid());
                                             
-                                            for (int i = 0; i < pingData.length(); i++)
+                                            final JSONObject geoDataItem = geoData.getJSONObject(i);
+                                            
+                                            if (geoDataItem.optLong("tstamp", 0) != 0 && geoDataItem.optDouble("geo_lat", 0) != 0 && geoDataItem.optDouble("geo_long", 0) != 0) {
+                                            
+                                            final GeoLocation geoloc = new GeoLocation(conn);
+                                            
+                                            geoloc.setTest_id(test.getUid());
+                                            
+                                            final long clientTime = geoDataItem.optLong("tstamp");
+                                            final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
+                                                    clientTime).toString());
+                                            
+                                            geoloc.setTime(tstamp, test.getField("timezone").toString());
+                                            geoloc.setAccuracy((float) geoDataItem.optDouble("accuracy", 0));
+                                            geoloc.setAltitude(geoDataItem.optDouble("altitude", 0));
+                                            geoloc.setBearing((float) geoDataItem.optDouble("bearing", 0));
+                                            geoloc.setSpeed((float) geoDataItem.optDouble("speed", 0));
+                                            geoloc.setProvider(geoDataItem.optString("provider", ""));
+                                            geoloc.setGeo_lat(geoDataItem.optDouble("geo_lat", 0));
+                                            geoloc.setGeo_long(geoDataItem.optDouble("geo_long", 0));
+                                            
+                                            geoloc.storeLocation();
+                                            
+                                            // Store Last Geolocation as
+                                            // Testlocation
+                                            if (i == geoData.length() - 1)
                                             {
+                                                if (geoDataItem.has("geo_lat"))
+                                                    test.getField("geo_lat").setField(geoDataItem);
                                                 
-                                                final JSONObject pingDataItem = pingData.getJSONObject(i);
-                                                
-                                                long valueClient = pingDataItem.optLong("value", -1);
-                                                if (valueClient >= 0)
-                                                    psPing.setLong(2, valueClient);
-                                                else
-                                                    psPing.setNull(2, Types.BIGINT);
+                                                if (geoDataItem.has("geo_long"))
+                                                    test.getField("geo_long").setField(geoDataItem);
                                                 
-                                                long valueServer = pingDataItem.optLong("value_server", -1);
-                                                if (valueServer >= 0)
-                                                    psPing.setLong(3, valueServer);
-                                                else
-                                                    psPing.setNull(3, Types.BIGINT);
+                                                if (geoDataItem.has("accuracy"))
+                                                    test.getField("geo_accuracy").setField(geoDataItem);
                                                 
-                                                psPing.executeUpdate();
+                                                if (geoDataItem.has("provider"))
+                                                    test.getField("geo_provider").setField(geoDataItem);
                                             }
-                                        }
-                                        
-                                        final JSONArray geoData = request.optJSONArray("geoLocations");
-                                        
-                                        if (geoData != null && !test.hasError())
-                                            for (int i = 0; i < geoData.length(); i++)
+                                            
+                                            if (geoloc.hasError())
                                             {
-                                                
-                                                final JSONObject geoDataItem = geoData.getJSONObject(i);
-                                                
-                                                if (geoDataItem.optLong("tstamp", 0) != 0 && geoDataItem.optDouble("geo_lat", 0) != 0 && geoDataItem.optDouble("geo_long", 0) != 0) {
-                                                
-                                                final GeoLocation geoloc = new GeoLocation(conn);
-                                                
-                                                geoloc.setTest_id(test.getUid());
-                                                
-                                                final long clientTime = geoDataItem.optLong("tstamp");
-                                                final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
-                                                        clientTime).toString());
-                                                
-                                                geoloc.setTime(tstamp, test.getField("timezone").toString());
-                                                geoloc.setAccuracy((float) geoDataItem.optDouble("accuracy", 0));
-                                                geoloc.setAltitude(geoDataItem.optDouble("altitude", 0));
-                                                geoloc.setBearing((float) geoDataItem.optDouble("bearing", 0));
-                                                geoloc.setSpeed((float) geoDataItem.optDouble("speed", 0));
-                                                geoloc.setProvider(geoDataItem.optString("provider", ""));
-                                                geoloc.setGeo_lat(geoDataItem.optDouble("geo_lat", 0));
-                                                geoloc.setGeo_long(geoDataItem.optDouble("geo_long", 0));
-                                                
-                                                geoloc.storeLocation();
-                                                
-                                                // Store Last Geolocation as
-                                                // Testlocation
-                                                if (i == geoData.length() - 1)
-                                                {
-                                                    if (geoDataItem.has("geo_lat"))
-                                                        test.getField("geo_lat").setField(geoDataItem);
-                                                    
-                                                    if (geoDataItem.has("geo_long"))
-                                                        test.getField("geo_long").setField(geoDataItem);
-                                                    
-                                                    if (geoDataItem.has("accuracy"))
-                                                        test.getField("geo_accuracy").setField(geoDataItem);
-                                                    
-                                                    if (geoDataItem.has("provider"))
-                                                        test.getField("geo_provider").setField(geoDataItem);
-                                                }
-                                                
-                                                if (geoloc.hasError())
-                                                {
-                                                    errorList.addError(geoloc.getError());
-                                                    break;
-                                                }
-                                                
-                                                }
-                                                
+                                                errorList.addError(geoloc.getError());
+                                                break;
                                             }
-                                        
-                                        final JSONArray cellData = request.optJSONArray("cellLocations");
-                                        
-                                        if (cellData != null && !test.hasError())
-                                            for (int i = 0; i < cellData.length(); i++)
-                                            {
-                                                
-                                                final JSONObject cellDataItem = cellData.getJSONObject(i);
-                                                
-                                                final Cell_location cellloc = new Cell_location(conn);
-                                                
-                                                cellloc.setTest_id(test.getUid());
-                                                
-                                                final long clientTime = cellDataItem.optLong("time");
-                                                final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
-                                                        clientTime).toString());
-                                                
-                                                cellloc.setTime(tstamp, test.getField("timezone").toString());
-                                                cellloc.setLocation_id(cellDataItem.optInt("location_id", 0));
-                                                cellloc.setArea_code(cellDataItem.optInt("area_code", 0));
-                                                
-                                                cellloc.setPrimary_scrambling_code(cellDataItem.optInt(
-                                                        "primary_scrambling_code", 0));
-                                                
-                                                cellloc.storeLocation();
-                                                
-                                                if (cellloc.hasError())
-                                                {
-                                                    errorList.addError(cellloc.getError());
-                                                    break;
-                                                }
-                                                
+                                            
                                             }
-                                        
-                                        int signalStrength = Integer.MAX_VALUE;
-                                        int linkSpeed = Integer.MAX_VALUE;
-                                        final int networkType = test.getField("network_type").intValue();
-                                        int maxNetworkType = networkType;
-                                        
-                                        final JSONArray signalData = request.optJSONArray("signals");
-                                        
-                                        if (signalData != null && !test.hasError())
+                                            
+                                        }
+                                    
+                                    final JSONArray cellData = request.optJSONArray("cellLocations");
+                                    
+                                    if (cellData != null && !test.hasError())
+                                        for (int i = 0; i < cellData.length(); i++)
                                         {
                                             
-                                            for (int i = 0; i < signalData.length(); i++)
+                                            final JSONObject cellDataItem = cellData.getJSONObject(i);
+                                            
+                                            final Cell_location cellloc = new Cell_location(conn);
+                                            
+                                            cellloc.setTest_id(test.getUid());
+                                            
+                                            final long clientTime = cellDataItem.optLong("time");
+                                            final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
+                                                    clientTime).toString());
+                                            
+                                            cellloc.setTime(tstamp, test.getField("timezone").toString());
+                                            cellloc.setLocation_id(cellDataItem.optInt("location_id", 0));
+                                            cellloc.setArea_code(cellDataItem.optInt("area_code", 0));
+                                            
+                                            cellloc.setPrimary_scrambling_code(cellDataItem.optInt(
+                                                    "primary_scrambling_code", 0));
+                                            
+                                            cellloc.storeLocation();
+                                            
+                                            if (cellloc.hasError())
                                             {
-                                                
-                                                final JSONObject signalDataItem = signalData.getJSONObject(i);
-                                                
-                                                final Signal signal = new Signal(conn);
-                                                
-                                                signal.setTest_id(test.getUid());
-                                                
-                                                final long clientTime = signalDataItem.optLong("time");
-                                                final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
-                                                        clientTime).toString());
-                                                
-                                                signal.setTime(tstamp, test.getField("timezone").toString());
-                                                
-                                                final int thisNetworkType = signalDataItem.optInt("network_type_id", 0);
-                                                signal.setNetwork_type_id(thisNetworkType);
-                                                if (thisNetworkType > maxNetworkType)
-                                                    maxNetworkType = thisNetworkType;
-                                                
-                                                final int thisSignalStrength = signalDataItem.optInt("signal_strength",
-                                                        Integer.MAX_VALUE);
-                                                if (thisSignalStrength != Integer.MAX_VALUE)
-                                                    signal.setSignal_strength(thisSignalStrength);
-                                                signal.setGsm_bit_error_rate(signalDataItem.optInt(
-                                                        "gsm_bit_error_rate", 0));
-                                                final int thisLinkSpeed = signalDataItem.optInt("wifi_link_speed", 0);
-                                                signal.setWifi_link_speed(thisLinkSpeed);
-                                                final int rssi = signalDataItem.optInt("wifi_rssi", Integer.MAX_VALUE);
-                                                if (rssi != Integer.MAX_VALUE)
-                                                    signal.setWifi_rssi(rssi);
-                                                
-                                                signal.storeSignal();
-                                                
-                                                if (networkType == 99)
-                                                {
-                                                    if (rssi < signalStrength && rssi != Integer.MIN_VALUE)
-                                                        signalStrength = rssi;
-                                                }
-                                                else if (thisSignalStrength < signalStrength && thisSignalStrength != Integer.MIN_VALUE)
-                                                    signalStrength = thisSignalStrength;
-                                                
-                                                if (thisLinkSpeed != 0 && thisLinkSpeed < linkSpeed)
-                                                    linkSpeed = thisLinkSpeed;
-                                                
-                                                if (signal.hasError())
-                                                {
-                                                    errorList.addError(signal.getError());
-                                                    break;
-                                                }
-                                                
+                                                errorList.addError(cellloc.getError());
+                                                break;
                                             }
                                             
-                                            if (signalStrength != Integer.MAX_VALUE
-                                                    && signalStrength != Integer.MIN_VALUE
-                                                    && signalStrength != 0) // 0 dBm is veeery unlikely - is an error in most cases
-                                                ((IntField) test.getField("signal_strength")).setValue(signalStrength);
-                                            
-                                            if (linkSpeed != Integer.MAX_VALUE)
-                                                ((IntField) test.getField("wifi_link_speed")).setValue(linkSpeed);
                                         }
+                                    
+                                    int signalStrength = Integer.MAX_VALUE;
+                                    int linkSpeed = Integer.MAX_VALUE;
+                                    final int networkType = test.getField("network_type").intValue();
+                                    int maxNetworkType = networkType;
+                                    
+                                    final JSONArray signalData = request.optJSONArray("signals");
+                                    
+                                    if (signalData != null && !test.hasError())
+                                    {
                                         
-                                        // use max network type
-                                        ((IntField)test.getField("network_type")).setValue(maxNetworkType);
-                                        
-                                        /*
-                                         * check for different types (e.g.
-                                         * 2G/3G)
-                                         */
-                                        final String sqlAggSignal = "WITH agg AS"
-                                                + " (SELECT array_agg(DISTINCT nt.group_name ORDER BY nt.group_name) agg"
-                                                + " FROM signal s"
-                                                + " JOIN network_type nt ON s.network_type_id=nt.uid WHERE test_id=?)"
-                                                + " SELECT uid FROM agg JOIN network_type nt ON nt.aggregate=agg";
-                                        
-                                        final PreparedStatement ps = conn.prepareStatement(sqlAggSignal);
-                                        ps.setLong(1, test.getUid());
-                                        if (ps.execute())
+                                        for (int i = 0; i < signalData.length(); i++)
                                         {
-                                            final ResultSet rs = ps.getResultSet();
-                                            if (rs.next())
+                                            
+                                            final JSONObject signalDataItem = signalData.getJSONObject(i);
+                                            
+                                            final Signal signal = new Signal(conn);
+                                            
+                                            signal.setTest_id(test.getUid());
+                                            
+                                            final long clientTime = signalDataItem.optLong("time");
+                                            final Timestamp tstamp = java.sql.Timestamp.valueOf(new Timestamp(
+                                                    clientTime).toString());
+                                            
+                                            signal.setTime(tstamp, test.getField("timezone").toString());
+                                            
+                                            final int thisNetworkType = signalDataItem.optInt("network_type_id", 0);
+                                            signal.setNetwork_type_id(thisNetworkType);
+                                            if (thisNetworkType > maxNetworkType)
+                                                maxNetworkType = thisNetworkType;
+                                            
+                                            final int thisSignalStrength = signalDataItem.optInt("signal_strength",
+                                                    Integer.MAX_VALUE);
+                                            if (thisSignalStrength != Integer.MAX_VALUE)
+                                                signal.setSignal_strength(thisSignalStrength);
+                                            signal.setGsm_bit_error_rate(signalDataItem.optInt(
+                                                    "gsm_bit_error_rate", 0));
+                                            final int thisLinkSpeed = signalDataItem.optInt("wifi_link_speed", 0);
+                                            signal.setWifi_link_speed(thisLinkSpeed);
+                                            final int rssi = signalDataItem.optInt("wifi_rssi", Integer.MAX_VALUE);
+                                            if (rssi != Integer.MAX_VALUE)
+                                                signal.setWifi_rssi(rssi);
+                                            
+                                            signal.storeSignal();
+                                            
+                                            if (networkType == 99)
+                                            {
+                                                if (rssi < signalStrength && rssi != Integer.MIN_VALUE)
+                                                    signalStrength = rssi;
+                                            }
+                                            else if (thisSignalStrength < signalStrength && thisSignalStrength != Integer.MIN_VALUE)
+                                                signalStrength = thisSignalStrength;
+                                            
+                                            if (thisLinkSpeed != 0 && thisLinkSpeed < linkSpeed)
+                                                linkSpeed = thisLinkSpeed;
+                                            
+                                            if (signal.hasError())
                                             {
-                                                final int newNetworkType = rs.getInt("uid");
-                                                if (newNetworkType != 0)
-                                                    ((IntField) test.getField("network_type")).setValue(newNetworkType);
+                                                errorList.addError(signal.getError());
+                                                break;
                                             }
+                                            
                                         }
                                         
-                                        if (test.getField("network_type").intValue() <= 0)
-                                            errorList.addError("ERROR_NETWORK_TYPE");
-                                        
-                                        if (errorList.isEmpty())
-                                            test.getField("status").setString("FINISHED");
-                                        else
-                                            test.getField("status").setString("ERROR");
-                                        
-                                        test.updateTest();
-                                        
-                                        if (test.hasError())
-                                            errorList.addError(test.getError());
+                                        if (signalStrength != Integer.MAX_VALUE
+                                                && signalStrength != Integer.MIN_VALUE
+                                                && signalStrength != 0) // 0 dBm is veeery unlikely - is an error in most cases
+                                            ((IntField) test.getField("signal_strength")).setValue(signalStrength);
                                         
+                                        if (linkSpeed != Integer.MAX_VALUE)
+                                            ((IntField) test.getField("wifi_link_speed")).setValue(linkSpeed);
+                                    }
+                                    
+                                    // use max network type
+                                    ((IntField)test.getField("network_type")).setValue(maxNetworkType);
+                                    
+                                    /*
+                                     * check for different types (e.g.
+                                     * 2G/3G)
+                                     */
+                                    final String sqlAggSignal = "WITH agg AS"
+                                            + " (SELECT array_agg(DISTINCT nt.group_name ORDER BY nt.group_name) agg"
+                                            + " FROM signal s"
+                                            + " JOIN network_type nt ON s.network_type_id=nt.uid WHERE test_id=?)"
+                                            + " SELECT uid FROM agg JOIN network_type nt ON nt.aggregate=agg";
+                                    
+                                    final PreparedStatement ps = conn.prepareStatement(sqlAggSignal);
+                                    ps.setLong(1, test.getUid());
+                                    if (ps.execute())
+                                    {
+                                        final ResultSet rs = ps.getResultSet();
+                                        if (rs.next())
+                                        {
+                                            final int newNetworkType = rs.getInt("uid");
+                                            if (newNetworkType != 0)
+                                                ((IntField) test.getField("network_type")).setValue(newNetworkType);
+                                        }
                                     }
+                                    
+                                    if (test.getField("network_type").intValue() <= 0)
+                                        errorList.addError("ERROR_NETWORK_TYPE");
+                                    
+                                    if (errorList.isEmpty())
+                                        test.getField("status").setString("FINISHED");
                                     else
-                                        errorList.addError("ERROR_CLIENT_VERSION");
-                            }
-                            else
-                                errorList.addError("ERROR_TEST_TOKEN_MALFORMED");
+                                        test.getField("status").setString("ERROR");
+                                    
+                                    test.updateTest();
+                                    
+                                    if (test.hasError())
+                                        errorList.addError(test.getError());
+                                    
+                                }
+                                else
+                                    errorList.addError("ERROR_CLIENT_VERSION");
                         }
-                        catch (final IllegalArgumentException e)
-                        {
-                            e.printStackTrace();
+                        else
                             errorList.addError("ERROR_TEST_TOKEN_MALFORMED");
-                        }
-                        
                     }
-                    else
-                        errorList.addError("ERROR_TEST_TOKEN_MISSING");
+                    catch (final IllegalArgumentException e)
+                    {
+                        e.printStackTrace();
+                        errorList.addError("ERROR_TEST_TOKEN_MALFORMED");
+                    }
                     
-                    conn.commit();
                 }
                 else
-                    errorList.addError("ERROR_DB_CONNECTION");
+                    errorList.addError("ERROR_TEST_TOKEN_MISSING");
                 
+                conn.commit();
             }
-            catch (final JSONException e)
-            {
-                errorList.addError("ERROR_REQUEST_JSON");
-                System.out.println("Error parsing JSDON Data " + e.toString());
-            }
-            catch (final SQLException e)
-            {
-                errorList.addError("ERROR_REQUEST_JSON");
-                System.out.println("Error while storing data " + e.toString());
-            }
-        else
-            errorList.addErrorString("Expected request is missing.");
-        
+            else
+                errorList.addError("ERROR_DB_CONNECTION");
+            
+            return conn == null;
+        }
+        catch (final JSONException e)
+        {
+            errorList.addError("ERROR_REQUEST_JSON");
+            System.out.println("Error parsing JSDON Data " + e.toString());
+            rollback();
+            return false;
+        }
+        catch (final SQLException e)
+        {
+            errorList.addError("ERROR_REQUEST_JSON");
+            System.out.println("Error while storing data " + e.toString());
+            rollback();
+            return true;
+        }
+    }
+    
+    /**
+     * locks the row of the test until the end of the transaction, so a
+     * concurrent upload of the same result waits for this one
+     * 
+     * @return false if the test already has its result
+     */
+    private boolean lockRunningTest(final long uid) throws SQLException
+    {
+        final PreparedStatement st = conn.prepareStatement("SELECT status FROM test WHERE uid = ? FOR UPDATE");
+        st.setLong(1, uid);
+        final ResultSet rs = st.executeQuery();
         try
         {
-            answer.putOpt("error", errorList.getList());
+            return rs.next() && "RUNNING".equals(rs.getString(1));
         }
-        catch (final JSONException e)
+        finally
         {
-            System.out.println("Error saving ErrorList: " + e.toString());
+            rs.close();
+            st.close();
         }
-        
-        return answer.toString();
+    }
+    
+    private void rollback()
+    {
+        try
+        {
+            if (conn != null)
+                conn.rollback();
+        }
+        catch (final SQLException e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * adds a row to the batch of psSpeed, whose test_id is already set
+     * 
+     * @param ipVersion
+     *            address family of a dual-stack stream, 0 otherwise
+     */
+    private static void addSpeedItem(final PreparedStatement psSpeed, final boolean upload, final int thread,
+            final long time, final long bytes, final int ipVersion) throws SQLException
+    {
+        psSpeed.setBoolean(2, upload);
+        psSpeed.setInt(3, thread);
+        psSpeed.setLong(4, time);
+        psSpeed.setLong(5, bytes);
+        // separate curves per address family in dual-stack tests
+        if (ipVersion > 0)
+            psSpeed.setInt(6, ipVersion);
+        else
+            psSpeed.setNull(6, Types.SMALLINT);
+        psSpeed.addBatch();
     }
     
     @Get("json")
@@ -96,6 +96,16 @@ public class Test extends Table
             new LongField("bytes_upload", "test_bytes_upload"),
             new LongField("nsec_download", "test_nsec_download"),
             new LongField("nsec_upload", "test_nsec_upload"), 
+            new BooleanField("early_stop_download", "test_early_stop_download"),
+            new BooleanField("early_stop_upload", "test_early_stop_upload"),
+            new IntField("speed_download_ipv4", "test_speed_download_ipv4"),
+            new IntField("speed_download_ipv6", "test_speed_download_ipv6"),
+            new IntField("speed_upload_ipv4", "test_speed_upload_ipv4"),
+            new IntField("speed_upload_ipv6", "test_speed_upload_ipv6"),
+            new BooleanField("client_limited", "test_client_limited"),
+            new StringField("client_metrics", "test_metrics"),
+            new StringField("speed_curve", "speed_curve"),
+            new StringField("bytes_servers", "test_bytes_servers"),
             new StringField("server_ip", null),
             new StringField("client_software_version", "client_software_version"),
             new DoubleField("geo_lat", "geo_lat"), 
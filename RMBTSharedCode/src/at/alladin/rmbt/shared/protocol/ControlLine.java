@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.shared.protocol;
+
+import java.nio.ByteBuffer;
+
+import at.alladin.rmbt.shared.protocol.ControlLineCodec.Command;
+
+/**
+ * A control line decoded by {@link ControlLineCodec}. Instances are meant to be
+ * reused; the line refers to the decoded buffer and is only valid until that
+ * buffer is modified.
+ */
+public final class ControlLine
+{
+    Command command = Command.UNKNOWN;
+    long value = -1;
+    long bytes = -1;
+    
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    
+    void set(final ByteBuffer buffer, final int start, final int end)
+    {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        command = Command.UNKNOWN;
+        value = -1;
+        bytes = -1;
+    }
+    
+    public Command getCommand()
+    {
+        return command;
+    }
+    
+    /**
+     * @return the number of a CHUNKSIZE, GETCHUNKS, GETTIME or TIME line
+     */
+    public long getValue()
+    {
+        return value;
+    }
+    
+    /**
+     * @return the BYTES value of a "TIME x BYTES y" line or -1
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+    
+    public boolean hasBytes()
+    {
+        return bytes >= 0;
+    }
+    
+    public int length()
+    {
+        return end - start;
+    }
+    
+    public boolean equalsAscii(final CharSequence text)
+    {
+        return text.length() == length() && startsWithAscii(text);
+    }
+    
+    public boolean startsWithAscii(final CharSequence text)
+    {
+        final int length = text.length();
+        if (length > length())
+            return false;
+        for (int i = 0; i < length; i++)
+            if (buffer.get(start + i) != (byte) text.charAt(i))
+                return false;
+        return true;
+    }
+    
+    /**
+     * @return the line without line feed; allocates, so only meant for logging
+     */
+    @Override
+    public String toString()
+    {
+        if (buffer == null)
+            return "";
+        final char[] chars = new char[length()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = (char) (buffer.get(start + i) & 0xff);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.shared.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the control lines of the RMBT protocol directly from and to
+ * byte buffers, without intermediate Strings.
+ * 
+ * This package is also compiled into RMBTClient (and therefore RMBTAndroid),
+ * so it must not depend on anything but the JRE and must stay Java 5
+ * compatible.
+ */
+public final class ControlLineCodec
+{
+    public enum Command
+    {
+        ACCEPT, TOKEN, OK, CHUNKSIZE, GETCHUNKS, GETTIME, PUT, PUTNORESULT, PING, PONG, TIME, QUIT, BYE, ERR,
+        /** greeting or any other line not starting with a known keyword */
+        UNKNOWN;
+        
+        final byte[] keyword;
+        
+        private Command()
+        {
+            // not via toAscii(): that would initialize the outer class, which
+            // needs values() of this enum
+            final String name = name();
+            keyword = new byte[name.length()];
+            for (int i = 0; i < keyword.length; i++)
+                keyword[i] = (byte) name.charAt(i);
+        }
+    }
+    
+    private static final Command[] COMMANDS = Command.values();
+    private static final byte[] BYTES = toAscii(" BYTES ");
+    private static final byte NEWLINE = '\n';
+    private static final byte SPACE = ' ';
+    
+    // Suppress default constructor for noninstantiability
+    private ControlLineCodec()
+    {
+        throw new AssertionError();
+    }
+    
+    /**
+     * decodes the next line of in into line; on success the position of in is
+     * moved behind the line feed
+     * 
+     * @return false if in does not contain a complete line yet (in stays
+     *         untouched)
+     */
+    public static boolean decode(final ByteBuffer in, final ControlLine line)
+    {
+        final int start = in.position();
+        final int limit = in.limit();
+        int end = -1;
+        for (int i = start; i < limit; i++)
+            if (in.get(i) == NEWLINE)
+            {
+                end = i;
+                break;
+            }
+        if (end == -1)
+            return false;
+        
+        in.position(end + 1);
+        if (end > start && in.get(end - 1) == '\r')
+            end--;
+        
+        line.set(in, start, end);
+        
+        int keywordEnd = start;
+        while (keywordEnd < end && in.get(keywordEnd) != SPACE)
+            keywordEnd++;
+        
+        Command command = Command.UNKNOWN;
+        for (final Command c : COMMANDS)
+            if (regionEquals(in, start, keywordEnd, c.keyword))
+            {
+                command = c;
+                break;
+            }
+        line.command = command;
+        
+        switch (command)
+        {
+        case CHUNKSIZE:
+        case GETCHUNKS:
+        case GETTIME:
+            line.value = parseNumber(in, keywordEnd + 1, end);
+            if (line.value < 0)
+                line.command = Command.UNKNOWN;
+            break;
+        
+        case TIME:
+            int numberEnd = keywordEnd + 1;
+            while (numberEnd < end && in.get(numberEnd) != SPACE)
+                numberEnd++;
+            line.value = parseNumber(in, keywordEnd + 1, numberEnd);
+            if (numberEnd < end)
+            {
+                final int bytesStart = numberEnd + BYTES.length;
+                if (regionEquals(in, numberEnd, Math.min(bytesStart, end), BYTES))
+                    line.bytes = parseNumber(in, bytesStart, end);
+            }
+            if (line.value < 0)
+                line.command = Command.UNKNOWN;
+            break;
+        
+        default:
+            break;
+        }
+        return true;
+    }
+    
+    /**
+     * @return the non-negative number in the region or -1 if it is empty or
+     *         contains anything but digits
+     */
+    private static long parseNumber(final ByteBuffer in, final int start, final int end)
+    {
+        if (start >= end)
+            return -1;
+        long result = 0;
+        for (int i = start; i < end; i++)
+        {
+            final int digit = in.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+    
+    private static boolean regionEquals(final ByteBuffer in, final int start, final int end, final byte[] expected)
+    {
+        if (end - start != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++)
+            if (in.get(start + i) != expected[i])
+                return false;
+        return true;
+    }
+    
+    /**
+     * writes a line only consisting of the keyword of command, e.g. "OK\n"
+     */
+    public static void encode(final ByteBuffer out, final Command command)
+    {
+        out.put(command.keyword);
+        out.put(NEWLINE);
+    }
+    
+    /**
+     * writes the keyword of command followed by a number, e.g.
+     * "GETCHUNKS 4\n"
+     */
+    public static void encode(final ByteBuffer out, final Command command, final long value)
+    {
+        out.put(command.keyword);
+        out.put(SPACE);
+        putNumber(out, value);
+        out.put(NEWLINE);
+    }
+    
+    /**
+     * writes "TIME nsec BYTES bytes\n"
+     */
+    public static void encodeTimeBytes(final ByteBuffer out, final long nsec, final long bytes)
+    {
+        out.put(Command.TIME.keyword);
+        out.put(SPACE);
+        putNumber(out, nsec);
+        out.put(BYTES);
+        putNumber(out, bytes);
+        out.put(NEWLINE);
+    }
+    
+    /**
+     * writes "TOKEN token\n"
+     */
+    public static void encodeToken(final ByteBuffer out, final CharSequence token)
+    {
+        out.put(Command.TOKEN.keyword);
+        out.put(SPACE);
+        putAscii(out, token);
+        out.put(NEWLINE);
+    }
+    
+    /**
+     * writes "ACCEPT" followed by the keywords of commands
+     */
+    public static void encodeAccept(final ByteBuffer out, final Command[] commands)
+    {
+        out.put(Command.ACCEPT.keyword);
+        for (final Command command : commands)
+        {
+            out.put(SPACE);
+            out.put(command.keyword);
+        }
+        out.put(NEWLINE);
+    }
+    
+    /**
+     * writes text followed by a line feed, e.g. for the greeting
+     */
+    public static void encodeLine(final ByteBuffer out, final CharSequence text)
+    {
+        putAscii(out, text);
+        out.put(NEWLINE);
+    }
+    
+    private static void putAscii(final ByteBuffer out, final CharSequence text)
+    {
+        final int length = text.length();
+        for (int i = 0; i < length; i++)
+            out.put((byte) text.charAt(i));
+    }
+    
+    private static void putNumber(final ByteBuffer out, final long value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value");
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        final int start = out.position();
+        out.position(start + digits);
+        long v = value;
+        for (int i = start + digits - 1; i >= start; i--)
+        {
+            out.put(i, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+    }
+    
+    static byte[] toAscii(final String text)
+    {
+        final byte[] result = new byte[text.length()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) text.charAt(i);
+        return result;
+    }
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright 2013 alladin-IT OG
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.alladin.rmbt.shared.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact encoding of the "speed_detail" of a test result, sent as the string
+ * "speed_detail_compact" instead of one JSON object per item.
+ * 
+ * The items are grouped into series of consecutive items with the same
+ * direction, thread and address family. Each series is written as a header
+ * (flags, thread, ip version, count) followed by the deltas of all its times
+ * and then the deltas of all its byte counts, each as a zigzag varint. The
+ * whole stream starts with a format version, is gzip-compressed and finally
+ * base64-encoded so it fits into the JSON request.
+ */
+public final class SpeedDetailCodec
+{
+    public static final int VERSION = 1;
+    
+    /** upper bound of the items of one result, against forged uploads */
+    public static final int MAX_ITEMS = 1 << 20;
+    
+    private static final int FLAG_UPLOAD = 1;
+    
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+    static
+    {
+        for (int i = 0; i < BASE64_VALUES.length; i++)
+            BASE64_VALUES[i] = -1;
+        for (int i = 0; i < BASE64.length; i++)
+            BASE64_VALUES[BASE64[i]] = i;
+    }
+    
+    // Suppress default constructor for noninstantiability
+    private SpeedDetailCodec()
+    {
+        throw new AssertionError();
+    }
+    
+    /**
+     * Collects the items of a result; call {@link #finish()} to get the
+     * encoded string.
+     */
+    public static final class Encoder
+    {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final OutputStream out;
+        
+        private boolean upload;
+        private int thread = -1;
+        private int ipVersion;
+        private long[] times = new long[64];
+        private long[] bytes = new long[64];
+        private int count;
+        
+        public Encoder() throws IOException
+        {
+            out = new GZIPOutputStream(buffer);
+            writeVarint(out, VERSION);
+        }
+        
+        /**
+         * @param ipVersion
+         *            address family of a dual-stack stream, 0 otherwise
+         */
+        public void add(final boolean upload, final int thread, final int ipVersion, final long time, final long bytes)
+                throws IOException
+        {
+            if (count > 0 && (upload != this.upload || thread != this.thread || ipVersion != this.ipVersion))
+                writeSeries();
+            if (count == times.length)
+            {
+                final long[] newTimes = new long[count * 2];
+                final long[] newBytes = new long[count * 2];
+                System.arraycopy(times, 0, newTimes, 0, count);
+                System.arraycopy(this.bytes, 0, newBytes, 0, count);
+                times = newTimes;
+                this.bytes = newBytes;
+            }
+            this.upload = upload;
+            this.thread = thread;
+            this.ipVersion = ipVersion;
+            times[count] = time;
+            this.bytes[count] = bytes;
+            count++;
+        }
+        
+        private void writeSeries() throws IOException
+        {
+            writeVarint(out, upload ? FLAG_UPLOAD : 0);
+            writeVarint(out, thread);
+            writeVarint(out, ipVersion);
+            writeVarint(out, count);
+            writeDeltas(times);
+            writeDeltas(bytes);
+            count = 0;
+        }
+        
+        private void writeDeltas(final long[] values) throws IOException
+        {
+            long last = 0;
+            for (int i = 0; i < count; i++)
+            {
+                final long delta = values[i] - last;
+                writeVarint(out, (delta << 1) ^ (delta >> 63));
+                last = values[i];
+            }
+        }
+        
+        /**
+         * @return the base64 string of all items added so far; the encoder
+         *         must not be used afterwards
+         */
+        public String finish() throws IOException
+        {
+            if (count > 0)
+                writeSeries();
+            out.close();
+            return encodeBase64(buffer.toByteArray());
+        }
+    }
+    
+    /**
+     * Iterates over the items of an encoded string; like {@link ControlLine}
+     * the getters refer to the current item only.
+     */
+    public static final class Decoder
+    {
+        private final InputStream in;
+        
+        private boolean upload;
+        private int thread;
+        private int ipVersion;
+        private long[] times = new long[0];
+        private long[] bytes = new long[0];
+        private int count;
+        private int index;
+        private int total;
+        
+        public Decoder(final CharSequence encoded) throws IOException
+        {
+            in = new GZIPInputStream(new ByteArrayInputStream(decodeBase64(encoded)));
+            final long version = readVarint(in);
+            if (version != VERSION)
+                throw new IOException("unsupported speed detail version " + version);
+        }
+        
+        /**
+         * moves to the next item
+         * 
+         * @return false at the end of the items
+         */
+        public boolean next() throws IOException
+        {
+            index++;
+            while (index >= count)
+            {
+                final int flags = in.read();
+                if (flags == -1)
+                    return false;
+                upload = (flags & FLAG_UPLOAD) != 0;
+                thread = readInt(in);
+                ipVersion = readInt(in);
+                count = readInt(in);
+                if (count > MAX_ITEMS - total)
+                    throw new IOException("too many speed detail items");
+                total += count;
+                if (times.length < count)
+                {
+                    times = new long[count];
+                    bytes = new long[count];
+                }
+                readDeltas(times);
+                readDeltas(bytes);
+                index = 0;
+            }
+            return true;
+        }
+        
+        private void readDeltas(final long[] values) throws IOException
+        {
+            long last = 0;
+            for (int i = 0; i < count; i++)
+            {
+                final long zigzag = readVarint(in);
+                last += (zigzag >>> 1) ^ -(zigzag & 1);
+                values[i] = last;
+            }
+        }
+        
+        public boolean isUpload()
+        {
+            return upload;
+        }
+        
+        public int getThread()
+        {
+            return thread;
+        }
+        
+        /**
+         * @return address family of a dual-stack stream, 0 otherwise
+         */
+        public int getIpVersion()
+        {
+            return ipVersion;
+        }
+        
+        public long getTime()
+        {
+            return times[index];
+        }
+        
+        public long getBytes()
+        {
+            return bytes[index];
+        }
+    }
+    
+    /**
+     * writes value as an unsigned LEB128 varint: 7 bits per byte, least
+     * significant first
+     */
+    public static void writeVarint(final OutputStream out, final long value) throws IOException
+    {
+        long v = value;
+        while ((v & ~0x7fL) != 0)
+        {
+            out.write((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+    
+    public static long readVarint(final InputStream in) throws IOException
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final int b = in.read();
+            if (b == -1)
+                throw new EOFException("truncated speed detail");
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("malformed varint");
+    }
+    
+    private static int readInt(final InputStream in) throws IOException
+    {
+        final long value = readVarint(in);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("malformed speed detail");
+        return (int) value;
+    }
+    
+    static String encodeBase64(final byte[] data)
+    {
+        final char[] result = new char[(data.length + 2) / 3 * 4];
+        int j = 0;
+        for (int i = 0; i < data.length; i += 3)
+        {
+            final int remaining = data.length - i;
+            final int b = (data[i] & 0xff) << 16 | (remaining > 1 ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? data[i + 2] & 0xff : 0);
+            result[j++] = BASE64[b >> 18 & 0x3f];
+            result[j++] = BASE64[b >> 12 & 0x3f];
+            result[j++] = remaining > 1 ? BASE64[b >> 6 & 0x3f] : '=';
+            result[j++] = remaining > 2 ? BASE64[b & 0x3f] : '=';
+        }
+        return new String(result);
+    }
+    
+    static byte[] decodeBase64(final CharSequence text) throws IOException
+    {
+        int length = text.length();
+        if (length % 4 != 0)
+            throw new IOException("malformed base64");
+        while (length > 0 && text.charAt(length - 1) == '=')
+            length--;
+        final byte[] result = new byte[length * 3 / 4];
+        int bits = 0;
+        int value = 0;
+        int j = 0;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = text.charAt(i);
+            final int digit = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+            if (digit < 0)
+                throw new IOException("malformed base64");
+            value = value << 6 | digit;
+            bits += 6;
+            if (bits >= 8)
+            {
+                bits -= 8;
+                result[j++] = (byte) (value >> bits);
+            }
+        }
+        return result;
+    }
+}